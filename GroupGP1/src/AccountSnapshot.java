@@ -0,0 +1,205 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Read-only file of accounts, memory mapped so that opening it costs the same
+ * whatever the number of accounts: only the pages a lookup touches are read.
+ * The file holds a header, the accounts, then an open addressing hash table:
+ * <pre>
+ *   header:  "ACCT" version count slots tableOffset   (5 ints)
+ *   account: idLength(short) id passwordLength(short) password   (UTF-8)
+ *   slot:    hash(int) accountOffset(int)   (offset 0 for a free slot)
+ * </pre>
+ */
+class AccountSnapshot {
+
+	//Class variables *************************************************
+
+	private static final int MAGIC = ('A' << 24) | ('C' << 16) | ('C' << 8) | 'T';
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 20;
+	private static final int SLOT_LENGTH = 8;
+
+	//Snapshot of a server that has never written one
+	static final AccountSnapshot EMPTY = new AccountSnapshot(null, 0, 1, HEADER_LENGTH);
+
+	//Instance variables **********************************************
+
+	private final ByteBuffer buffer;
+	private final int count;
+	private final int slots;
+	private final int tableOffset;
+
+	//Constructor ****************************************************
+
+	private AccountSnapshot(ByteBuffer buffer, int count, int slots, int tableOffset) {
+		this.buffer = buffer;
+		this.count = count;
+		this.slots = slots;
+		this.tableOffset = tableOffset;
+	}
+
+	//Class methods ***************************************************
+
+	/**
+	 * Maps the snapshot file, or returns the empty snapshot if there is none
+	 */
+	static AccountSnapshot open(File file) throws IOException {
+		if (!file.exists())
+			return EMPTY;
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Account snapshot too large: " + file);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException("Not an account snapshot: " + file);
+		int count = buffer.getInt(8);
+		int slots = buffer.getInt(12);
+		int tableOffset = buffer.getInt(16);
+		if (Integer.bitCount(slots) != 1 || tableOffset < HEADER_LENGTH || (long) tableOffset + (long) slots * SLOT_LENGTH > buffer.capacity())
+			throw new IOException("Corrupted account snapshot: " + file);
+		return new AccountSnapshot(buffer, count, slots, tableOffset);
+	}
+
+	/**
+	 * Writes the accounts of the base snapshot updated by the changes, where
+	 * a null password stands for a deleted account. Returns the number written.
+	 */
+	static int write(File file, AccountSnapshot base, Map<String, String> changes) throws IOException {
+		int[] hashes = new int[Math.max(16, base.count + changes.size())];
+		int[] offsets = new int[hashes.length];
+		int count = 0;
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+			out.write(new byte[HEADER_LENGTH]);
+			long position = HEADER_LENGTH;
+
+			//Unchanged accounts are copied as they are
+			for (int offset = HEADER_LENGTH; offset < base.tableOffset; offset = base.NextAccount(offset)) {
+				String id = base.ReadString(offset);
+				if (changes.containsKey(id))
+					continue;
+				int length = base.NextAccount(offset) - offset;
+				for (int i = 0; i < length; i++)
+					out.write(base.buffer.get(offset + i));
+				hashes[count] = Hash(id);
+				offsets[count++] = (int) position;
+				position += length;
+			}
+			for (Map.Entry<String, String> change : changes.entrySet()) {
+				if (change.getValue() == null)
+					continue;
+				if (count == hashes.length) {
+					hashes = Arrays.copyOf(hashes, count * 2);
+					offsets = Arrays.copyOf(offsets, count * 2);
+				}
+				byte[] id = Encode(change.getKey());
+				byte[] pw = Encode(change.getValue());
+				out.writeShort(id.length);
+				out.write(id);
+				out.writeShort(pw.length);
+				out.write(pw);
+				hashes[count] = Hash(change.getKey());
+				offsets[count++] = (int) position;
+				position += 4 + id.length + pw.length;
+			}
+
+			//Table at most half full, so that probes stay short
+			int slots = Integer.highestOneBit(Math.max(1, count) * 2 - 1) * 2;
+			if (position + (long) slots * SLOT_LENGTH > Integer.MAX_VALUE)
+				throw new IOException("Too many accounts for a snapshot");
+			ByteBuffer table = ByteBuffer.allocate(slots * SLOT_LENGTH);
+			for (int i = 0; i < count; i++) {
+				int slot = hashes[i] & (slots - 1);
+				while (table.getInt(slot * SLOT_LENGTH + 4) != 0)
+					slot = (slot + 1) & (slots - 1);
+				table.putInt(slot * SLOT_LENGTH, hashes[i]);
+				table.putInt(slot * SLOT_LENGTH + 4, offsets[i]);
+			}
+			out.write(table.array());
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(slots).putInt((int) position);
+			header.flip();
+			channel.write(header, 0);
+			channel.force(true);
+		}
+		return count;
+	}
+
+	//Instance methods ************************************************
+
+	int count() {
+		return count;
+	}
+
+	/**
+	 * Returns the password of the account, or null if there is none
+	 */
+	String get(String id) {
+		if (count == 0)
+			return null;
+		int hash = Hash(id);
+		byte[] key = Encode(id);
+		int slot = hash & (slots - 1);
+		while (true) {
+			int entry = tableOffset + slot * SLOT_LENGTH;
+			int offset = buffer.getInt(entry + 4);
+			if (offset == 0)
+				return null;
+			if (buffer.getInt(entry) == hash && Matches(offset, key))
+				return ReadString(offset + 2 + key.length);
+			slot = (slot + 1) & (slots - 1);
+		}
+	}
+
+	private boolean Matches(int offset, byte[] key) {
+		if ((buffer.getShort(offset) & 0xFFFF) != key.length)
+			return false;
+		for (int i = 0; i < key.length; i++)
+			if (buffer.get(offset + 2 + i) != key[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Reads the length prefixed string at the offset
+	 */
+	private String ReadString(int offset) {
+		byte[] bytes = new byte[buffer.getShort(offset) & 0xFFFF];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(offset + 2 + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the offset of the account after the one at the offset
+	 */
+	private int NextAccount(int offset) {
+		int pwOffset = offset + 2 + (buffer.getShort(offset) & 0xFFFF);
+		return pwOffset + 2 + (buffer.getShort(pwOffset) & 0xFFFF);
+	}
+
+	private static byte[] Encode(String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xFFFF)
+			throw new IllegalArgumentException("Account field too long");
+		return bytes;
+	}
+
+	private static int Hash(String id) {
+		int h = id.hashCode();
+		return h ^ (h >>> 16);
+	}
+}
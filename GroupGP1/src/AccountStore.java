@@ -0,0 +1,39 @@
+import java.io.IOException;
+
+/**
+ * Registered accounts of the chat server, looked up by login id
+ */
+public interface AccountStore {
+
+	/**
+	 * Returns true if an account exists with the given login id
+	 */
+	boolean exists(String id);
+
+	/**
+	 * Returns true if the account exists and has the given password
+	 */
+	boolean checkPassword(String id, String pw);
+
+	/**
+	 * Creates an account, returns false if the login id is already taken or
+	 * the account cannot be saved
+	 */
+	boolean add(String id, String pw);
+
+	/**
+	 * Deletes an account, returns false if there was none or the deletion
+	 * cannot be saved
+	 */
+	boolean remove(String id);
+
+	/**
+	 * Returns the number of accounts
+	 */
+	int size();
+
+	/**
+	 * Writes out the pending changes and releases the store
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,450 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.ChatMessage;
+
+/**
+ * Append-only journal of the messages sent to each channel, so that users
+ * joining a channel can see what was said before. Each channel has its own
+ * directory of memory mapped segment files, named after the sequence number
+ * of their first message; a segment is a run of records
+ *   length (int), sequence (long), timestamp (long), sender length (int),
+ *   sender, body
+ * ended by a zero length, since a new segment is filled with zeros.
+ * The position of each record is kept in memory, so the messages after a
+ * sequence number are found without reading the ones before. Only the last
+ * segments of a channel are kept.
+ * Messages are written by a background thread, the pages are forced to disk
+ * once per batch. A channel is only read from disk when it is first used,
+ * and only a bounded number of channels stay open: the one used least
+ * recently is closed to make room, and read again if it is used later.
+ */
+public class ChannelJournal {
+
+	/**
+	 * The messages of a channel read from the journal
+	 */
+	public static final class Replay {
+		private final long first;
+		private final List<ChatMessage> messages;
+
+		private Replay(long first, List<ChatMessage> messages) {
+			this.first = first;
+			this.messages = messages;
+		}
+
+		/**
+		 * @return the sequence number of the first message, or of the next one if there are none
+		 */
+		public long getFirstSequence() {
+			return first;
+		}
+
+		/**
+		 * @return the sequence number of the last message
+		 */
+		public long getLastSequence() {
+			return first + messages.size() - 1;
+		}
+
+		public List<ChatMessage> getMessages() {
+			return messages;
+		}
+	}
+
+	//Class variables *************************************************
+
+	//Messages appended to the segments before the pages are forced, at most
+	private static final int MAX_BATCH = 1024;
+	//Channels kept open, the idle ones are closed past this
+	private static final int MAX_OPEN_CHANNELS = 64;
+	//Record header: length, sequence, timestamp and sender length
+	private static final int HEADER_LENGTH = 4 + 8 + 8 + 4;
+	private static final String SUFFIX = ".seg";
+	//Queued by close to stop the writer
+	private static final ChatMessage END = ChatMessage.server("");
+
+	//Instance variables **********************************************
+
+	private final File directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final Map<String, Channel> channels = new ConcurrentHashMap<String, Channel>();
+	private final BlockingQueue<ChatMessage> pending;
+	private final AtomicLong dropped = new AtomicLong();
+	private Thread writer;
+	private volatile IOException failure;
+
+	//Constructor ****************************************************
+
+	/**
+	 * Creates a journal in the given directory, keeping at most maxSegments
+	 * segments of segmentSize bytes for each channel
+	 */
+	public ChannelJournal(File directory, int segmentSize, int maxSegments, int capacity) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+		pending = new ArrayBlockingQueue<ChatMessage>(capacity);
+	}
+
+	//Instance methods ************************************************
+
+	/**
+	 * Creates the directory if needed and starts the writer
+	 */
+	public void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+		writer = new Thread(this::WriteMessages, "ChannelJournal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues a message sent to a channel, dropped if the writer is too far behind
+	 */
+	public void append(ChatMessage msg) {
+		if (msg.getChannel() == null || writer == null)
+			return;
+		if (!pending.offer(msg))
+			dropped.incrementAndGet();
+	}
+
+	/**
+	 * @return the last count messages of the channel
+	 */
+	public Replay last(String channel, int count) throws IOException {
+		while (true) {
+			Channel journal = GetChannel(channel, false);
+			if (journal == null)
+				return new Replay(1, Collections.<ChatMessage>emptyList());
+			synchronized (journal) {
+				if (journal.open)
+					return journal.read(Math.max(journal.nextSeq - count, 1), count);
+			}
+		}
+	}
+
+	/**
+	 * @return at most count messages of the channel that follow the given sequence number
+	 */
+	public Replay since(String channel, long seq, int count) throws IOException {
+		while (true) {
+			Channel journal = GetChannel(channel, false);
+			if (journal == null)
+				return new Replay(1, Collections.<ChatMessage>emptyList());
+			synchronized (journal) {
+				if (journal.open)
+					return journal.read(seq + 1, count);
+			}
+		}
+	}
+
+	/**
+	 * @return how many messages could not be queued since the journal was opened
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Waits for the queued messages to be written, and stops the writer
+	 */
+	public void close() throws IOException {
+		if (writer != null) {
+			try {
+				pending.put(END);
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writer = null;
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Returns the channel, read from disk if it is not open. A channel that
+	 * was never written is only created for the writer, readers get null.
+	 * The channel returned may be closed before it is locked, in which case
+	 * it must be asked for again.
+	 */
+	private Channel GetChannel(String name, boolean create) throws IOException {
+		Channel channel = channels.get(name);
+		if (channel != null) {
+			channel.lastUsed = System.nanoTime();
+			return channel;
+		}
+		File channelDirectory = new File(directory, FileName(name));
+		if (!create && !channelDirectory.isDirectory())
+			return null;
+		//Loading twice is harmless, only one of them is kept
+		channel = new Channel(name, channelDirectory);
+		Channel previous = channels.putIfAbsent(name, channel);
+		if (previous != null)
+			return previous;
+		CloseIdleChannels();
+		return channel;
+	}
+
+	/**
+	 * Closes the channels used least recently while too many are open
+	 */
+	private void CloseIdleChannels() {
+		while (channels.size() > MAX_OPEN_CHANNELS) {
+			Channel idlest = null;
+			for (Channel channel : channels.values()) {
+				if (idlest == null || channel.lastUsed < idlest.lastUsed)
+					idlest = channel;
+			}
+			if (idlest == null)
+				return;
+			//Removed under its lock, so it is not read from disk again while being written
+			synchronized (idlest) {
+				idlest.close();
+				channels.remove(idlest.name, idlest);
+			}
+		}
+	}
+
+	/**
+	 * Run by the writer thread: appends the queued messages, forcing the
+	 * written pages to disk once per batch rather than once per message
+	 */
+	private void WriteMessages() {
+		List<ChatMessage> batch = new ArrayList<ChatMessage>();
+		List<Channel> written = new ArrayList<Channel>();
+		try {
+			boolean ended = false;
+			while (!ended) {
+				batch.add(pending.take());
+				pending.drainTo(batch, MAX_BATCH - 1);
+				for (ChatMessage msg : batch) {
+					if (msg == END) {
+						ended = true;
+						continue;
+					}
+					Channel channel;
+					while (true) {
+						channel = GetChannel(msg.getChannel(), true);
+						synchronized (channel) {
+							if (channel.open) {
+								channel.append(msg);
+								break;
+							}
+						}
+					}
+					if (!written.contains(channel))
+						written.add(channel);
+				}
+				for (Channel channel : written) {
+					synchronized (channel) {
+						channel.force();
+					}
+				}
+				batch.clear();
+				written.clear();
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (InterruptedException e) {
+			//Stopped without close, the messages still queued are lost
+		}
+	}
+
+	/**
+	 * Name of the directory of a channel: letters, digits, '-' and '_' are
+	 * kept, any other byte is written as %xx
+	 */
+	private static String FileName(String channel) {
+		StringBuilder name = new StringBuilder();
+		for (byte b : channel.getBytes(StandardCharsets.UTF_8)) {
+			if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_')
+				name.append((char) b);
+			else
+				name.append('%').append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return name.toString();
+	}
+
+	/**
+	 * The segments of one channel, guarded by the channel itself
+	 */
+	private final class Channel {
+		private final String name;
+		private final File directory;
+		//Segments by the sequence number of their first message
+		private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+		private Segment active;
+		private long nextSeq = 1;
+		//False once closed, the channel must then be read again
+		private boolean open = true;
+		private volatile long lastUsed = System.nanoTime();
+
+		Channel(String name, File directory) throws IOException {
+			this.name = name;
+			this.directory = directory;
+			String[] files = directory.list();
+			if (files == null)
+				return;
+			for (String file : files) {
+				if (!file.endsWith(SUFFIX))
+					continue;
+				try {
+					long first = Long.parseLong(file.substring(0, file.length() - SUFFIX.length()));
+					segments.put(first, new Segment(new File(directory, file), first));
+				} catch (NumberFormatException e) {
+					//Not a segment
+				}
+			}
+			if (!segments.isEmpty()) {
+				active = segments.lastEntry().getValue();
+				nextSeq = active.first + active.count;
+			}
+		}
+
+		void append(ChatMessage msg) throws IOException {
+			byte[] sender = msg.getSender() == null ? new byte[0] : msg.getSender().getBytes(StandardCharsets.UTF_8);
+			byte[] body = msg.getBody() == null ? new byte[0] : msg.getBody().getBytes(StandardCharsets.UTF_8);
+			int length = HEADER_LENGTH + sender.length + body.length;
+			//The zero length that ends the segment must still fit
+			if (length + 4 > segmentSize) {
+				dropped.incrementAndGet();
+				return;
+			}
+			if (active == null || active.position + length + 4 > segmentSize) {
+				if (active != null)
+					active.force();
+				if (!directory.isDirectory() && !directory.mkdirs())
+					throw new IOException("Cannot create " + directory);
+				active = new Segment(new File(directory, String.format("%020d", nextSeq) + SUFFIX), nextSeq);
+				segments.put(nextSeq, active);
+				while (segments.size() > maxSegments)
+					segments.pollFirstEntry().getValue().delete();
+			}
+			active.append(length, nextSeq++, msg.getTimestamp(), sender, body);
+		}
+
+		void force() {
+			if (active != null)
+				active.force();
+		}
+
+		/**
+		 * Forces the last messages to disk and lets go of the segments, whose
+		 * mappings are released once they are collected
+		 */
+		void close() {
+			force();
+			open = false;
+			active = null;
+			segments.clear();
+		}
+
+		/**
+		 * Reads at most count messages from the sequence number from, or from
+		 * the oldest one kept if it is older
+		 */
+		Replay read(long from, int count) throws IOException {
+			Map.Entry<Long, Segment> first = segments.firstEntry();
+			if (first != null && from < first.getKey())
+				from = first.getKey();
+			from = Math.min(from, nextSeq);
+			List<ChatMessage> messages = new ArrayList<ChatMessage>();
+			long seq = from;
+			Map.Entry<Long, Segment> entry = segments.floorEntry(seq);
+			while (entry != null && messages.size() < count && seq < nextSeq) {
+				Segment segment = entry.getValue();
+				while (messages.size() < count && seq < segment.first + segment.count)
+					messages.add(segment.read(seq++, name));
+				entry = segments.higherEntry(entry.getKey());
+			}
+			return new Replay(from, messages);
+		}
+	}
+
+	/**
+	 * A mapped segment file and the offsets of its records
+	 */
+	private final class Segment {
+		private final File file;
+		private final long first;
+		private final MappedByteBuffer buffer;
+		private int[] offsets = new int[64];
+		private int count;
+		private int position;
+
+		Segment(File file, long first) throws IOException {
+			this.file = file;
+			this.first = first;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			}
+			//Find the records written before, up to the first zero or damaged length
+			while (position + HEADER_LENGTH <= segmentSize) {
+				int length = buffer.getInt(position);
+				if (length < HEADER_LENGTH || position + length + 4 > segmentSize
+					|| buffer.getLong(position + 4) != first + count)
+					break;
+				AddOffset(position);
+				position += length;
+			}
+		}
+
+		void append(int length, long seq, long timestamp, byte[] sender, byte[] body) {
+			//The length goes last, so a record is only seen once complete
+			ByteBuffer record = buffer.duplicate();
+			record.position(position + 4);
+			record.putLong(seq).putLong(timestamp).putInt(sender.length).put(sender).put(body);
+			buffer.putInt(position, length);
+			AddOffset(position);
+			position += length;
+		}
+
+		ChatMessage read(long seq, String channel) {
+			int offset = offsets[(int) (seq - first)];
+			ByteBuffer record = buffer.duplicate();
+			int length = record.getInt(offset);
+			record.position(offset + 12);
+			long timestamp = record.getLong();
+			byte[] sender = new byte[record.getInt()];
+			record.get(sender);
+			byte[] body = new byte[length - HEADER_LENGTH - sender.length];
+			record.get(body);
+			return new ChatMessage(ChatMessage.Type.CHAT, new String(sender, StandardCharsets.UTF_8), null,
+				channel, new String(body, StandardCharsets.UTF_8), timestamp, null);
+		}
+
+		void force() {
+			buffer.force();
+		}
+
+		void delete() {
+			//The mapping stays valid until collected, the file goes right away
+			file.delete();
+		}
+
+		private void AddOffset(int offset) {
+			if (count == offsets.length)
+				offsets = Arrays.copyOf(offsets, count * 2);
+			offsets[count++] = offset;
+		}
+	}
+}
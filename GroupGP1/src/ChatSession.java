@@ -0,0 +1,201 @@
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.lloseng.ocsf.server.ClientSession;
+
+/**
+ * What the chat server knows about a client, in typed thread-safe fields.
+ * The names that were used with setInfo and getInfo still work and map to
+ * the fields, other names are kept by ClientSession.
+ */
+public class ChatSession extends ClientSession {
+
+	/**
+	 * Told when the blocks of the client are replaced with setInfo, so the
+	 * server can update what it knows of who blocks whom
+	 */
+	public interface BlocksListener {
+		void blocksReplaced(Set<String> previous, Set<String> current);
+	}
+
+	/**
+	 * Status of a client, shown to other users as its text
+	 */
+	public enum Status {
+		ONLINE("online"), IDLE("idle"), UNAVAILABLE("unavailable");
+
+		private final String text;
+
+		Status(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+
+		static Status fromText(String text) {
+			for (Status status : values()) {
+				if (status.text.equals(text))
+					return status;
+			}
+			throw new IllegalArgumentException("Unknown status: " + text);
+		}
+	}
+
+	//Instance variables **********************************************
+
+	private volatile String loginId;
+	private volatile String password;
+	private volatile String channel;
+	private final AtomicReference<Status> status = new AtomicReference<Status>(Status.ONLINE);
+	//Login ids whose messages the client does not receive
+	private volatile Set<String> blocked = ConcurrentHashMap.newKeySet();
+	//Login id of the user the client forwards its messages to
+	private volatile String monitor;
+	private volatile IdleWheel.Entry activity;
+	private final BlocksListener blocksListener;
+
+	//Constructors ****************************************************
+
+	public ChatSession() {
+		this(null);
+	}
+
+	public ChatSession(BlocksListener blocksListener) {
+		this.blocksListener = blocksListener;
+	}
+
+	//Instance methods ************************************************
+
+	public String getLoginId() {
+		return loginId;
+	}
+
+	public void setLoginId(String loginId) {
+		this.loginId = loginId;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	public String getChannel() {
+		return channel;
+	}
+
+	public void setChannel(String channel) {
+		this.channel = channel;
+	}
+
+	public Status getStatus() {
+		return status.get();
+	}
+
+	public void setStatus(Status status) {
+		this.status.set(status);
+	}
+
+	/**
+	 * Changes the status only if it still is the expected one
+	 */
+	public boolean changeStatus(Status expected, Status status) {
+		return this.status.compareAndSet(expected, status);
+	}
+
+	public Set<String> getBlocked() {
+		return blocked;
+	}
+
+	public String getMonitor() {
+		return monitor;
+	}
+
+	public void setMonitor(String monitor) {
+		this.monitor = monitor;
+	}
+
+	public IdleWheel.Entry getActivity() {
+		return activity;
+	}
+
+	public void setActivity(IdleWheel.Entry activity) {
+		this.activity = activity;
+	}
+
+	/**
+	 * Sets a field by its old name. The blocks can be given as any
+	 * collection of login ids, such as the lists that were used before;
+	 * they are copied
+	 */
+	@Override
+	public void setInfo(String infoType, Object info) {
+		switch (infoType) {
+		case "loginId" :
+			loginId = (String) info;
+			break;
+		case "pw" :
+			password = (String) info;
+			break;
+		case "channel" :
+			channel = (String) info;
+			break;
+		case "status" :
+			status.set(info == null ? null : Status.fromText((String) info));
+			break;
+		case "Blocked" :
+			SetBlocked((Collection<?>) info);
+			break;
+		case "Monitor" :
+			monitor = (String) info;
+			break;
+		case "lastAct" :
+			activity = (IdleWheel.Entry) info;
+			break;
+		default :
+			super.setInfo(infoType, info);
+		}
+	}
+
+	@Override
+	public Object getInfo(String infoType) {
+		switch (infoType) {
+		case "loginId" :
+			return loginId;
+		case "pw" :
+			return password;
+		case "channel" :
+			return channel;
+		case "status" :
+			Status current = status.get();
+			return current == null ? null : current.toString();
+		case "Blocked" :
+			return blocked;
+		case "Monitor" :
+			return monitor;
+		case "lastAct" :
+			return activity;
+		default :
+			return super.getInfo(infoType);
+		}
+	}
+
+	private void SetBlocked(Collection<?> ids) {
+		Set<String> current = ConcurrentHashMap.newKeySet();
+		if (ids != null) {
+			for (Object id : ids)
+				current.add((String) id);
+		}
+		Set<String> previous = blocked;
+		blocked = current;
+		if (blocksListener != null)
+			blocksListener.blocksReplaced(previous, current);
+	}
+}
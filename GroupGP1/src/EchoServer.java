@@ -5,13 +5,30 @@
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.lloseng.ocsf.io.EncodedMessage;
+import com.lloseng.ocsf.io.JavaSerializationCodec;
+import com.lloseng.ocsf.io.ObjectStreamStatistics;
+import com.lloseng.ocsf.io.Utf8FrameCodec;
 import com.lloseng.ocsf.server.*;
 
 import common.ChatIF;
+import common.ChatMessage;
+import common.ChatMessageCodec;
+import common.CommandLine;
+import common.CommandRegistry;
 
 /**
  * This class overrides some of the methods in the abstract 
@@ -32,31 +49,77 @@ public class EchoServer extends AbstractServer
 	 */
 	final public static int DEFAULT_PORT = 5555;
 
+	//Messages sent by #history, by default and at most
+	final private static int DEFAULT_HISTORY = 20;
+	final private static int MAX_HISTORY = 500;
+	//Messages of each channel kept in memory for the users joining it
+	final private static int RECENT_MESSAGES = 32;
+	//Time between two snapshots of the state of the users, in ms
+	final private static long STATE_PERIOD = 30 * 1000;
+	//Recent messages #search looks through, and how many it sends at once
+	final private static int SEARCHED_MESSAGES = 64 * 1024;
+	final private static int SEARCH_PAGE = 10;
+
 	//Instance variables *************************************************
 
 	private ChatIF serverUI;	
-	ArrayList<String> users;
-	ArrayList<String> accounts;
-	ArrayList<String> passwords;
-	ArrayList<String> serverMuteUsers;
-	ArrayList<String> blockedClients;
+	//Log shown on serverUI by a background thread, so clients never wait for the console
+	private ServerLog log;
+	//Messages of different clients are handled concurrently, so the shared lists are thread-safe.
+	//Logins are checked and recorded while holding the accounts lock.
+	AccountStore accounts;
+	List<String> serverMuteUsers;
+	List<String> blockedClients;
+	//Connection of each logged in user, so lookups by name do not scan every client
+	Map<String, ConnectionToClient> onlineUsers;
+	//Members of each channel, so channel messages only visit the channel
+	Map<String, Set<ConnectionToClient>> channels;
+	//Last messages of each channel, already encoded, sent to the users joining it
+	Map<String, MessageRing<SharedMessage>> recentMessages;
+	//Clients blocking each user, the reverse of each client's "Blocked" set
+	Map<String, Set<ConnectionToClient>> blockedBy;
+	//Clients that fall behind lose their oldest chat lines, never the #commands that drive their state
+	SlowConsumerPolicy slowConsumerPolicy = new SlowConsumerPolicy(SlowConsumerPolicy.Action.DROP_OLDEST, 256, 64){
+		@Override
+		protected boolean isDroppable(Object msg){
+			return !(msg instanceof String && ((String) msg).startsWith("#"));
+		}
+	};
+
+	//Messages sent to each channel, replayed by #history
+	ChannelJournal journal;
+	//Private messages to users that are not logged in
+	OfflineInbox inbox;
+	//Words of the recent channel and private messages, for #search
+	SearchIndex searchIndex = new SearchIndex(SEARCHED_MESSAGES, 64 * 1024);
+
+	//Handlers of the commands, found by name without splitting the message
+	CommandRegistry<ConnectionToClient> clientCommands = new CommandRegistry<ConnectionToClient>(true);
+	CommandRegistry<ChatIF> consoleCommands = new CommandRegistry<ChatIF>(false);
+
+	//Clients inactive for 5 min become idle, checked every second without visiting the active ones
+	IdleWheel idleWheel = new IdleWheel(300, 1, TimeUnit.SECONDS,
+		client -> Session(client).changeStatus(ChatSession.Status.ONLINE, ChatSession.Status.IDLE));
 
 	TimerTask StatusTask = new TimerTask(){
 		@Override
 		public void run(){
-			Date now = new Date();
-			Thread[] t = getClientConnections();
-			for(int i = 0; i < t.length; i ++){
-				ConnectionToClient tempClient = (ConnectionToClient) t[i];
-				Date lastActive = (Date) tempClient.getInfo("lastAct");
-				long temp = now.getTime() - lastActive.getTime();
-				long secstemp = temp/1000;				
-				if(now.getTime() - lastActive.getTime() >= 300000.0) {// 300000ms == 5min
-					//Idle for more than 5 min
-					if(tempClient.getInfo("status").equals("online"))
-						tempClient.setInfo("status", "idle");
-				}
-			}
+			idleWheel.advance();
+		}
+	};
+
+	//State of the users saved by the last server, given back when they log in again
+	Map<String, ServerState.User> restoredUsers = new ConcurrentHashMap<String, ServerState.User>();
+	File stateFile;
+	//Last state written, so an unchanged state is not written again
+	byte[] savedState;
+	//Held while the state is saved, so the timer and #quit do not write at the same time
+	final private Object stateLock = new Object();
+
+	TimerTask StateTask = new TimerTask(){
+		@Override
+		public void run(){
+			SaveState();
 		}
 	};
 
@@ -66,19 +129,35 @@ public class EchoServer extends AbstractServer
 	{
 		super(port);
 		serverUI = serverConsole;
-		users = new ArrayList<String>();
-		accounts = new ArrayList<String>();
-		passwords = new ArrayList<String>();
-		serverMuteUsers = new ArrayList<String>();
-		blockedClients = new ArrayList<String>();
+		log = new ServerLog(serverConsole, 4096);
+		serverMuteUsers = new CopyOnWriteArrayList<String>();
+		blockedClients = new CopyOnWriteArrayList<String>();
+		onlineUsers = new ConcurrentHashMap<String, ConnectionToClient>();
+		channels = new ConcurrentHashMap<String, Set<ConnectionToClient>>();
+		blockedBy = new ConcurrentHashMap<String, Set<ConnectionToClient>>();
+		recentMessages = new ConcurrentHashMap<String, MessageRing<SharedMessage>>();
+		slowConsumerPolicy.setByteWatermarks(1024 * 1024, 256 * 1024);
+		//Handle the messages of different clients in parallel
+		setMessageDispatcher(new MessageDispatcher());
+		//Chat messages go out as envelopes, clients that only read strings get their text
+		setCodecs(new ChatMessageCodec(), new JavaSerializationCodec(), new Utf8FrameCodec());
+		RegisterClientCommands();
+		RegisterConsoleCommands();
 		Timer UpdateTimer = new Timer();
-		//Run "idol status updater" every 10 sec
-		UpdateTimer.scheduleAtFixedRate(StatusTask, 0, 10000);
+		//Run "idol status updater" every tick of the wheel
+		UpdateTimer.scheduleAtFixedRate(StatusTask, 0, 1000);
 		this.buildUserList(port);
+		this.OpenJournal(port);
+		this.RestoreState(port);
+		//Saved on its own thread, so a slow disk does not delay the ticks of the wheel
+		Timer StateTimer = new Timer("ServerState", true);
+		StateTimer.schedule(StateTask, STATE_PERIOD, STATE_PERIOD);
+		//64 messages per user in memory, 10000 in all, then on disk up to 1 MB per user
+		inbox = new OfflineInbox(new File("server" + port + ".inbox"), 64, 10000, 1024 * 1024);
 		try {
 			this.listen();
 		} catch (IOException e) {
-			serverUI.display("Unable to start listening!");
+			log.error("Unable to start listening!");
 		} 
 	}
 
@@ -93,59 +172,37 @@ public class EchoServer extends AbstractServer
 	public void handleMessageFromClient(Object msg, ConnectionToClient client)
 	{
 		//Update client last active time
-		client.setInfo("lastAct", new Date());
+		idleWheel.touch(Session(client).getActivity());
 
-		if(client.getInfo("status").equals("idle"))
-			client.setInfo("status", "online");
+		Session(client).changeStatus(ChatSession.Status.IDLE, ChatSession.Status.ONLINE);
+
+		if(msg instanceof ChatMessage) {
+			//Clients only send envelopes to pass on the messages they receive
+			ChatMessage envelope = (ChatMessage) msg;
+			if(!blockedClients.contains(Session(client).getLoginId()) && envelope.getType() == ChatMessage.Type.FORWARD
+				&& envelope.getForwarded() != null && envelope.getTarget() != null) {
+				log.trace("Message received: {} from {} for {}", envelope.getForwarded(), Session(client).getLoginId(), envelope.getTarget());
+				sendForward(client, envelope.getTarget(), envelope.getForwarded());
+			}
+			return;
+		}
 
 		String message = msg.toString();
-		if(blockedClients.contains(client.getInfo("loginId")) && !message.startsWith("#")) {
+		if(blockedClients.contains(Session(client).getLoginId()) && !message.startsWith("#")) {
 			return;
 		}
 		else{
-			serverUI.display("Message received: " + message + " from " + client.getInfo("loginId"));
+			log.trace("Message received: {} from {}", message, Session(client).getLoginId());
 		}
 
 		if(!message.startsWith("#")){ 
 			//message
-			SelectiveSendToClients(client.getInfo("loginId") + "> " + msg, client);
+			ChatMessage chat = ChatMessage.chat(Session(client).getLoginId(), Session(client).getChannel(), message);
+			SelectiveSendToClients(chat, client);
+			journal.append(chat);
 		} else { 
 			//command
-			String cmd = GetCommand(message);
-
-			if(cmd.equals("login")){
-				String[] login = message.split(" ");
-				String id = login[1];
-				String pw = login[2];
-				boolean validLogin = LoginRecived(client, id, pw);						
-			} else if (cmd.equals("block")){
-				String blockee = message.substring(message.indexOf(' ')+1, message.length());
-				NewBlock(client,blockee);
-			} else if (cmd.equals("unblock")){
-				UnblockCmd(client, message);
-			} else if (cmd.equals("whoiblock")){
-				WhoIBlockCmd(client);
-			} else if (cmd.equals("whoblocksme")){
-				WhoBlocksMeCmd(client);
-			} else if (cmd.equals("setchannel")){
-				SetChannelCmd(client, message);
-			} else if (cmd.equals("private")){
-				SendPvtMsg(client, message);
-			} else if (cmd.equals("meeting")){
-				NewMeeting(client, message);
-			} else if (cmd.equals("forward")){
-				ForwardMessage(client, message);
-			} else if (cmd.equals("status")){
-				GetStatus(client, message);				
-			} else if (cmd.equals("available") || cmd.equals("notavailable")){
-				SetClientStatus(client, cmd);
-			} else if (cmd.equals("endforward")){
-				endForward(client);
-			}else if (cmd.equals("forward_message")) {
-				sendForward(client, message);
-			}else if (cmd.equals("endmeeting")) {
-				endForward(client);
-			}
+			clientCommands.dispatch(client, message);
 		}	
 	}
 
@@ -157,122 +214,214 @@ public class EchoServer extends AbstractServer
 	public void handleMessageFromServerUI(String message) {
 		if(!message.startsWith("#")) {//Server Msg			
 			serverUI.display(message);
-			SendToServerFriendlyClients("SERVER MSG> " + message);
-		} else {
-			int cmdEnd = message.indexOf(' ');
-			if (cmdEnd < 1) 
-				cmdEnd = message.length();
-			String cmd = message.substring(1, cmdEnd);
-
-			//Switch based on user command
-			switch (cmd) {
-			case "quit" :
-				if(!isClosed()){
-					try {
-						//send msg before closing
-						sendToAllClients("WARNING - The server has closed. Awaiting command.");
-						close();
-					} catch (IOException e) {
-						serverUI.display("Unable to close.");
-					}
-				}
-				System.exit(0);
-
-				break;
-			case "stop" :
-				if(!isListening())
-					serverUI.display("Server is already stopped.");
-				else {
-					stopListening();
-				}
-				break;
-			case "close" :
-				if(isClosed())
-					serverUI.display("Server is already closed");
-				else {
-					try{
-						sendToAllClients("SERVER SHUTTING DOWN! DISCONNECTING!");
-						sendToAllClients("Abnormal termination of connection");
-						close();
-					} catch (IOException e){
-						serverUI.display("Unable to close.");
-					}
-				}
-				break;
-			case "setport" :
-				if(!isClosed())
-					serverUI.display("Can not set port untill the server is closed.");
-				else {
-					try{
-						int port = Integer.parseInt(message.substring(cmdEnd +1, message.length()));
-						setPort(port);
-						serverUI.display("Port set to: " + port);
-					}catch (NumberFormatException e){
-						serverUI.display("Port could not be set");
-					}	
+			SendToServerFriendlyClients(ChatMessage.server(message));
+		} else if(!consoleCommands.dispatch(serverUI, message)) {
+			serverUI.display("Command not recognized.");
+		}
+	}
+
+	/**
+	 * Registers the handlers of the commands sent by clients
+	 */
+	private void RegisterClientCommands() {
+		clientCommands.register("login", (client, line) -> {
+			if(line.wordCount() >= 3 && LoginRecived(client, line.word(1), line.word(2))) {
+				ApplyRestoredState(client);
+				SendRecentMessages(client, Session(client).getChannel());
+				DeliverInbox(client);
+			}
+		});
+		clientCommands.register("block", (client, line) -> NewBlock(client, line.rest(1)));
+		clientCommands.register("unblock", (client, line) -> UnblockCmd(client, line.hasArguments() ? line.rest(1) : null));
+		clientCommands.register("whoiblock", (client, line) -> WhoIBlockCmd(client));
+		clientCommands.register("whoblocksme", (client, line) -> WhoBlocksMeCmd(client));
+		clientCommands.register("setchannel", (client, line) -> SetChannelCmd(client, line.rest(1)));
+		clientCommands.register("channels", (client, line) -> ChannelsCmd(client));
+		clientCommands.register("history", (client, line) -> HistoryCmd(client, line));
+		clientCommands.register("search", (client, line) -> SearchCmd(client, line));
+		clientCommands.register("private", (client, line) -> {
+			if(line.hasArguments())
+				SendPvtMsg(client, line.word(1), line.rest(2));
+		});
+		clientCommands.register("meeting", (client, line) -> NewMeeting(client, line.rest(1)));
+		clientCommands.register("forward", (client, line) -> ForwardMessage(client, line.rest(1)));
+		clientCommands.register("forward_message", (client, line) -> ForwardLineCmd(client, line));
+		clientCommands.register("status", (client, line) -> GetStatus(client, line.rest(1)));
+		clientCommands.register("available", (client, line) -> SetClientStatus(client, "available"));
+		clientCommands.register("notavailable", (client, line) -> SetClientStatus(client, "notavailable"));
+		clientCommands.register("endforward", (client, line) -> endForward(client));
+		clientCommands.register("endmeeting", (client, line) -> endForward(client));
+	}
+
+	/**
+	 * Registers the handlers of the commands typed on the server console
+	 */
+	private void RegisterConsoleCommands() {
+		consoleCommands.register("quit", (ui, line) -> {
+			if(!isClosed()){
+				//Saved while the users are still connected
+				SaveState();
+				try {
+					//send msg before closing
+					sendToAllClients("WARNING - The server has closed. Awaiting command.");
+					close();
+				} catch (IOException e) {
+					ui.display("Unable to close.");
 				}
-				break;
-			case "start" :
-				if(isListening())
-					serverUI.display("Server is already listening.");
-				else {
-					try {							
-						listen();
-					} catch (IOException e) {
-						serverUI.display("Unable to start listening.");
-					}
+			}
+			try {
+				//Save the accounts not written yet
+				accounts.close();
+			} catch (IOException e) {
+				ui.display("Error - Could not save accounts.");
+			}
+			try {
+				//Keep the private messages of offline users
+				inbox.close();
+			} catch (IOException e) {
+				ui.display("Error - Could not save offline messages.");
+			}
+			try {
+				//Write the channel messages still queued
+				journal.close();
+			} catch (IOException e) {
+				ui.display("Error - Could not save channel history.");
+			}
+			//Show what is left of the log
+			log.close();
+			System.exit(0);
+		});
+		consoleCommands.register("stop", (ui, line) -> {
+			if(!isListening())
+				ui.display("Server is already stopped.");
+			else {
+				stopListening();
+			}
+		});
+		consoleCommands.register("close", (ui, line) -> {
+			if(isClosed())
+				ui.display("Server is already closed");
+			else {
+				try{
+					sendToAllClients("SERVER SHUTTING DOWN! DISCONNECTING!");
+					sendToAllClients("Abnormal termination of connection");
+					close();
+				} catch (IOException e){
+					ui.display("Unable to close.");
 				}
-				break;
-			case "getport" :
-				serverUI.display("Current Port: " + getPort());				
-				break;
-			case "block" :
-				String blockee = message.substring(cmdEnd+1, message.length());				
-
-				if(!users.contains(blockee)){
-					serverUI.display("User " + blockee + " does not exist.");
-				} else if(blockedClients.contains(blockee)){
-					serverUI.display("Messages from " + blockee + " were already blocked.");					
-				} else {
-					serverUI.display("Messages from " + blockee + " will be blocked.");
-					blockedClients.add(blockee);	
+			}
+		});
+		consoleCommands.register("setport", (ui, line) -> {
+			if(!isClosed())
+				ui.display("Can not set port untill the server is closed.");
+			else {
+				try{
+					int port = Integer.parseInt(line.rest(1));
+					setPort(port);
+					ui.display("Port set to: " + port);
+				}catch (NumberFormatException e){
+					ui.display("Port could not be set");
+				}	
+			}
+		});
+		consoleCommands.register("start", (ui, line) -> {
+			if(isListening())
+				ui.display("Server is already listening.");
+			else {
+				try {							
+					listen();
+				} catch (IOException e) {
+					ui.display("Unable to start listening.");
 				}
-				break;
-			case "unblock" :
-				if (message.trim().equals("#"+cmd)) { //#unblock all command
-					if (blockedClients.isEmpty()) {
-						serverUI.display("No blocking is in effect.");
-					}else { //
-						for (int i = 0; i < blockedClients.size(); i++) {
-							serverUI.display("Messages from " + blockedClients.get(i) + " will now be displayed.");
-						}
-						blockedClients.clear();
-					}
+			}
+		});
+		consoleCommands.register("getport", (ui, line) -> ui.display("Current Port: " + getPort()));
+		consoleCommands.register("setengine", (ui, line) -> {
+			if(!isClosed())
+				ui.display("Can not set engine untill the server is closed.");
+			else {
+				String engine = line.rest(1).trim();
+				if(engine.equals("nio")){
+					setServerEngine(new NioServerEngine());
+					setConnectionFactory(null);
+					ui.display("Engine set to: nio");
+				} else if(engine.equals("acceptor")){
+					//Blocking accept on two threads, stops without polling
+					setServerEngine(new AcceptorServerEngine(2, AcceptorServerEngine.DEFAULT_BACKLOG));
+					setConnectionFactory(null);
+					ui.display("Engine set to: acceptor");
+				} else if(engine.equals("virtual")){
+					setServerEngine(null);
+					setConnectionFactory(new VirtualThreadConnectionFactory());
+					ui.display("Engine set to: virtual");
+					if(!VirtualThreadConnectionFactory.isVirtual())
+						ui.display("Virtual threads are not supported by this JVM, small platform threads will be used.");
+				} else if(engine.equals("thread")){
+					setServerEngine(null);
+					setConnectionFactory(null);
+					ui.display("Engine set to: thread");
 				} else {
-					String unBlockee = message.substring(cmdEnd+1, message.length());	
-					if(blockedClients.contains(unBlockee)){
-						blockedClients.remove(unBlockee);
-						serverUI.display("Messages from " + unBlockee + " will now be displayed" );
-					}
-					else{
-						serverUI.display("Messages from " + unBlockee + " were not blocked");
-					}
+					ui.display("Engine could not be set. Use nio, acceptor, virtual or thread.");
 				}
-
-				break;
-			case "whoiblock" :
+			}
+		});
+		consoleCommands.register("getengine", (ui, line) -> ui.display("Current Engine: " + GetEngineName()));
+		consoleCommands.register("streamstats", (ui, line) -> ui.display("Output streams: " + GetStreamStatistics()));
+		consoleCommands.register("channels", (ui, line) -> ui.display(GetChannelList()));
+		consoleCommands.register("loglevel", (ui, line) -> {
+			if(!line.hasArguments()) {
+				ui.display("Log level: " + log.getLevel() + ", " + log.getDroppedCount() + " messages dropped");
+				return;
+			}
+			try {
+				log.setLevel(ServerLog.Level.valueOf(line.word(1).toUpperCase()));
+				ui.display("Log level set to: " + log.getLevel());
+			} catch (IllegalArgumentException e) {
+				ui.display("Log level could not be set. Use trace, info, warn or error.");
+			}
+		});
+		consoleCommands.register("block", (ui, line) -> {
+			String blockee = line.rest(1);
+
+			if(!accounts.exists(blockee)){
+				ui.display("User " + blockee + " does not exist.");
+			} else if(blockedClients.contains(blockee)){
+				ui.display("Messages from " + blockee + " were already blocked.");					
+			} else {
+				ui.display("Messages from " + blockee + " will be blocked.");
+				blockedClients.add(blockee);	
+			}
+		});
+		consoleCommands.register("unblock", (ui, line) -> {
+			if (!line.hasArguments()) { //#unblock all command
 				if (blockedClients.isEmpty()) {
-					serverUI.display("No blocking is in effect.");
-				}else {
+					ui.display("No blocking is in effect.");
+				}else { //
 					for (int i = 0; i < blockedClients.size(); i++) {
-						serverUI.display("Messages from " + blockedClients.get(i) + " are blocked.");
+						ui.display("Messages from " + blockedClients.get(i) + " will now be displayed.");
 					}
+					blockedClients.clear();
 				}
-				break;
-			default: 
-				serverUI.display("Command not recognized.");
-			}		
-		}
+			} else {
+				String unBlockee = line.rest(1);	
+				if(blockedClients.contains(unBlockee)){
+					blockedClients.remove(unBlockee);
+					ui.display("Messages from " + unBlockee + " will now be displayed" );
+				}
+				else{
+					ui.display("Messages from " + unBlockee + " were not blocked");
+				}
+			}
+		});
+		consoleCommands.register("whoiblock", (ui, line) -> {
+			if (blockedClients.isEmpty()) {
+				ui.display("No blocking is in effect.");
+			}else {
+				for (int i = 0; i < blockedClients.size(); i++) {
+					ui.display("Messages from " + blockedClients.get(i) + " are blocked.");
+				}
+			}
+		});
 	}
 
 	/**
@@ -281,7 +430,7 @@ public class EchoServer extends AbstractServer
 	 */
 	protected void serverStarted()
 	{
-		serverUI.display("Server listening for connections on port " + getPort());
+		log.info("Server listening for connections on port {}", getPort());
 	}
 
 	/**
@@ -290,19 +439,26 @@ public class EchoServer extends AbstractServer
 	 */
 	protected void serverStopped()
 	{
-		serverUI.display("Server has stopped listening for connections.");
+		log.info("Server has stopped listening for connections.");
 		sendToAllClients("WARNING - The server has stopped listening for connections");
 	}
 
+	/**
+	 * This method overrides the one in the superclass.  Called
+	 * to create the session of a new client.
+	 */
+	protected ClientSession createSession(ConnectionToClient client){
+		return new ChatSession((previous, current) -> BlocksReplaced(client, previous, current));
+	}
+
 	/**
 	 * This method overrides the one in the superclass.  Called
 	 * when a client connects.
 	 */
 	protected void clientConnected(ConnectionToClient client){
-		client.setInfo("Blocked", new ArrayList<ArrayList<String>>());
-		client.setInfo("status", "online");
-		String msg = "A new client is attempting to connect to the server.";
-		serverUI.display(msg);		
+		Session(client).setActivity(idleWheel.register(client));
+		client.setSlowConsumerPolicy(slowConsumerPolicy);
+		log.info("A new client is attempting to connect to the server.");
 	}
 
 	/**
@@ -310,11 +466,19 @@ public class EchoServer extends AbstractServer
 	 * when a client disconnects.
 	 */
 	protected void clientDisconnected(ConnectionToClient client){
-		String msg = client.getInfo("loginId") + " has disconnected!";
+		String msg = Session(client).getLoginId() + " has disconnected!";
 		//removeUser((String) client.getInfo("loginId"));
-		if(client.getInfo("loginId") != null){
-			serverUI.display(msg);
-			sendToChannel((String) client.getInfo("channel"),msg);		
+		//Blocks end with the connection
+		ClearBlocks(client);
+		IdleWheel.Entry activity = Session(client).getActivity();
+		if(activity != null)
+			idleWheel.cancel(activity);
+		if(Session(client).getLoginId() != null){
+			//Only if the name has not been taken by a new login since
+			onlineUsers.remove(Session(client).getLoginId(), client);
+			LeaveChannel(client);
+			log.info(msg);
+			sendToChannel(Session(client).getChannel(),msg);		
 		}
 	}
 
@@ -324,12 +488,12 @@ public class EchoServer extends AbstractServer
 	 * Handles login requests from clients
 	 */
 	private boolean LoginRecived(ConnectionToClient client, String id, String pw) {
-		String clientOrigLogin = (String) client.getInfo("loginId");
+		String clientOrigLogin = Session(client).getLoginId();
 		if(clientOrigLogin != null){
 			try {
 				client.sendToClient("ERROR- You have already logged in with user id: " + clientOrigLogin + ".");				
 			} catch (IOException e1) {
-				serverUI.display("ERROR- Unable to send login error message to client: " + clientOrigLogin);
+				log.warn("ERROR- Unable to send login error message to client: {}", clientOrigLogin);
 			}
 			return false;
 		}
@@ -341,216 +505,329 @@ public class EchoServer extends AbstractServer
 
 		//}
 		//} catch (RuntimeException e){} //Catches when there are no clients to getClientConnections
-		try{
-			Thread[] clients = this.getClientConnections();
-			for(int i = 0; i < clients.length; i++){
-				if(((ConnectionToClient)clients[i]).getInfo("loginId").equals(id)){
-					//User already existed
-					try {
-						client.sendToClient("Error - The client " + id + " is already logged in.");
-						serverUI.display("A client, " + id + " tried to log in but " + id + " is already logged in.");
-						client.close();
-					} catch (IOException e) {
-						serverUI.display("ERROR- Unable to send login error message to client: " + id);
-					}
-					return false;
-				}
-			}
-		} catch (RuntimeException e){} //Catches when there are no clients to getClientConnections
-
-		if(users.contains(id)) {
-			//User already existed
-			int index = users.indexOf(id);
-			if (!pw.equals(passwords.get(index))) {
-				try {
-					client.sendToClient("Error - The password entered was incorrect. Please try again.");
-					serverUI.display("A client, " + id + " tried to log in with the wrong password.");
-					client.close();
-					return false;
-				} catch (IOException e) {
-					serverUI.display("ERROR- Unable to send login error message to client: " + id);
-				}
+		//Checking and recording the login must not interleave with another login
+		String refusal;
+		synchronized (accounts) {
+			if(onlineUsers.containsKey(id)){
+				//User already logged in
+				refusal = "Error - The client " + id + " is already logged in.";
+				log.info("A client, {} tried to log in but {} is already logged in.", id, id);
+			} else if(accounts.exists(id) && !accounts.checkPassword(id, pw)) {
+				refusal = "Error - The password entered was incorrect. Please try again.";
+				log.info("A client, {} tried to log in with the wrong password.", id);
+			} else if(!accounts.exists(id) && !accounts.add(id, pw)) {
+				//first unique login for client, but the account could not be saved
+				refusal = "Error - Your account could not be created. Please try again later.";
+				log.warn("The account of {} could not be created.", id);
+			} else {
+				Session(client).setLoginId(id);
+				Session(client).setPassword(pw);
+				onlineUsers.put(id, client);
 
-			}else {
-				
-				client.setInfo("loginId", id);
-				client.setInfo("pw", pw);
-				
 				//Initially put all users into public chat
-				client.setInfo("channel", "public");
+				JoinChannel(client, "public");
 
 				sendToChannel("public", id + " has logged on.");
-				serverUI.display(id + " has logged on.");
+				log.info("{} has logged on.", id);
 
 				return  true;
 			}
-			
-
 		}
-		//first unique login for client
-		client.setInfo("loginId", id);
-		client.setInfo("pw", pw);
+		//Refused clients are closed once the other logins can go on
+		try {
+			client.sendToClient(refusal);
+			client.close();
+		} catch (IOException e) {
+			log.warn("ERROR- Unable to send login error message to client: {}", id);
+		}
+		return false;
+	}
 
-		addUser(id, pw);
+	private void sendToChannel(String channel, String msg) {
+		//Encode the message once for the whole channel
+		EncodedMessage shared = new EncodedMessage(msg);
 
-		//Initially put all users into public chat
-		client.setInfo("channel", "public");
+		for (ConnectionToClient conn : GetChannelMembers(channel))
+		{
+			try {
+				conn.sendToClient(shared);
+			} catch (IOException e) {
+				log.warn("Message could not be sent to the client.");
+			}
+		}
 
-		sendToChannel("public", id + " has logged on.");
-		serverUI.display(id + " has logged on.");
+	}
 
-		return  true;
+	/**
+	 * Moves the client from its current channel, if any, to the given one
+	 */
+	private void JoinChannel(ConnectionToClient client, String channel) {
+		LeaveChannel(client);
+		Session(client).setChannel(channel);
+		channels.compute(channel, (name, members) -> {
+			if (members == null)
+				members = ConcurrentHashMap.newKeySet();
+			members.add(client);
+			return members;
+		});
 	}
 
-	private void addUser(String id, String pw) {
-		users.add(id);
-		passwords.add(pw);
+	/**
+	 * Removes the client from its current channel, and the channel and its
+	 * recent messages once empty
+	 */
+	private void LeaveChannel(ConnectionToClient client) {
+		String channel = Session(client).getChannel();
+		if (channel == null)
+			return;
+		channels.computeIfPresent(channel, (name, members) -> {
+			members.remove(client);
+			if (!members.isEmpty())
+				return members;
+			//The journal still has them for #history
+			recentMessages.remove(name);
+			return null;
+		});
+	}
 
-		try (BufferedWriter buffer = new BufferedWriter(new FileWriter("server" + this.getPort() + ".txt", true))) {
-			buffer.write(id + " " + pw + System.getProperty("line.separator"));
-		}catch (IOException e){
-		}
+	/**
+	 * Returns the clients in the given channel
+	 */
+	private Set<ConnectionToClient> GetChannelMembers(String channel) {
+		Set<ConnectionToClient> members = channel == null ? null : channels.get(channel);
+		return members == null ? Collections.<ConnectionToClient>emptySet() : members;
 	}
 
-	private void sendToChannel(String channel, String msg) {
-		Thread[] clientThreadList = getClientConnections();
+	/**
+	 * Lists the channels in use and their number of members
+	 */
+	private String GetChannelList() {
+		if (channels.isEmpty())
+			return "No channels are in use.";
+		//Sorted by name
+		TreeMap<String, Integer> counts = new TreeMap<String, Integer>();
+		for (Map.Entry<String, Set<ConnectionToClient>> channel : channels.entrySet())
+			counts.put(channel.getKey(), channel.getValue().size());
+		StringBuilder list = new StringBuilder("Channels:");
+		for (Map.Entry<String, Integer> channel : counts.entrySet())
+			list.append(' ').append(channel.getKey()).append(" (").append(channel.getValue())
+				.append(channel.getValue() == 1 ? " member)," : " members),");
+		list.setLength(list.length() - 1);
+		return list.toString();
+	}
 
-		for (int i=0; i<clientThreadList.length; i++)
-		{
-			ConnectionToClient conn= (ConnectionToClient) clientThreadList[i];
-			if (conn.getInfo("channel").equals(channel)) {
-				try {
-					conn.sendToClient(msg);
-				} catch (IOException e) {
-					serverUI.display("Message could not be sent to the client.");
-				}
-			}
+	/**
+	 * Sends the list of channels to the client
+	 */
+	private void ChannelsCmd(ConnectionToClient client) {
+		try {
+			client.sendToClient(GetChannelList());
+		} catch (IOException e) {
+			log.warn("ERROR- Unable to send message to client: {}", Session(client).getLoginId());
 		}
-
 	}
 
 	/**
 	 * This method adds the blockee to the clients block list
 	 */
 	private void NewBlock(ConnectionToClient client, String blockee) {
-		String blocker = client.getInfo("loginId").toString();
-		ArrayList<String> blocked = (ArrayList<String>) client.getInfo("Blocked");	
+		String blocker = Session(client).getLoginId();
+		Set<String> blocked = GetBlocks(client);	
 		if(blockee.equals(blocker)){
 			try {
 				client.sendToClient("You cannot block the sending of messages to yourself.");
 			} catch (IOException e) {
-				serverUI.display("ERROR - Failed to send message to client " + blocker);
+				log.warn("ERROR - Failed to send message to client {}", blocker);
 			}
 		} else if (!UserExists(blockee)){
 			try {
 				client.sendToClient("User " + blockee + " does not exist");
 			} catch (IOException e) {
-				serverUI.display("ERROR - Failed to send message to client " + blocker);
+				log.warn("ERROR - Failed to send message to client {}", blocker);
 			}
 		} else if(blocked.contains(blockee)){
 			try {
 				client.sendToClient("Messages from " + blockee + " were already blocked.");
 			} catch (IOException e) {
-				serverUI.display("ERROR - Failed to send message to client " + blocker);
+				log.warn("ERROR - Failed to send message to client {}", blocker);
 			}
 		} else if (blocker.length() > 0){
 			try {
 				if(blockee.equals("server")){
-					serverMuteUsers.add((String) client.getInfo("loginId"));
-					ArrayList<String> clientBlocked = (ArrayList<String>)client.getInfo("Blocked");
-					clientBlocked.add("server");
-					client.setInfo("Blocked", clientBlocked);
+					serverMuteUsers.add(Session(client).getLoginId());
+					AddBlock(client, "server");
 					client.sendToClient("Messages from " + blockee + " will be blocked.");
 				}else {
-					if (users.contains(blockee)) {
-						ConnectionToClient blockee_connection = GetClientConnection(blockee);
-						String blockeeMonitor = (String) blockee_connection.getInfo("Monitor");
-						if (blockeeMonitor != null && blockeeMonitor.equals(client.getInfo("loginId"))) {
-							client.sendToClient("Forwarding of messages form " + blockee + " to you has been terminated.");
-							blockee_connection.sendToClient("#forwardBlocked");
-						}else {
-							client.sendToClient("Messages from " + blockee + " will be blocked.");
-						}
+					//The blockee may have logged off since
+					ConnectionToClient blockee_connection = GetClientConnection(blockee);
+					String blockeeMonitor = blockee_connection == null ? null : Session(blockee_connection).getMonitor();
+					if (blockeeMonitor != null && blockeeMonitor.equals(Session(client).getLoginId())) {
+						client.sendToClient("Forwarding of messages form " + blockee + " to you has been terminated.");
+						blockee_connection.sendToClient("#forwardBlocked");
 					}else {
 						client.sendToClient("Messages from " + blockee + " will be blocked.");
 					}
-					blocked.add(blockee);
-					client.setInfo("Blocked", blocked);
+					AddBlock(client, blockee);
 				}
 			} catch (IOException e) {
-				serverUI.display("ERROR - Failed to send message to client " + blocker);
+				log.warn("ERROR - Failed to send message to client {}", blocker);
 			}
 		}
 	}
 
-	private void NewMeeting(ConnectionToClient client, String message) {
+	private void NewMeeting(ConnectionToClient client, String monitor) {
 
-		String monitor = message.substring(message.indexOf(' ') +1);
-		if(client.getInfo("loginId").equals(monitor)){
+		if(Session(client).getLoginId().equals(monitor)){
 			try {
 				client.sendToClient("ERROR - You cannot monitor your own chat.");
 			} catch (IOException e) {
-				serverUI.display("ERROR - Failed to send message to client");
+				log.warn("ERROR - Failed to send message to client");
 			}
 		} else if(!UserExists(monitor)){
 			try {
 				client.sendToClient("ERROR - User to monitor chat must exist.");
 			} catch (IOException e) {
-				serverUI.display("ERROR - Failed to send message to client");
+				log.warn("ERROR - Failed to send message to client");
 			}
 		} else {
 			try {
 				client.sendToClient("#meeting " + monitor);
 			} catch (IOException e) {
-				serverUI.display("ERROR - Failed to send message to client");
+				log.warn("ERROR - Failed to send message to client");
 			}
-			SendMessageToClient(client, GetClientConnection(monitor), client.getInfo("loginId") + " is in a meeting and has selected you to monitor their chat. You will now receive all of " + client.getInfo("loginId") + "'s messages"); 
+			SendMessageToClient(client, GetClientConnection(monitor), ChatMessage.notice(Session(client).getLoginId(), monitor, Session(client).getLoginId() + " is in a meeting and has selected you to monitor their chat. You will now receive all of " + Session(client).getLoginId() + "'s messages")); 
 		}		
 	}
 
 	/**
-	 * Handles unblock commands from clients
+	 * Sends the client earlier messages of its channel: "#history [count]" for the
+	 * last ones, "#history since <number>" for those after a message number
 	 */
-	private void UnblockCmd(ConnectionToClient client, String message) {
-		String cmd = GetCommand(message);
-		int cmdEnd = message.indexOf(' ');
+	private void HistoryCmd(ConnectionToClient client, CommandLine line) {
+		String channel = Session(client).getChannel();
+		try {
+			if (channel == null) {
+				client.sendToClient("You are not in a channel.");
+				return;
+			}
+			ChannelJournal.Replay replay;
+			if ("since".equalsIgnoreCase(line.word(1)) && line.wordCount() == 3)
+				replay = journal.since(channel, Long.parseLong(line.word(2)), MAX_HISTORY);
+			else if (line.wordCount() == 2)
+				replay = journal.last(channel, Math.min(Integer.parseInt(line.word(1)), MAX_HISTORY));
+			else if (!line.hasArguments())
+				replay = journal.last(channel, DEFAULT_HISTORY);
+			else {
+				client.sendToClient("Usage: #history [count] or #history since <message number>");
+				return;
+			}
 
-		if (message.trim().equals("#"+cmd)) { //#unblock all command
+			if (replay.getMessages().isEmpty()) {
+				client.sendToClient("No earlier messages in channel " + channel + ".");
+				return;
+			}
+			client.sendToClient("Messages " + replay.getFirstSequence() + " to " + replay.getLastSequence() + " of channel " + channel + ":");
+			Set<String> blocked = GetBlocks(client);
+			for (ChatMessage msg : replay.getMessages()) {
+				if (!blocked.contains(msg.getSender()))
+					Deliver(client, msg);
+			}
+		} catch (NumberFormatException e) {
+			try {
+				client.sendToClient("Usage: #history [count] or #history since <message number>");
+			} catch (IOException e1) {
+				log.warn("ERROR- Unable to send message to client: {}", Session(client).getLoginId());
+			}
+		} catch (IOException e) {
+			log.warn("ERROR- Unable to send history to client: {}", Session(client).getLoginId());
+		}
+	}
+
+	/**
+	 * Sends the client the recent messages it can see that contain all the
+	 * given words, newest first: "#search <words> [#page]"
+	 */
+	private void SearchCmd(ConnectionToClient client, CommandLine line) {
+		int count = line.wordCount();
+		int page = 1;
+		int queryEnd = line.text().length();
+		String last = line.word(count - 1);
+		if(count > 2 && last.startsWith("#")) {
+			try {
+				page = Math.max(Integer.parseInt(last.substring(1)), 1);
+				queryEnd = line.end(count - 2);
+			} catch (NumberFormatException e) {
+				//Not a page number, part of the query
+			}
+		}
+		String query = line.hasArguments() ? line.text().substring(line.start(1), queryEnd) : "";
+
+		try {
+			if(query.isEmpty()) {
+				client.sendToClient("Usage: #search <words> [#page]");
+				return;
+			}
+			SearchIndex.Result result = searchIndex.search(Session(client).getLoginId(), Session(client).getChannel(),
+				GetBlocks(client), query, page, SEARCH_PAGE);
+			if(result.getTotal() == 0) {
+				client.sendToClient("No messages found for: " + query);
+				return;
+			}
+			if(result.getMessages().isEmpty()) {
+				client.sendToClient("No more messages for: " + query + " (" + result.getTotal() + " found)");
+				return;
+			}
+			int first = (page - 1) * SEARCH_PAGE + 1;
+			int shown = first + result.getMessages().size() - 1;
+			String header = "Found " + result.getTotal() + " messages for: " + query + ", showing " + first + " to " + shown;
+			if(shown < result.getTotal())
+				header += ", #search " + query + " #" + (page + 1) + " for more";
+			client.sendToClient(header);
+			for (ChatMessage msg : result.getMessages())
+				Deliver(client, msg);
+		} catch (IOException e) {
+			log.warn("ERROR- Unable to send search results to client: {}", Session(client).getLoginId());
+		}
+	}
+
+	/**
+	 * Handles unblock commands from clients
+	 */
+	private void UnblockCmd(ConnectionToClient client, String unBlockee) {
+		if (unBlockee == null) { //#unblock all command
 			if (GetBlocks(client).isEmpty()) {
 				try {
 					client.sendToClient("No blocking is in effect.");
 				} catch (IOException e) {
-					serverUI.display("Message could not be sent to the client.");
+					log.warn("Message could not be sent to the client.");
 				}
 			}else { //
-				ArrayList<String> blocks = GetBlocks(client);
-				for (int i = 0; i < blocks.size(); i++) {
+				for (String blockee : GetBlocks(client)) {
 					try {
-						client.sendToClient("Messages from " + blocks.get(i) + " will now be displayed.");
-						if( blocks.get(i).equals("server"))
-							serverMuteUsers.remove(client.getInfo("loginId"));
+						client.sendToClient("Messages from " + blockee + " will now be displayed.");
+						if( blockee.equals("server"))
+							serverMuteUsers.remove(Session(client).getLoginId());
 					} catch (IOException e) {
-						serverUI.display("Message could not be sent to the client.");
+						log.warn("Message could not be sent to the client.");
 					}
 				}
-				client.setInfo("Blocked", new ArrayList<String>());
+				ClearBlocks(client);
 			}
 		}else { //#unblock user command
-			serverMuteUsers.remove(client.getInfo("loginId"));
-			String unBlockee = message.substring(cmdEnd+1, message.length());
+			serverMuteUsers.remove(Session(client).getLoginId());
 			if(Unblock(client,unBlockee)){
 				try {
 					client.sendToClient("Messages from " + unBlockee + " will now be displayed.");
 					if( unBlockee.equals("server"))
 						serverMuteUsers.remove("server");
 				} catch (IOException e) {
-					serverUI.display("Message could not be sent to the client.");
+					log.warn("Message could not be sent to the client.");
 				}
 			}else {
 				try {
 					client.sendToClient("Messages from " + unBlockee + " were not blocked");
 				} catch (IOException e) {
-					serverUI.display("Message could not be sent to the client.");
+					log.warn("Message could not be sent to the client.");
 				}
 			}
 		}		
@@ -560,19 +837,19 @@ public class EchoServer extends AbstractServer
 	 * displays to client list of users the client blocks
 	 */
 	private void WhoIBlockCmd(ConnectionToClient client) {
-		ArrayList<String> iBlocked = GetBlocks(client);
+		Set<String> iBlocked = GetBlocks(client);
 		if (iBlocked.isEmpty()) {
 			try {
 				client.sendToClient("No blocking is in effect.");
 			} catch (IOException e) {
-				serverUI.display("Message could not be sent to the client.");
+				log.warn("Message could not be sent to the client.");
 			}
 		}else {
-			for (int i = 0; i < iBlocked.size(); i++) {
+			for (String blockee : iBlocked) {
 				try {
-					client.sendToClient("Messages from " + iBlocked.get(i) + " are blocked.");
+					client.sendToClient("Messages from " + blockee + " are blocked.");
 				} catch (IOException e) {
-					serverUI.display("Message could not be sent to the client.");
+					log.warn("Message could not be sent to the client.");
 				}
 			}
 		}
@@ -583,12 +860,11 @@ public class EchoServer extends AbstractServer
 	 * displays to client list of users that block the client
 	 */
 	private void WhoBlocksMeCmd(ConnectionToClient client) {
-		ArrayList<Thread> blockedMe = GetBlockedMe(client);
-		for (int i = 0; i < blockedMe.size(); i++) {
+		for (ConnectionToClient blocker : GetBlockedMe(client)) {
 			try {
-				client.sendToClient("Messages to " + ((ConnectionToClient) (blockedMe.get(i))).getInfo("loginId") + " are being blocked.");
+				client.sendToClient("Messages to " + Session(blocker).getLoginId() + " are being blocked.");
 			} catch (IOException e) {
-				serverUI.display("Message could not be sent to the client.");
+				log.warn("Message could not be sent to the client.");
 			}
 		}		
 	}
@@ -597,77 +873,114 @@ public class EchoServer extends AbstractServer
 	 * This method unblocks the unBlockee from the clients block list
 	 */
 	private boolean Unblock(ConnectionToClient client, String unBlockee) {
-		ArrayList<String> blocks = GetBlocks(client);
-		if (blocks.contains(unBlockee)) {
-			blocks.remove(unBlockee);
-			return true;
-		} 
-		return false;
+		if (!GetBlocks(client).remove(unBlockee))
+			return false;
+		RemoveBlocker(client, unBlockee);
+		return true;
+	}
+
+	/**
+	 * This method adds the blockee to the clients blocks and the client to the blockee's blockers
+	 */
+	private void AddBlock(ConnectionToClient client, String blockee) {
+		GetBlocks(client).add(blockee);
+		AddBlocker(client, blockee);
+	}
+
+	/**
+	 * Updates the blockers of each user when the blocks of the client are
+	 * replaced at once, through setInfo
+	 */
+	private void BlocksReplaced(ConnectionToClient client, Set<String> previous, Set<String> current) {
+		for (String blockee : previous) {
+			if (!current.contains(blockee))
+				RemoveBlocker(client, blockee);
+		}
+		for (String blockee : current)
+			AddBlocker(client, blockee);
+	}
+
+	private void AddBlocker(ConnectionToClient client, String blockee) {
+		blockedBy.compute(blockee, (name, blockers) -> {
+			if (blockers == null)
+				blockers = ConcurrentHashMap.newKeySet();
+			blockers.add(client);
+			return blockers;
+		});
+	}
+
+	private void RemoveBlocker(ConnectionToClient client, String blockee) {
+		blockedBy.computeIfPresent(blockee, (name, blockers) -> {
+			blockers.remove(client);
+			return blockers.isEmpty() ? null : blockers;
+		});
+	}
+
+	/**
+	 * This method removes all the blocks of the client
+	 */
+	private void ClearBlocks(ConnectionToClient client) {
+		Set<String> blocks = GetBlocks(client);
+		if (blocks == null)
+			return;
+		for (String blockee : blocks)
+			Unblock(client, blockee);
+	}
+
+	/**
+	 * This method gets the typed session of the client
+	 */
+	private static ChatSession Session(ConnectionToClient client) {
+		return (ChatSession) client.getSession();
 	}
 
 	/**
 	 * This method gets the clients) blocked users
 	 */
-	private ArrayList<String> GetBlocks(ConnectionToClient client) {
-		ArrayList<String> blocks = (ArrayList<String>) client.getInfo("Blocked");
+	private Set<String> GetBlocks(ConnectionToClient client) {
+		Set<String> blocks = Session(client).getBlocked();
 		return blocks;
 	}
 
 	/**
-	 * This method gets the users that have blocked the client
+	 * This method gets the clients that have blocked the client
 	 */
-	private ArrayList<Thread> GetBlockedMe(ConnectionToClient client) {
-		Thread[] clientThreadList = getClientConnections();
-		ArrayList<Thread> blockedMe = new ArrayList<>();
-		for (int i=0; i<clientThreadList.length; i++)
-		{
-			ConnectionToClient conn= (ConnectionToClient) clientThreadList[i];
-			ArrayList<String> blocked = (ArrayList<String>) conn.getInfo("Blocked");
-			if (blocked.contains(client.getInfo("loginId").toString())) {
-				blockedMe.add(conn);
-			}
-		}
-		return blockedMe;
+	private Set<ConnectionToClient> GetBlockedMe(ConnectionToClient client) {
+		String loginId = Session(client).getLoginId();
+		Set<ConnectionToClient> blockedMe = loginId == null ? null : blockedBy.get(loginId);
+		return blockedMe == null ? Collections.<ConnectionToClient>emptySet() : blockedMe;
 	}
 
 	/**
 	 * Sends to client the status of user specified in message after the command
-	 * @param message including command ("status") and the name of the user to get status of.
+	 * @param statuseeName the name of the user or channel to get status of.
 	 */
-	private void GetStatus(ConnectionToClient client, String message) {
-		int cmdEnd = message.indexOf(' ');
-		String statuseeName = message.substring(cmdEnd+1, message.length());
-		if(!users.contains(statuseeName)){
+	private void GetStatus(ConnectionToClient client, String statuseeName) {
+		if(!accounts.exists(statuseeName)){
 			//not a user, check if a channel
-			boolean isChannel = false;
-			Thread[] clients = this.getClientConnections();
-			for(int i = 0; i < clients.length; i++){
-				String channel = (String) ((ConnectionToClient) clients[i]).getInfo("channel");
-				if(channel.equals(statuseeName)){
-					String clientChannel = (String) client.getInfo("channel");
-					if(!clientChannel.equals(statuseeName)){
-						//client is in different channel that info is requested for, display error
-						try {
-							client.sendToClient("You are not authorized to get information about channel " + statuseeName);
-						} catch (IOException e) {
-							serverUI.display("Unable to send status messasge to user.");
-						}
-						return;
-					}
-					isChannel = true;
-					ConnectionToClient tempClient = (ConnectionToClient) clients[i];
-					try {
-						client.sendToClient("User " + tempClient.getInfo("loginId") + " is " + tempClient.getInfo("status") +".");
-					} catch (IOException e) {
-						serverUI.display("Unable to send status messasge to user.");
-					}
+			Set<ConnectionToClient> members = GetChannelMembers(statuseeName);
+			boolean isChannel = !members.isEmpty();
+			if(isChannel && !statuseeName.equals(Session(client).getChannel())){
+				//client is in different channel that info is requested for, display error
+				try {
+					client.sendToClient("You are not authorized to get information about channel " + statuseeName);
+				} catch (IOException e) {
+					log.warn("Unable to send status messasge to user.");
+				}
+				return;
+			}
+			for (ConnectionToClient tempClient : members) {
+				try {
+					client.sendToClient("User " + Session(tempClient).getLoginId() + " is " + Session(tempClient).getStatus() +".");
+				} catch (IOException e) {
+					log.warn("Unable to send status messasge to user.");
 				}
 			}
 			if(!isChannel){
 				try {
 					client.sendToClient("Channel " + statuseeName + " does not exist.");
 				} catch (IOException e) {
-					serverUI.display("Unable to send status messasge to user.");
+					log.warn("Unable to send status messasge to user.");
 				}
 			}
 
@@ -676,15 +989,15 @@ public class EchoServer extends AbstractServer
 			ConnectionToClient statusee = GetClientConnection(statuseeName);
 			if(statusee != null){
 				try {
-					client.sendToClient("User " + statuseeName + " is " + (String) statusee.getInfo("status")  + ".");
+					client.sendToClient("User " + statuseeName + " is " + Session(statusee).getStatus()  + ".");
 				} catch (IOException e) {
-					serverUI.display("Unable to send status messasge to user.");
+					log.warn("Unable to send status messasge to user.");
 				}
 			} else {
 				try {
 					client.sendToClient("User " + statuseeName + " is offline.");
 				} catch (IOException e) {
-					serverUI.display("Unable to send status messasge to user.");
+					log.warn("Unable to send status messasge to user.");
 				}
 			}
 		}
@@ -693,46 +1006,63 @@ public class EchoServer extends AbstractServer
 	private void SetClientStatus(ConnectionToClient client, String status) {
 		try {
 			if(status.equals("available")){
-				client.setInfo("status", "online");
+				Session(client).setStatus(ChatSession.Status.ONLINE);
 				client.sendToClient("Your status has been set to online");
 			} else if (status.equals("notavailable")){
-				client.setInfo("status", "unavailable");
+				Session(client).setStatus(ChatSession.Status.UNAVAILABLE);
 				client.sendToClient("Your status has been set to unavailable");
 			}	
 		} catch (IOException e) {
-			serverUI.display("Unable to send message to client.");
+			log.warn("Unable to send message to client.");
 		}		
 	}
 
 	/**
 	 * Sets the clients chat channel
 	 */
-	private void SetChannelCmd(ConnectionToClient client, String message) {
-		if(client.getInfo("status").equals("unavailable")){
+	private void SetChannelCmd(ConnectionToClient client, String newChannel) {
+		if(Session(client).getStatus() == ChatSession.Status.UNAVAILABLE){
 			try {
 				client.sendToClient("You cannot be added to new channels while you are unavailable");
 			} catch (IOException e) {
-				serverUI.display("ERROR- Unable to send message to client: " + client.getInfo("loginId"));
+				log.warn("ERROR- Unable to send message to client: {}", Session(client).getLoginId());
 			}
 		} else {
-			String newChannel = message.substring(message.indexOf(' ')+1, message.length());
-			client.setInfo("channel", newChannel);
+			JoinChannel(client, newChannel);
 			try {
 				client.sendToClient("Channel has been set to: " + newChannel);
 			} catch (IOException e) {
-				serverUI.display("ERROR- Unable to send message to client: " + client.getInfo("loginId"));
+				log.warn("ERROR- Unable to send message to client: {}", Session(client).getLoginId());
 			}
+			SendRecentMessages(client, newChannel);
 		}
 	}
 
 	/**
-	 * Parses out and returns the command from a string message
+	 * Returns the name of the engine used, as given to #setengine
 	 */
-	private String GetCommand(String message) {
-		int cmdEnd = message.indexOf(' ');
-		if (cmdEnd < 1) 
-			cmdEnd = message.length();
-		return message.substring(1, cmdEnd).toLowerCase();
+	private String GetEngineName() {
+		if(getServerEngine() instanceof NioServerEngine)
+			return "nio";
+		if(getServerEngine() instanceof AcceptorServerEngine)
+			return "acceptor";
+		if(getConnectionFactory() instanceof VirtualThreadConnectionFactory)
+			return "virtual";
+		return "thread";
+	}
+
+	/**
+	 * Sums the output stream statistics of the connected clients
+	 */
+	private ObjectStreamStatistics GetStreamStatistics() {
+		ObjectStreamStatistics total = new ObjectStreamStatistics(0, 0, 0, 0, 0);
+		List<ConnectionToClient> clientThreadList = getConnections().snapshot();
+		for (int i = 0; i < clientThreadList.size(); i++) {
+			ObjectStreamStatistics stats = clientThreadList.get(i).getOutputStatistics();
+			if (stats != null)
+				total = total.add(stats);
+		}
+		return total;
 	}
 
 	/**
@@ -741,271 +1071,496 @@ public class EchoServer extends AbstractServer
 	 * @return Connection to client with loginId==clientName, null if client not found
 	 */
 	private ConnectionToClient GetClientConnection(String clientName) {
-		Thread[] clients = this.getClientConnections();
-		for(int i = 0; i < clients.length; i++){
-			if(((ConnectionToClient) clients[i]).getInfo("loginId").equals(clientName))
-				return (ConnectionToClient) clients[i];		
-		}
-		//client with clientName not found
-		return null;
+		//null if client with clientName not found
+		return clientName == null ? null : onlineUsers.get(clientName);
 	}
 
 	/**
 	 * Determines if the given userId exists
 	 */
 	private boolean UserExists(String userId) {
-		Thread[] clientList = getClientConnections();
-		for (int i=0; i<clientList.length; i++)
-		{
-			if(((ConnectionToClient) clientList[i]).getInfo("loginId").equals(userId))
-				return true;
-		}
-		return false;
+		return userId != null && onlineUsers.containsKey(userId);
 	}
 
-	private void ForwardMessage(ConnectionToClient sender, String message) {	
-		String recipient = message.substring(message.indexOf(' ')+1, message.length());
-		//String msg = message.substring(endIndex +1);
+	private void ForwardMessage(ConnectionToClient sender, String recipient) {	
 
 		//Check if recipient is sender
-		if(sender.getInfo("loginId").equals(recipient)){
+		if(Session(sender).getLoginId().equals(recipient)){
 			try {
 				sender.sendToClient("ERROR - You cannot forward your own chat to yourself.");
 			} catch (IOException e) {
-				serverUI.display("Message could not be sent to client.");
+				log.warn("Message could not be sent to client.");
 			}
 			return;
 		}
-		if(!UserExists(recipient)){
+		ConnectionToClient recip = GetClientConnection(recipient);
+		if(recip == null){
 			try {
 				sender.sendToClient("Cannot forward to " + recipient + " because " + recipient + " does not exist.");
 			} catch (IOException e) {
-				serverUI.display("Message could not be sent to client.");
+				log.warn("Message could not be sent to client.");
 			}
 			return;
 		}
-		if(isBlocking(recipient, (String) sender.getInfo("loginId"))) {
+		if(isBlocking(recip, Session(sender).getLoginId())) {
 			try {
 				sender.sendToClient("Cannot forward to " + recipient + " because " + recipient + " is blocking messages from you.");
 			} catch (IOException e) {
-				serverUI.display("Message could not be sent to client.");
+				log.warn("Message could not be sent to client.");
 			}
 			return;
 		}
-		ConnectionToClient recip = GetClientConnection(recipient);
-		if(recip == null || recip.getInfo("status").equals("unavailable") ){
+		if(Session(recip).getStatus() == ChatSession.Status.UNAVAILABLE){
 			try {
 				sender.sendToClient("Cannot forward to " + recipient + " because " + recipient + " is unavailable.");
 			} catch (IOException e) {
-				serverUI.display("Message could not be sent to client.");
+				log.warn("Message could not be sent to client.");
 			}
 			return;
 		}
 		try {
 			sender.sendToClient("#forward " + recipient);
 		} catch (IOException e) {
-			serverUI.display("ERROR - Failed to send message to client");
+			log.warn("ERROR - Failed to send message to client");
 		}
-		sender.setInfo("Monitor", recipient);
-		SendMessageToClient(sender, recip, sender.getInfo("loginId") + " is forwarding their messages to you."); 
+		Session(sender).setMonitor(recipient);
+		SendMessageToClient(sender, recip, ChatMessage.notice(Session(sender).getLoginId(), recipient, Session(sender).getLoginId() + " is forwarding their messages to you.")); 
 	}
 
-	private void sendForward(ConnectionToClient client, String message) {
-
-		int startIndex = message.indexOf(' ');
-		int recipIndex =  message.indexOf(' ', startIndex +1);		
-		String recipient = message.substring(startIndex +1, recipIndex);
-		String msg = message.substring(recipIndex +1);
-		recipIndex++;
-		int sendIndex = message.indexOf('>', recipIndex);
-		String origSender = message.substring(recipIndex, sendIndex);
-		if (isBlocking(recipient, origSender)) {
-			SendMessageToClient(GetClientConnection(origSender), GetClientConnection(recipient), msg);
-		}else {
+	/**
+	 * Passes on a line forwarded by a client that does not send envelopes:
+	 * "#forward_message <recipient> <line>", the line being the message as
+	 * the client displayed it
+	 */
+	private void ForwardLineCmd(ConnectionToClient client, CommandLine line) {
+		if (blockedClients.contains(Session(client).getLoginId()))
+			return;
+		ChatMessage original = line.wordCount() < 3 ? null : ParseLine(line.rest(2), Session(client).getLoginId());
+		if (original == null) {
 			try {
-				msg = msg.substring(msg.indexOf('>') + 2, msg.length());
-				GetClientConnection(recipient).sendToClient((String) client.getInfo("loginId") + "> " + origSender + "> " + msg);
+				client.sendToClient("ERROR- The message could not be forwarded.");
 			} catch (IOException e) {
-				serverUI.display("Message could not be sent to client.");
+				log.warn("Message could not be sent to client.");
 			}
+			return;
 		}
+		log.trace("Message received: {} from {} for {}", original, Session(client).getLoginId(), line.word(1));
+		sendForward(client, line.word(1), original);
+	}
 
+	/**
+	 * Rebuilds a message sent to target from the line a client displayed:
+	 * "sender> text", "sender> (Private) text" or "SERVER MSG> text".
+	 * Returns null if the line has no sender
+	 */
+	private static ChatMessage ParseLine(String text, String target) {
+		int end = text.indexOf("> ");
+		if (end <= 0)
+			return null;
+		String sender = text.substring(0, end);
+		String body = text.substring(end + 2);
+		if (sender.equals("SERVER MSG"))
+			return ChatMessage.server(body);
+		if (body.startsWith("(Private) "))
+			return ChatMessage.privateMessage(sender, target, body.substring("(Private) ".length()));
+		return ChatMessage.notice(sender, target, body);
+	}
 
+	/**
+	 * Passes a message on to the user the client forwards its messages to
+	 */
+	private void sendForward(ConnectionToClient client, String recipient, ChatMessage original) {
+		ConnectionToClient recip = GetClientConnection(recipient);
+		if (recip == null)
+			return;
+		String origSender = original.getSender();
+		if (origSender != null && isBlocking(recip, origSender)) {
+			ConnectionToClient origClient = GetClientConnection(origSender);
+			if (origClient != null)
+				SendMessageToClient(origClient, recip, original);
+		}else {
+			try {
+				Deliver(recip, ChatMessage.forward(Session(client).getLoginId(), recipient, original));
+			} catch (IOException e) {
+				log.warn("Message could not be sent to client.");
+			}
+		}
 	}
 
 	private void endForward(ConnectionToClient client) {
 		try {
 			client.sendToClient("#endforward");
-			client.setInfo("Monitor", null);
+			Session(client).setMonitor(null);
 		} catch (IOException e) {
-			serverUI.display("Message could not be sent to the client.");
+			log.warn("Message could not be sent to the client.");
 		}
 	}
 
 	/**
 	 * This method sends a message to all unblocked, available clients in same channel
 	 */
-	private void SelectiveSendToClients(Object msg, ConnectionToClient client){
-		String channel = (String) client.getInfo("channel");
-		ArrayList<Thread> blockedMe = GetBlockedMe(client);
-		Thread[] clientThreadList = getClientConnections();
+	private void SelectiveSendToClients(ChatMessage msg, ConnectionToClient client){
+		String channel = Session(client).getChannel();
+		Set<ConnectionToClient> blockedMe = GetBlockedMe(client);
+		//Encode the message once for all the recipients
+		SharedMessage shared = new SharedMessage(msg);
 
-		for (int i=0; i<clientThreadList.length; i++)
+		for (ConnectionToClient recipClient : GetChannelMembers(channel))
 		{
-			ConnectionToClient recipClient= (ConnectionToClient) clientThreadList[i];
-			String recipChannel = (String) recipClient.getInfo("channel");
-			if (!blockedMe.contains(recipClient) && recipChannel.equals(channel) && !recipClient.getInfo("status").equals("unavailable")) {
+			if (!blockedMe.contains(recipClient) && Session(recipClient).getStatus() != ChatSession.Status.UNAVAILABLE) {
 				try {
 					//available, not blocked, and in same channel
-					recipClient.sendToClient(msg);
+					recipClient.sendToClient(shared.forClient(recipClient));
 				} catch (IOException e) {
-					serverUI.display("Message could not be sent to the client.");
+					log.warn("Message could not be sent to the client.");
 				}
 			}
 		}
+		//Only kept while the channel has members, LeaveChannel drops the ring with the channel
+		if (channel != null && channels.containsKey(channel))
+			recentMessages.computeIfAbsent(channel, name -> new MessageRing<SharedMessage>(RECENT_MESSAGES)).add(shared);
+		searchIndex.add(msg);
 	}
 
 	/**
-	 * parses out command message and sends private message
+	 * sends private message to the recipient
 	 */	
-	private void SendPvtMsg(ConnectionToClient sender, String message) {
-		if(sender.getInfo("status") != "unavailable"){
-
-			int startIndex = message.indexOf(' ');
-			int endIndex =  message.indexOf(' ', startIndex +1);
-			String recipient = message.substring(startIndex +1, endIndex);
+	private void SendPvtMsg(ConnectionToClient sender, String recipient, String msg) {
+		if(Session(sender).getStatus() != ChatSession.Status.UNAVAILABLE){
 
-			if(recipient.equals(sender.getInfo("loginId"))){
+			if(recipient.equals(Session(sender).getLoginId())){
 				try {
 					sender.sendToClient("You cannot send a private message to yourself.");
 				} catch (IOException e) {
-					serverUI.display("Message could not be sent to the client.");
+					log.warn("Message could not be sent to the client.");
 				}
 				return;
 			}
-			if(!UserExists(recipient)){
+			ConnectionToClient recip = GetClientConnection(recipient);
+			if(recip == null){
+				if(accounts.exists(recipient)) {
+					//Registered but offline, delivered at the next login unless the blocks it had then refuse it
+					ServerState.User restored = restoredUsers.get(recipient);
+					if(restored != null && restored.blocked.contains(Session(sender).getLoginId())) {
+						try {
+							sender.sendToClient("Cannot send message because " + recipient + " is blocking messages from you.");
+						} catch (IOException e) {
+							log.warn("Message could not be sent to the client.");
+						}
+						return;
+					}
+					SendToInbox(sender, ChatMessage.privateMessage(Session(sender).getLoginId(), recipient, msg));
+					return;
+				}
 				try {
 					sender.sendToClient("You cannot send a private message to a user that does not exist.");
 				} catch (IOException e) {
-					serverUI.display("Message could not be sent to the client.");
+					log.warn("Message could not be sent to the client.");
 				}
 				return;
 			}
-			if(GetClientConnection(recipient).getInfo("status").equals("notavailable")) {
+			if(Session(recip).getStatus() == ChatSession.Status.UNAVAILABLE) {
 				try {
 					sender.sendToClient("Cannot send message because " + recipient + " is not available.");
 				} catch (IOException e) {
-					serverUI.display("Message could not be sent to the client.");
+					log.warn("Message could not be sent to the client.");
 				}
 				return;
 			}
-			String msg = message.substring(endIndex +1);
-			msg = "(Private) " + msg;
-			if (isBlocking (recipient, (String) sender.getInfo("loginId"))) {
+			ChatMessage pvtMsg = ChatMessage.privateMessage(Session(sender).getLoginId(), recipient, msg);
+			if (isBlocking(recip, Session(sender).getLoginId())) {
 				try {
 					sender.sendToClient("Cannot send message because " + recipient + " is blocking messages from you.");
 				} catch (IOException e) {
-					serverUI.display("Message could not be sent to the client.");
+					log.warn("Message could not be sent to the client.");
 				}
 			}else {
-				SendMessageToClient(sender, GetClientConnection(recipient), msg);
+				SendMessageToClient(sender, recip, pvtMsg);
+				searchIndex.add(pvtMsg);
 				try {
-					sender.sendToClient(sender.getInfo("loginId") + "> " + msg);
+					Deliver(sender, pvtMsg);
 				} catch (IOException e) {
-					serverUI.display("Message could not be sent to the client.");
+					log.warn("Message could not be sent to the client.");
 				}
 			}
 		} else {
 			try {
 				sender.sendToClient("You can not send a private message while your status is unavailable");
 			} catch (IOException e) {
-				serverUI.display("Message could not be sent to the client.");
+				log.warn("Message could not be sent to the client.");
+			}
+		}
+
+	}
+
+	/**
+	 * Sends a client that joined a channel the last messages of the channel,
+	 * as they were encoded when first sent
+	 */
+	private void SendRecentMessages(ConnectionToClient client, String channel) {
+		MessageRing<SharedMessage> ring = channel == null ? null : recentMessages.get(channel);
+		if(ring == null || ring.isEmpty())
+			return;
+		Set<String> blocked = GetBlocks(client);
+		try {
+			client.sendToClient("Recent messages of channel " + channel + ":");
+			for (long seq = ring.oldest(), end = ring.next(); seq < end; seq++) {
+				SharedMessage shared = ring.get(seq);
+				if(shared != null && !blocked.contains(shared.msg.getSender()))
+					client.sendToClient(shared.forClient(client));
 			}
+		} catch (IOException e) {
+			log.warn("ERROR- Unable to send message to client: {}", Session(client).getLoginId());
 		}
+	}
 
+	/**
+	 * Keeps a private message for a user that is not logged in
+	 */
+	private void SendToInbox(ConnectionToClient sender, ChatMessage pvtMsg) {
+		String recipient = pvtMsg.getTarget();
+		String reply;
+		try {
+			if(inbox.deposit(pvtMsg)) {
+				searchIndex.add(pvtMsg);
+				reply = recipient + " is offline, the message will be delivered when " + recipient + " logs in.";
+				//The recipient may have logged in and emptied its inbox before the deposit
+				ConnectionToClient recip = GetClientConnection(recipient);
+				if(recip != null)
+					DeliverInbox(recip);
+			}
+			else
+				reply = "Cannot send message because " + recipient + " has too many messages waiting.";
+		} catch (IOException e) {
+			log.error("Error - Could not save an offline message for {}", recipient);
+			reply = "Cannot send message because " + recipient + " is offline.";
+		}
+		try {
+			sender.sendToClient(reply);
+		} catch (IOException e) {
+			log.warn("Message could not be sent to the client.");
+		}
+	}
+
+	/**
+	 * Sends a client that just logged in the private messages kept while it was offline
+	 */
+	private void DeliverInbox(ConnectionToClient client) {
+		String id = Session(client).getLoginId();
+		List<ChatMessage> messages;
+		try {
+			messages = inbox.collect(id);
+		} catch (IOException e) {
+			log.error("Error - Could not read the offline messages of {}", id);
+			return;
+		}
+		//The blocks are known by now, restored or set since the messages were kept
+		Set<String> blocked = GetBlocks(client);
+		messages.removeIf(msg -> blocked.contains(msg.getSender()));
+		if(messages.isEmpty())
+			return;
+		try {
+			client.sendToClient("You received " + messages.size() + " private messages while you were offline:");
+			for (ChatMessage msg : messages)
+				Deliver(client, msg);
+		} catch (IOException e) {
+			log.warn("ERROR- Unable to send offline messages to client: {}", id);
+		}
 	}
 
 	/**
 	 * This method sends server messages to clients that have not blocked the server.
 	 */
-	private void SendToServerFriendlyClients(Object msg){
+	private void SendToServerFriendlyClients(ChatMessage msg){
 
-		Thread[] clientThreadList = getClientConnections();
+		List<ConnectionToClient> clientThreadList = getConnections().snapshot();
+		//Encode the message once for all the recipients
+		SharedMessage shared = new SharedMessage(msg);
 
-		for (int i=0; i<clientThreadList.length; i++)
+		for (int i=0; i<clientThreadList.size(); i++)
 		{
-			ConnectionToClient conn= (ConnectionToClient) clientThreadList[i];
-			if (!serverMuteUsers.contains(conn.getInfo("loginId"))) {
+			ConnectionToClient conn= clientThreadList.get(i);
+			if (!serverMuteUsers.contains(Session(conn).getLoginId())) {
 				try {
-					conn.sendToClient(msg);
+					conn.sendToClient(shared.forClient(conn));
 				} catch (IOException e) {
-					serverUI.display("Message could not be sent to the client.");
+					log.warn("Message could not be sent to the client.");
 				}
 			}
 		}
 	}
 
-	private void SendMessageToClient(ConnectionToClient sender, ConnectionToClient recipient, String msg) {
+	private void SendMessageToClient(ConnectionToClient sender, ConnectionToClient recipient, ChatMessage msg) {
 
 		//Check if recipient exists
 		if(recipient == null){
 			try {
 				sender.sendToClient("ERROR- User " + recipient + " does not exist.");
 			} catch (IOException e) {
-				serverUI.display("Message could not be sent to client.");
+				log.warn("Message could not be sent to client.");
 			}
 			return;
 		}
-		ArrayList<Thread> blockedSender = GetBlockedMe(sender);
-		if (!blockedSender.contains((String) recipient.getInfo("loginId")) && (String) recipient.getInfo("status") != "unavailable") {
+		if (!GetBlocks(recipient).contains(Session(sender).getLoginId()) && Session(recipient).getStatus() != ChatSession.Status.UNAVAILABLE) {
 			try {
 				//Not blocked and specified recipient, send msg
-				recipient.sendToClient(sender.getInfo("loginId") + "> " + msg);
-				//sender.sendToClient(sender.getInfo("loginId") + "> " + msg);
+				Deliver(recipient, msg);
 			} catch (IOException e) {
-				serverUI.display("Message could not be sent to client.");
+				log.warn("Message could not be sent to client.");
 			}
 		}
 	}
 
+	/**
+	 * Sends a chat message to one client, as its text unless the client reads envelopes
+	 */
+	private void Deliver(ConnectionToClient recipient, ChatMessage msg) throws IOException {
+		recipient.sendToClient(ReadsEnvelopes(recipient) ? msg : msg.toString());
+	}
+
+	/**
+	 * Only the clients using the ChatMessageCodec read ChatMessages, the
+	 * older ones, even with Java serialization, expect the text
+	 */
+	private static boolean ReadsEnvelopes(ConnectionToClient client) {
+		return client.getCodec() instanceof ChatMessageCodec;
+	}
+
+	/**
+	 * A chat message sent to many clients, encoded once as an envelope and,
+	 * only if some client does not read envelopes, once as text
+	 */
+	private static final class SharedMessage {
+		private final ChatMessage msg;
+		private final EncodedMessage envelope;
+		//Kept in the recent messages of a channel, so used by many threads
+		private volatile EncodedMessage text;
+
+		SharedMessage(ChatMessage msg) {
+			this.msg = msg;
+			envelope = new EncodedMessage(msg);
+		}
+
+		EncodedMessage forClient(ConnectionToClient client) {
+			if (ReadsEnvelopes(client))
+				return envelope;
+			if (text == null)
+				text = new EncodedMessage(msg.toString());
+			return text;
+		}
+	}
+
 	/**
 	 * This method removes a user from the user list
 	 */
 	private void RemoveUser(String id) {
-		for(int i= 0; i < users.size(); i++){
-			if(users.get(i).equals(id)){
-				users.remove(i);
+		accounts.remove(id);
+	}
+
+	/**
+	 * Tells if a user blocks the sender, false if the user logged off
+	 */
+	private boolean isBlocking(ConnectionToClient recip, String sender) {
+		return recip != null && GetBlocks(recip).contains(sender);
+	}
+
+	private void OpenJournal(int port) {
+		//1 MB segments, the last 16 of each channel are kept
+		journal = new ChannelJournal(new File("server" + port + ".journal"), 1024 * 1024, 16, 64 * 1024);
+		try {
+			journal.open();
+		} catch (IOException e) {
+			log.error("Error - Could not open the channel journal, channel history will not be saved.");
+		}
+	}
+
+	/**
+	 * Reads the state saved by the last server: the console blocks now, the
+	 * users' own state when they log in
+	 */
+	private void RestoreState(int port) {
+		stateFile = new File("server" + port + ".state");
+		try {
+			ServerState state = ServerState.read(stateFile);
+			blockedClients.addAll(state.blockedClients);
+			serverMuteUsers.addAll(state.mutedUsers);
+			restoredUsers.putAll(state.users);
+			savedState = state.encode();
+		} catch (IOException e) {
+			log.error("Error - Could not read the saved state of the users, it is lost.");
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the state of the users if it changed since the last one.
+	 * The state is copied from the concurrent maps without locking the server,
+	 * so clients are not held while it is written on the state timer.
+	 */
+	private void SaveState() {
+		synchronized (stateLock) {
+			//Closing disconnects everyone, keep what was saved before
+			if(isClosed())
+				return;
+			Map<String, ServerState.User> users = new LinkedHashMap<String, ServerState.User>(restoredUsers);
+			for (ConnectionToClient client : onlineUsers.values()) {
+				ChatSession session = Session(client);
+				String id = session.getLoginId();
+				if(id == null)
+					continue;
+				users.put(id, new ServerState.User(session.getChannel(),
+					session.getStatus() == ChatSession.Status.UNAVAILABLE,
+					session.getMonitor(), new ArrayList<String>(session.getBlocked())));
+			}
+			ServerState state = new ServerState(new ArrayList<String>(blockedClients), new ArrayList<String>(serverMuteUsers), users);
+			try {
+				byte[] encoded = state.encode();
+				if(Arrays.equals(encoded, savedState))
+					return;
+				ServerState.write(stateFile, encoded);
+				savedState = encoded;
+			} catch (IOException e) {
+				log.error("Error - Could not save the state of the users.");
 			}
 		}
 	}
 
-	private boolean isBlocking(String recip, String sender) {
-		ConnectionToClient recipClient = GetClientConnection(recip);
-		ArrayList<String> blocked = (ArrayList<String>) recipClient.getInfo("Blocked");
-		if (blocked.contains(sender)) {
-			return true;
-		}else {
-			return false;
+	/**
+	 * Gives a user logging in again the blocks, channel, status and forwarding
+	 * it had when the last server stopped
+	 */
+	private void ApplyRestoredState(ConnectionToClient client) {
+		ServerState.User user = restoredUsers.remove(Session(client).getLoginId());
+		if(user == null)
+			return;
+		for (String blockee : user.blocked)
+			AddBlock(client, blockee);
+		try {
+			if(user.channel != null && !user.channel.equals(Session(client).getChannel())) {
+				JoinChannel(client, user.channel);
+				client.sendToClient("Channel has been set to: " + user.channel);
+			}
+			if(user.unavailable) {
+				Session(client).setStatus(ChatSession.Status.UNAVAILABLE);
+				client.sendToClient("Your status has been set to unavailable");
+			}
+			if(user.monitor != null) {
+				Session(client).setMonitor(user.monitor);
+				client.sendToClient("#forward " + user.monitor);
+			}
+		} catch (IOException e) {
+			log.warn("ERROR- Unable to send message to client: {}", Session(client).getLoginId());
 		}
 	}
 
 	private void buildUserList(int port) {
-		File file = new File("server" + this.getPort() + ".txt");
+		//The text file only holds the accounts created since the last snapshot
+		LogAccountStore store = new LogAccountStore(new File("server" + port + ".txt"), new File("server" + port + ".accounts"), log);
 		try {
-			if(!file.createNewFile()) {
-				try (BufferedReader buffer = new BufferedReader(new FileReader("server" + port + ".txt"))) {
-					String current;
-					while ((current = buffer.readLine()) != null) {
-						String[] user = current.split(" ");
-						users.add(user[0]);
-						passwords.add(user[1]);
-					}
-				}catch (IOException e){
-				}
-			}
+			store.load();
 		} catch (IOException e) {
-			serverUI.display("Error - Could not creat account file.");
+			log.error("Error - Could not read account file, new accounts will not be saved.");
 		}
+		accounts = store;
 	}
 
 	public static void main(String[] args) 
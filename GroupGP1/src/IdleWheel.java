@@ -0,0 +1,158 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.lloseng.ocsf.server.ConnectionToClient;
+
+/**
+ * Hashed timing wheel telling when clients have been inactive for a while.
+ * Activity only stamps the client's entry with System.nanoTime(). Each entry
+ * sits in the slot of its idle deadline and is only looked at when the wheel
+ * reaches that slot: it is then either idle, or moved to the slot of its new
+ * deadline if the client was active since.
+ */
+public class IdleWheel {
+
+	/**
+	 * Told about the clients that became idle
+	 */
+	public interface Listener {
+		void clientIdle(ConnectionToClient client);
+	}
+
+	/**
+	 * Activity of one client
+	 */
+	public static final class Entry {
+		private final ConnectionToClient client;
+		private volatile long lastActive;
+		//In a slot of the wheel
+		private volatile boolean armed;
+		private volatile boolean cancelled;
+		//Next entry in the same slot, guarded by the wheel
+		private Entry next;
+
+		private Entry(ConnectionToClient client) {
+			this.client = client;
+		}
+	}
+
+	//Instance variables **********************************************
+
+	private final long timeout;
+	private final long tick;
+	private final Listener listener;
+	//Entries of each slot, as linked lists
+	private final Entry[] slots;
+	//Last tick whose slot was processed
+	private long processedTick;
+
+	//Constructor ****************************************************
+
+	/**
+	 * Creates a wheel for the given idle time, checked about once per tick
+	 */
+	public IdleWheel(long timeout, long tick, TimeUnit unit, Listener listener) {
+		this.timeout = unit.toNanos(timeout);
+		this.tick = unit.toNanos(tick);
+		this.listener = listener;
+		//One turn of the wheel covers the idle time, so most entries are seen once
+		int count = 1;
+		while (count <= this.timeout / this.tick)
+			count *= 2;
+		slots = new Entry[count];
+		processedTick = Math.floorDiv(System.nanoTime(), this.tick);
+	}
+
+	//Instance methods ************************************************
+
+	/**
+	 * Starts watching a client, active from now on
+	 */
+	public Entry register(ConnectionToClient client) {
+		Entry entry = new Entry(client);
+		entry.lastActive = System.nanoTime();
+		Schedule(entry);
+		return entry;
+	}
+
+	/**
+	 * Records activity of the client, only taking the wheel lock if it had become idle
+	 */
+	public void touch(Entry entry) {
+		entry.lastActive = System.nanoTime();
+		if (!entry.armed && !entry.cancelled)
+			Schedule(entry);
+	}
+
+	/**
+	 * Stops watching the client, its entry leaves the wheel when its slot comes up
+	 */
+	public void cancel(Entry entry) {
+		entry.cancelled = true;
+	}
+
+	/**
+	 * Processes the slots up to the current time and tells the listener about
+	 * the clients that became idle. Called periodically, e.g. by a timer.
+	 */
+	public void advance() {
+		long now = Math.floorDiv(System.nanoTime(), tick);
+		List<Entry> expired = null;
+		synchronized (this) {
+			//After a long pause, one turn is enough to see every entry
+			if (now - processedTick > slots.length)
+				processedTick = now - slots.length;
+			while (processedTick < now) {
+				processedTick++;
+				int slot = (int) (processedTick & (slots.length - 1));
+				Entry entry = slots[slot];
+				slots[slot] = null;
+				while (entry != null) {
+					Entry next = entry.next;
+					entry.next = null;
+					if (entry.cancelled) {
+						entry.armed = false;
+					} else if (DeadlineTick(entry) <= processedTick) {
+						entry.armed = false;
+						if (expired == null)
+							expired = new ArrayList<Entry>();
+						expired.add(entry);
+					} else {
+						Insert(entry);
+					}
+					entry = next;
+				}
+			}
+		}
+		if (expired == null)
+			return;
+		for (Entry entry : expired) {
+			listener.clientIdle(entry.client);
+			//Activity that raced with the expiry may have seen the entry still armed
+			if (!entry.cancelled && DeadlineTick(entry) > now)
+				Schedule(entry);
+		}
+	}
+
+	private synchronized void Schedule(Entry entry) {
+		if (entry.armed)
+			return;
+		entry.armed = true;
+		Insert(entry);
+	}
+
+	/**
+	 * Links the entry in the slot of its deadline, or of the next tick if that passed
+	 */
+	private void Insert(Entry entry) {
+		long deadline = Math.max(DeadlineTick(entry), processedTick + 1);
+		int slot = (int) (deadline & (slots.length - 1));
+		entry.next = slots[slot];
+		slots[slot] = entry;
+	}
+
+	private long DeadlineTick(Entry entry) {
+		return Math.floorDiv(entry.lastActive + timeout, tick);
+	}
+}
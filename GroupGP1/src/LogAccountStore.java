@@ -0,0 +1,247 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Account store made of a memory mapped snapshot of the accounts and of an
+ * append-only log of the changes since: an "id pw" line for each new account
+ * and an "id" line for each deleted one. The changes are also kept in a hash
+ * map, looked up before the snapshot.
+ * A background thread writes the changes in batches and, once the log grows
+ * large, writes a new snapshot and empties the log. A log with no snapshot,
+ * such as the account files of older servers, is imported that way.
+ * Should the writer fail, the failure is reported to the server log and the
+ * store refuses any further change, since it could not be saved.
+ */
+public class LogAccountStore implements AccountStore {
+
+	//Class variables *************************************************
+
+	//Lines written and synced at once, at most
+	private static final int MAX_BATCH = 4096;
+	//A new snapshot is written once the log has more lines than there are accounts...
+	private static final int COMPACTION_MIN_RECORDS = 1024;
+	//...or this many lines, which bounds the lines read at startup
+	private static final int COMPACTION_MAX_RECORDS = 64 * 1024;
+	//Queued by close to stop the writer, never a valid line
+	private static final String END = "";
+	//Change recorded for a deleted account, never a password as those are read from single lines
+	private static final String REMOVED = "\n";
+
+	//Instance variables **********************************************
+
+	private final File file;
+	private final File snapshotFile;
+	private volatile AccountSnapshot snapshot = AccountSnapshot.EMPTY;
+	//Password of each login id changed since the snapshot, or REMOVED
+	private final Map<String, String> changes = new ConcurrentHashMap<String, String>();
+	//Lines waiting for the writer, in the order of the changes
+	private final BlockingQueue<String> pending = new LinkedBlockingQueue<String>();
+	private volatile int size;
+	//Lines in the log, only used by the writer once loaded
+	private int records;
+	//True when the log was read without a snapshot, as written by older servers
+	private boolean imported;
+	private Thread writer;
+	private volatile IOException failure;
+	private final ServerLog log;
+
+	//Constructor ****************************************************
+
+	public LogAccountStore(File file, File snapshotFile, ServerLog log) {
+		this.file = file;
+		this.snapshotFile = snapshotFile;
+		this.log = log;
+	}
+
+	//Instance methods ************************************************
+
+	/**
+	 * Maps the snapshot and reads the log, if any, and starts writing the changes.
+	 * If they cannot be read the changes are only kept in memory.
+	 */
+	public void load() throws IOException {
+		imported = !snapshotFile.exists();
+		snapshot = AccountSnapshot.open(snapshotFile);
+		size = snapshot.count();
+		if (file.exists()) {
+			try (BufferedReader log = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = log.readLine()) != null) {
+					Replay(line);
+				}
+			}
+		}
+		writer = new Thread(this::WriteRecords, "AccountStore-" + file.getName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public boolean exists(String id) {
+		return GetPassword(id) != null;
+	}
+
+	@Override
+	public boolean checkPassword(String id, String pw) {
+		String stored = GetPassword(id);
+		return stored != null && stored.equals(pw);
+	}
+
+	@Override
+	public synchronized boolean add(String id, String pw) {
+		if (failure != null || exists(id))
+			return false;
+		changes.put(id, pw);
+		pending.add(id + " " + pw);
+		size++;
+		return true;
+	}
+
+	@Override
+	public synchronized boolean remove(String id) {
+		if (failure != null || !exists(id))
+			return false;
+		changes.put(id, REMOVED);
+		pending.add(id);
+		size--;
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Waits for the pending changes to be written, and stops the writer
+	 */
+	@Override
+	public void close() throws IOException {
+		if (writer != null) {
+			pending.add(END);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writer = null;
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Returns the password of the account, or null if there is none
+	 */
+	private String GetPassword(String id) {
+		//The changes are looked up first, a new snapshot only replaces them once in place
+		String pw = changes.get(id);
+		if (pw == null)
+			return snapshot.get(id);
+		return pw == REMOVED ? null : pw;
+	}
+
+	/**
+	 * Applies a line of the log to the accounts
+	 */
+	private void Replay(String line) {
+		int space = line.indexOf(' ');
+		if (space > 0) {
+			String id = line.substring(0, space);
+			if (!exists(id))
+				size++;
+			changes.put(id, line.substring(space + 1));
+		} else if (!line.isEmpty()) {
+			if (exists(line))
+				size--;
+			if (snapshot.get(line) != null)
+				changes.put(line, REMOVED);
+			else
+				changes.remove(line);
+		}
+		records++;
+	}
+
+	/**
+	 * Run by the writer thread: appends the pending lines to the log,
+	 * syncing once per batch rather than once per change
+	 */
+	private void WriteRecords() {
+		List<String> batch = new ArrayList<String>();
+		try {
+			//An imported log is compacted at once, so the next start only maps the snapshot
+			if (NeedsCompaction() || (imported && records > 0))
+				Compact();
+			FileOutputStream stream = new FileOutputStream(file, true);
+			Writer log = OpenLog(stream);
+			boolean ended = false;
+			while (!ended) {
+				batch.add(pending.take());
+				pending.drainTo(batch, MAX_BATCH - 1);
+				for (String record : batch) {
+					if (record == END) {
+						ended = true;
+					} else {
+						log.write(record);
+						log.write(System.lineSeparator());
+						records++;
+					}
+				}
+				batch.clear();
+				log.flush();
+				stream.getFD().sync();
+
+				if (!ended && NeedsCompaction()) {
+					log.close();
+					Compact();
+					stream = new FileOutputStream(file, true);
+					log = OpenLog(stream);
+				}
+			}
+			log.close();
+		} catch (IOException e) {
+			failure = e;
+			log.error("Error - Could not write account file {}, accounts can no longer be changed: {}", file, e.getMessage());
+		} catch (InterruptedException e) {
+			//Stopped without close, the lines still pending are lost
+		}
+	}
+
+	private boolean NeedsCompaction() {
+		return records >= COMPACTION_MAX_RECORDS || (records >= COMPACTION_MIN_RECORDS && records > size);
+	}
+
+	/**
+	 * Writes a snapshot with the changes and empties the log. Changes made
+	 * meanwhile stay in the map and get appended to the emptied log.
+	 */
+	private void Compact() throws IOException {
+		Map<String, String> written = new HashMap<String, String>(changes);
+		Map<String, String> merged = new HashMap<String, String>(written);
+		merged.replaceAll((id, pw) -> pw == REMOVED ? null : pw);
+
+		File compacted = new File(snapshotFile.getPath() + ".tmp");
+		AccountSnapshot.write(compacted, snapshot, merged);
+		Files.move(compacted.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		snapshot = AccountSnapshot.open(snapshotFile);
+		for (Map.Entry<String, String> change : written.entrySet())
+			changes.remove(change.getKey(), change.getValue());
+
+		//Should the server stop before this, replaying the log again changes nothing
+		new FileOutputStream(file).close();
+		records = 0;
+	}
+
+	private static Writer OpenLog(FileOutputStream stream) {
+		return new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 64 * 1024);
+	}
+}
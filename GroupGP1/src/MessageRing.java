@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last messages added, in a fixed number of slots reused in turn. Adding
+ * and reading take no lock: each message gets the next sequence number and
+ * the slot of that number, and a reader checks the number of the message it
+ * finds in a slot, so a message overwritten while being read is skipped
+ * rather than shown out of order. Readers allocate nothing:
+ *
+ *   for (long seq = ring.oldest(), end = ring.next(); seq < end; seq++) {
+ *       T msg = ring.get(seq);
+ *       if (msg != null) ...
+ *   }
+ */
+public class MessageRing<T> {
+
+	private static final class Slot<T> {
+		final long seq;
+		final T value;
+
+		Slot(long seq, T value) {
+			this.seq = seq;
+			this.value = value;
+		}
+	}
+
+	//Instance variables **********************************************
+
+	private final AtomicReferenceArray<Slot<T>> slots;
+	private final int mask;
+	//Sequence number of the next message
+	private final AtomicLong next = new AtomicLong();
+
+	//Constructor ****************************************************
+
+	/**
+	 * Creates a ring keeping at least the given number of messages
+	 */
+	public MessageRing(int capacity) {
+		int size = 1;
+		while (size < capacity)
+			size *= 2;
+		slots = new AtomicReferenceArray<Slot<T>>(size);
+		mask = size - 1;
+	}
+
+	//Instance methods ************************************************
+
+	public void add(T value) {
+		long seq = next.getAndIncrement();
+		Slot<T> slot = new Slot<T>(seq, value);
+		int index = (int) (seq & mask);
+		Slot<T> current;
+		do {
+			current = slots.get(index);
+			//A writer that was held up must not replace a later message
+			if (current != null && current.seq > seq)
+				return;
+		} while (!slots.compareAndSet(index, current, slot));
+	}
+
+	/**
+	 * @return the sequence number of the next message added
+	 */
+	public long next() {
+		return next.get();
+	}
+
+	/**
+	 * @return the sequence number of the oldest message that may still be kept
+	 */
+	public long oldest() {
+		return Math.max(next.get() - slots.length(), 0);
+	}
+
+	public boolean isEmpty() {
+		return next.get() == 0;
+	}
+
+	/**
+	 * @return the message with the given sequence number, or null if it was
+	 *   overwritten or is not completely added yet
+	 */
+	public T get(long seq) {
+		Slot<T> slot = slots.get((int) (seq & mask));
+		return slot != null && slot.seq == seq ? slot.value : null;
+	}
+}
@@ -0,0 +1,180 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.ChatMessage;
+
+/**
+ * Private messages kept for users that are not logged in, until they are.
+ * The latest messages of each user are kept in memory; when a user has too
+ * many, or all users together do, they are appended to the user's file in
+ * the inbox directory, so the oldest messages are always on disk and the
+ * newest in memory. The messages left in memory are written by close.
+ * A file holds records of
+ *   timestamp (long), sender length (int), sender, body length (int), body
+ */
+public class OfflineInbox {
+
+	/**
+	 * The messages of one user, guarded by itself
+	 */
+	private static final class Box {
+		final List<ChatMessage> messages = new ArrayList<ChatMessage>();
+	}
+
+	//Instance variables **********************************************
+
+	private final File directory;
+	//Messages kept in memory for one user, and for all of them
+	private final int userLimit;
+	private final int totalLimit;
+	//Size of a user's file past which messages are refused
+	private final long maxFileLength;
+	private final Map<String, Box> boxes = new ConcurrentHashMap<String, Box>();
+	private final AtomicInteger inMemory = new AtomicInteger();
+
+	//Constructor ****************************************************
+
+	public OfflineInbox(File directory, int userLimit, int totalLimit, long maxFileLength) {
+		this.directory = directory;
+		this.userLimit = userLimit;
+		this.totalLimit = totalLimit;
+		this.maxFileLength = maxFileLength;
+	}
+
+	//Instance methods ************************************************
+
+	/**
+	 * Keeps a private message for its target
+	 * @return false if the target already has too many messages waiting
+	 */
+	public boolean deposit(ChatMessage msg) throws IOException {
+		while (true) {
+			Box box = boxes.computeIfAbsent(msg.getTarget(), id -> new Box());
+			synchronized (box) {
+				//A box emptied by collect is no longer in the map
+				if (boxes.get(msg.getTarget()) != box)
+					continue;
+				File file = UserFile(msg.getTarget());
+				if (file.length() >= maxFileLength)
+					return false;
+				box.messages.add(msg);
+				int total = inMemory.incrementAndGet();
+				if (box.messages.size() >= userLimit || total > totalLimit) {
+					int spilled = box.messages.size();
+					Spill(file, box.messages);
+					inMemory.addAndGet(-spilled);
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Removes and returns the messages kept for a user, oldest first
+	 */
+	public List<ChatMessage> collect(String id) throws IOException {
+		List<ChatMessage> messages = new ArrayList<ChatMessage>();
+		//Taking the box, even a new one, keeps deposits out while the file is read
+		Box box = boxes.computeIfAbsent(id, key -> new Box());
+		synchronized (box) {
+			ReadFile(UserFile(id), id, messages);
+			messages.addAll(box.messages);
+			inMemory.addAndGet(-box.messages.size());
+			box.messages.clear();
+			boxes.remove(id, box);
+		}
+		return messages;
+	}
+
+	/**
+	 * Writes the messages kept in memory to disk
+	 */
+	public void close() throws IOException {
+		for (Map.Entry<String, Box> entry : boxes.entrySet()) {
+			Box box = entry.getValue();
+			synchronized (box) {
+				int spilled = box.messages.size();
+				Spill(UserFile(entry.getKey()), box.messages);
+				inMemory.addAndGet(-spilled);
+			}
+		}
+	}
+
+	/**
+	 * Appends the messages to the file and forgets them
+	 */
+	private void Spill(File file, List<ChatMessage> messages) throws IOException {
+		if (messages.isEmpty())
+			return;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+			for (ChatMessage msg : messages) {
+				out.writeLong(msg.getTimestamp());
+				WriteString(out, msg.getSender());
+				WriteString(out, msg.getBody());
+			}
+		}
+		messages.clear();
+	}
+
+	/**
+	 * Adds the messages of the file to the list and deletes it
+	 */
+	private static void ReadFile(File file, String id, List<ChatMessage> messages) throws IOException {
+		if (!file.exists())
+			return;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				long timestamp;
+				try {
+					timestamp = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				String sender = ReadString(in);
+				String body = ReadString(in);
+				messages.add(new ChatMessage(ChatMessage.Type.PRIVATE, sender, id, null, body, timestamp, null));
+			}
+		} catch (EOFException e) {
+			//A record cut short by a crash, the ones before it are kept
+		}
+		if (!file.delete())
+			throw new IOException("Cannot delete " + file);
+	}
+
+	private static void WriteString(DataOutputStream out, String s) throws IOException {
+		byte[] text = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(text.length);
+		out.write(text);
+	}
+
+	private static String ReadString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > in.available())
+			throw new EOFException();
+		byte[] text = new byte[length];
+		in.readFully(text);
+		return new String(text, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * File of a user: letters, digits, '-' and '_' are kept in its name,
+	 * any other byte is written as %xx
+	 */
+	private File UserFile(String id) {
+		StringBuilder name = new StringBuilder();
+		for (byte b : id.getBytes(StandardCharsets.UTF_8)) {
+			if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_')
+				name.append((char) b);
+			else
+				name.append('%').append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return new File(directory, name.append(".inbox").toString());
+	}
+}
@@ -0,0 +1,337 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.ChatMessage;
+
+/**
+ * Inverted index of the recent chat messages, for #search. Each message gets
+ * a number and is kept in a MessageRing; each word of a message is recorded
+ * in the posting list of the word, which holds the numbers of the messages
+ * containing it, in order. Posting lists are kept per scope: a channel, for
+ * the messages sent to it, or a user, for the private messages that user
+ * sent or received, so a search only reads what the user may see.
+ * Messages that left the ring are skipped, and removed from the lists once
+ * per turn of the ring.
+ * Messages are indexed by a background thread, in batches, so sending a
+ * message only queues it; it can be searched for shortly after. Messages
+ * that find the queue full are not indexed, and counted.
+ */
+public class SearchIndex {
+
+	/**
+	 * A page of the messages found
+	 */
+	public static final class Result {
+		private final List<ChatMessage> messages;
+		private final int total;
+
+		private Result(List<ChatMessage> messages, int total) {
+			this.messages = messages;
+			this.total = total;
+		}
+
+		/**
+		 * @return the messages of the page, newest first
+		 */
+		public List<ChatMessage> getMessages() {
+			return messages;
+		}
+
+		/**
+		 * @return how many messages were found in all
+		 */
+		public int getTotal() {
+			return total;
+		}
+	}
+
+	/**
+	 * A message waiting for the indexer, with its words
+	 */
+	private static final class Entry {
+		final ChatMessage msg;
+		Set<String> words;
+
+		Entry(ChatMessage msg) {
+			this.msg = msg;
+		}
+	}
+
+	/**
+	 * Message numbers in increasing order
+	 */
+	private static final class Postings {
+		long[] ids = new long[4];
+		int size;
+
+		void add(long id) {
+			if (size > 0 && ids[size - 1] == id)
+				return;
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+		}
+
+		/**
+		 * Drops the numbers older than oldest
+		 */
+		void trim(long oldest) {
+			int first = 0;
+			while (first < size && ids[first] < oldest)
+				first++;
+			if (first == 0)
+				return;
+			System.arraycopy(ids, first, ids, 0, size - first);
+			size -= first;
+		}
+	}
+
+	//Class variables *************************************************
+
+	//Messages indexed at once, at most
+	private static final int MAX_BATCH = 256;
+
+	//Instance variables **********************************************
+
+	private final MessageRing<ChatMessage> messages;
+	private final int capacity;
+	//Posting list of each word, by scope, guarded by this index
+	private final Map<String, Map<String, Postings>> scopes = new HashMap<String, Map<String, Postings>>();
+	//Only used by the indexer
+	private long nextSweep;
+	private final BlockingQueue<Entry> pending;
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread indexer;
+
+	//Constructor ****************************************************
+
+	/**
+	 * Creates an index of at least the given number of recent messages,
+	 * holding at most queueCapacity messages not indexed yet
+	 */
+	public SearchIndex(int capacity, int queueCapacity) {
+		messages = new MessageRing<ChatMessage>(capacity);
+		this.capacity = capacity;
+		nextSweep = capacity;
+		pending = new ArrayBlockingQueue<Entry>(queueCapacity);
+		indexer = new Thread(this::IndexMessages, "SearchIndex");
+		indexer.setDaemon(true);
+		indexer.start();
+	}
+
+	//Instance methods ************************************************
+
+	/**
+	 * Queues a message sent to a channel, or a private message, to be indexed
+	 */
+	public void add(ChatMessage msg) {
+		if (!pending.offer(new Entry(msg)))
+			dropped.incrementAndGet();
+	}
+
+	/**
+	 * @return how many messages could not be queued since the index was created
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Finds the messages containing all the words of the query that a user
+	 * may see: those of its channel and its private messages, but none from
+	 * the users it blocks
+	 *
+	 * @param page the page wanted, from 1
+	 */
+	public Result search(String user, String channel, Set<String> blocked, String query, int page, int pageSize) {
+		Set<String> words = Words(query);
+		List<ChatMessage> found = new ArrayList<ChatMessage>();
+		if (words.isEmpty())
+			return new Result(found, 0);
+
+		long[] ids;
+		synchronized (this) {
+			long[] inChannel = channel == null ? new long[0] : Find(ChannelScope(channel), words);
+			long[] inPrivate = user == null ? new long[0] : Find(UserScope(user), words);
+			ids = Merge(inChannel, inPrivate);
+		}
+
+		int total = 0;
+		int skip = (page - 1) * pageSize;
+		for (int i = ids.length - 1; i >= 0; i--) {
+			ChatMessage msg = messages.get(ids[i]);
+			if (msg == null || blocked.contains(msg.getSender()))
+				continue;
+			if (total >= skip && found.size() < pageSize)
+				found.add(msg);
+			total++;
+		}
+		return new Result(found, total);
+	}
+
+	/**
+	 * Run by the indexer thread: finds the words of the queued messages, then
+	 * records them all under one lock, and sweeps the lists once per turn
+	 */
+	private void IndexMessages() {
+		List<Entry> batch = new ArrayList<Entry>();
+		try {
+			while (true) {
+				batch.add(pending.take());
+				pending.drainTo(batch, MAX_BATCH - 1);
+				for (Entry entry : batch)
+					entry.words = Words(entry.msg.getBody());
+				synchronized (this) {
+					for (Entry entry : batch) {
+						if (!entry.words.isEmpty())
+							Index(entry.msg, entry.words);
+					}
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			//Stopped, the messages still queued are not indexed
+		}
+	}
+
+	/**
+	 * Records the words of a message, called with the index locked
+	 */
+	private void Index(ChatMessage msg, Set<String> words) {
+		long id = messages.next();
+		messages.add(msg);
+		if (msg.getType() == ChatMessage.Type.PRIVATE) {
+			Record(UserScope(msg.getSender()), words, id);
+			Record(UserScope(msg.getTarget()), words, id);
+		} else if (msg.getChannel() != null) {
+			Record(ChannelScope(msg.getChannel()), words, id);
+		}
+		if (id >= nextSweep) {
+			Sweep();
+			nextSweep = id + capacity;
+		}
+	}
+
+	private void Record(String scope, Set<String> words, long id) {
+		Map<String, Postings> index = scopes.computeIfAbsent(scope, key -> new HashMap<String, Postings>());
+		for (String word : words)
+			index.computeIfAbsent(word, key -> new Postings()).add(id);
+	}
+
+	/**
+	 * Returns the numbers of the messages of the scope containing all the words
+	 */
+	private long[] Find(String scope, Set<String> words) {
+		Map<String, Postings> index = scopes.get(scope);
+		if (index == null)
+			return new long[0];
+		long[] ids = null;
+		int size = 0;
+		//The shortest lists first, so the intersection shrinks fast
+		List<Postings> lists = new ArrayList<Postings>();
+		for (String word : words) {
+			Postings postings = index.get(word);
+			if (postings == null)
+				return new long[0];
+			lists.add(postings);
+		}
+		lists.sort((a, b) -> Integer.compare(a.size, b.size));
+		for (Postings postings : lists) {
+			if (ids == null) {
+				ids = Arrays.copyOf(postings.ids, postings.size);
+				size = postings.size;
+				continue;
+			}
+			int kept = 0;
+			for (int i = 0, j = 0; i < size && j < postings.size; ) {
+				if (ids[i] < postings.ids[j])
+					i++;
+				else if (ids[i] > postings.ids[j])
+					j++;
+				else {
+					ids[kept++] = ids[i];
+					i++;
+					j++;
+				}
+			}
+			size = kept;
+		}
+		return Arrays.copyOf(ids, size);
+	}
+
+	/**
+	 * Merges two increasing lists of numbers
+	 */
+	private static long[] Merge(long[] a, long[] b) {
+		long[] merged = new long[a.length + b.length];
+		int i = 0, j = 0, k = 0;
+		while (i < a.length || j < b.length) {
+			if (j == b.length || (i < a.length && a[i] < b[j]))
+				merged[k++] = a[i++];
+			else if (i == a.length || b[j] < a[i])
+				merged[k++] = b[j++];
+			else {
+				merged[k++] = a[i++];
+				j++;
+			}
+		}
+		return Arrays.copyOf(merged, k);
+	}
+
+	/**
+	 * Removes the numbers of the messages that left the ring, and the words
+	 * and scopes left with none
+	 */
+	private void Sweep() {
+		long oldest = messages.oldest();
+		for (Iterator<Map<String, Postings>> scope = scopes.values().iterator(); scope.hasNext(); ) {
+			Map<String, Postings> index = scope.next();
+			for (Iterator<Postings> word = index.values().iterator(); word.hasNext(); ) {
+				Postings postings = word.next();
+				postings.trim(oldest);
+				if (postings.size == 0)
+					word.remove();
+			}
+			if (index.isEmpty())
+				scope.remove();
+		}
+	}
+
+	private static String ChannelScope(String channel) {
+		return "#" + channel;
+	}
+
+	private static String UserScope(String user) {
+		return "@" + user;
+	}
+
+	/**
+	 * The distinct words of a text, in lower case: runs of letters and digits
+	 */
+	private static Set<String> Words(String text) {
+		Set<String> words = new LinkedHashSet<String>();
+		if (text == null)
+			return words;
+		int length = text.length();
+		int i = 0;
+		while (i < length) {
+			while (i < length && !Character.isLetterOrDigit(text.charAt(i)))
+				i++;
+			int start = i;
+			while (i < length && Character.isLetterOrDigit(text.charAt(i)))
+				i++;
+			if (i > start)
+				words.add(text.substring(start, i).toLowerCase());
+		}
+		return words;
+	}
+}
@@ -0,0 +1,191 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.ChatIF;
+
+/**
+ * Leveled log of the server, shown on a ChatIF by a background thread so the
+ * threads handling the clients never wait for the console. A message is only
+ * queued with its arguments: "{}" in the format is replaced by the next
+ * argument by the writer thread, and only if the message is shown.
+ * The queue is bounded. Once it fills up, traces such as "Message received"
+ * are sampled, then dropped, so the other messages still get through;
+ * messages that find the queue full are dropped and counted.
+ */
+public class ServerLog {
+
+	/**
+	 * Importance of a message, traces are sent for every message handled
+	 */
+	public enum Level {
+		TRACE, INFO, WARN, ERROR
+	}
+
+	/**
+	 * A message waiting for the writer
+	 */
+	private static final class Entry {
+		final String format;
+		final Object[] args;
+
+		Entry(String format, Object[] args) {
+			this.format = format;
+			this.args = args;
+		}
+	}
+
+	//Class variables *************************************************
+
+	//Messages shown at once, at most
+	private static final int MAX_BATCH = 256;
+	//Traces kept when sampling, one in this many
+	private static final int SAMPLE_RATE = 16;
+	//Queued by close to stop the writer
+	private static final Entry END = new Entry("", new Object[0]);
+
+	//Instance variables **********************************************
+
+	private final ChatIF sink;
+	private final BlockingQueue<Entry> pending;
+	//Queue sizes from which traces are sampled, then dropped
+	private final int sampleThreshold;
+	private final int dropThreshold;
+	private volatile Level level = Level.TRACE;
+	private final AtomicInteger traceCount = new AtomicInteger();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread writer;
+
+	//Constructor ****************************************************
+
+	/**
+	 * Creates a log shown on the given interface, holding at most capacity
+	 * messages not shown yet
+	 */
+	public ServerLog(ChatIF sink, int capacity) {
+		this.sink = sink;
+		pending = new ArrayBlockingQueue<Entry>(capacity);
+		sampleThreshold = capacity / 4;
+		dropThreshold = capacity / 2;
+		writer = new Thread(this::WriteMessages, "ServerLog");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	//Instance methods ************************************************
+
+	public Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * Sets the least important level shown
+	 */
+	public void setLevel(Level level) {
+		this.level = level;
+	}
+
+	public boolean isEnabled(Level level) {
+		return level.compareTo(this.level) >= 0;
+	}
+
+	public void trace(String format, Object... args) {
+		if (!isEnabled(Level.TRACE))
+			return;
+		int queued = pending.size();
+		if (queued >= dropThreshold
+			|| (queued >= sampleThreshold && traceCount.incrementAndGet() % SAMPLE_RATE != 0)) {
+			dropped.incrementAndGet();
+			return;
+		}
+		Enqueue(format, args);
+	}
+
+	public void info(String format, Object... args) {
+		if (isEnabled(Level.INFO))
+			Enqueue(format, args);
+	}
+
+	public void warn(String format, Object... args) {
+		if (isEnabled(Level.WARN))
+			Enqueue(format, args);
+	}
+
+	public void error(String format, Object... args) {
+		if (isEnabled(Level.ERROR))
+			Enqueue(format, args);
+	}
+
+	/**
+	 * @return how many messages were dropped since the log was created
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Waits for the queued messages to be shown, and stops the writer
+	 */
+	public void close() {
+		try {
+			pending.put(END);
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void Enqueue(String format, Object[] args) {
+		if (!pending.offer(new Entry(format, args)))
+			dropped.incrementAndGet();
+	}
+
+	/**
+	 * Run by the writer thread: formats and shows the queued messages in batches
+	 */
+	private void WriteMessages() {
+		List<Entry> batch = new ArrayList<Entry>();
+		StringBuilder line = new StringBuilder();
+		long reported = 0;
+		try {
+			boolean ended = false;
+			while (!ended) {
+				batch.add(pending.take());
+				pending.drainTo(batch, MAX_BATCH - 1);
+				for (Entry entry : batch) {
+					if (entry == END) {
+						ended = true;
+					} else {
+						line.setLength(0);
+						Format(line, entry);
+						sink.display(line.toString());
+					}
+				}
+				batch.clear();
+
+				long drops = dropped.get();
+				if (drops != reported) {
+					sink.display("(" + (drops - reported) + " log messages dropped)");
+					reported = drops;
+				}
+			}
+		} catch (InterruptedException e) {
+			//Stopped without close, the messages still queued are lost
+		}
+	}
+
+	private static void Format(StringBuilder line, Entry entry) {
+		String format = entry.format;
+		int from = 0;
+		int arg = 0;
+		int at;
+		while (arg < entry.args.length && (at = format.indexOf("{}", from)) >= 0) {
+			line.append(format, from, at).append(entry.args[arg++]);
+			from = at + 2;
+		}
+		line.append(format, from, format.length());
+	}
+}
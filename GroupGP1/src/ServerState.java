@@ -0,0 +1,155 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the server knows about its users that should survive a restart: the
+ * users blocked or muted on the console and, for each logged in user, its
+ * channel, status, forwarding monitor and blocks. The state is a copy made
+ * at one point in time, so it can be written while the server goes on.
+ * The file holds:
+ * <pre>
+ *   header:  "CHST" version                             (2 ints)
+ *   list:    count(int) loginIds(UTF)                   blocked, then muted
+ *   users:   count(int), then for each user:
+ *            loginId(UTF) channel? unavailable(boolean) monitor?
+ *            count(int) blockedIds(UTF)
+ * </pre>
+ * where "?" is a boolean telling if the string follows.
+ */
+class ServerState {
+
+	/**
+	 * The state of one user
+	 */
+	static final class User {
+		final String channel;
+		final boolean unavailable;
+		final String monitor;
+		final List<String> blocked;
+
+		User(String channel, boolean unavailable, String monitor, List<String> blocked) {
+			this.channel = channel;
+			this.unavailable = unavailable;
+			this.monitor = monitor;
+			this.blocked = blocked;
+		}
+	}
+
+	//Class variables *************************************************
+
+	private static final int MAGIC = ('C' << 24) | ('H' << 16) | ('S' << 8) | 'T';
+	private static final int VERSION = 1;
+
+	//State of a server that has never written one
+	static final ServerState EMPTY = new ServerState(Collections.<String>emptyList(),
+		Collections.<String>emptyList(), Collections.<String, User>emptyMap());
+
+	//Instance variables **********************************************
+
+	final List<String> blockedClients;
+	final List<String> mutedUsers;
+	final Map<String, User> users;
+
+	//Constructor ****************************************************
+
+	ServerState(List<String> blockedClients, List<String> mutedUsers, Map<String, User> users) {
+		this.blockedClients = blockedClients;
+		this.mutedUsers = mutedUsers;
+		this.users = users;
+	}
+
+	//Instance methods ************************************************
+
+	/**
+	 * Returns the state as the bytes of its file
+	 */
+	byte[] encode() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		WriteList(out, blockedClients);
+		WriteList(out, mutedUsers);
+		out.writeInt(users.size());
+		for (Map.Entry<String, User> entry : users.entrySet()) {
+			User user = entry.getValue();
+			out.writeUTF(entry.getKey());
+			WriteOptional(out, user.channel);
+			out.writeBoolean(user.unavailable);
+			WriteOptional(out, user.monitor);
+			WriteList(out, user.blocked);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	//Class methods ***************************************************
+
+	/**
+	 * Reads the state written in the file, or the empty state if there is no file
+	 */
+	static ServerState read(File file) throws IOException {
+		if (!file.exists())
+			return EMPTY;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(file + " is not a server state file");
+			List<String> blockedClients = ReadList(in);
+			List<String> mutedUsers = ReadList(in);
+			int count = in.readInt();
+			Map<String, User> users = new LinkedHashMap<String, User>();
+			for (int i = 0; i < count; i++) {
+				String id = in.readUTF();
+				String channel = ReadOptional(in);
+				boolean unavailable = in.readBoolean();
+				String monitor = ReadOptional(in);
+				users.put(id, new User(channel, unavailable, monitor, ReadList(in)));
+			}
+			return new ServerState(blockedClients, mutedUsers, users);
+		}
+	}
+
+	/**
+	 * Replaces the file with the given bytes, all at once
+	 */
+	static void write(File file, byte[] state) throws IOException {
+		File written = new File(file.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(written)) {
+			out.write(state);
+			out.getFD().sync();
+		}
+		Files.move(written.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void WriteList(DataOutputStream out, List<String> list) throws IOException {
+		out.writeInt(list.size());
+		for (String s : list)
+			out.writeUTF(s);
+	}
+
+	private static List<String> ReadList(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0)
+			throw new StreamCorruptedException("invalid count: " + count);
+		List<String> list = new ArrayList<String>(Math.min(count, 1024));
+		for (int i = 0; i < count; i++)
+			list.add(in.readUTF());
+		return list;
+	}
+
+	private static void WriteOptional(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String ReadOptional(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -6,6 +6,7 @@
 package client;
 
 import com.lloseng.ocsf.client.*;
+import com.lloseng.ocsf.io.*;
 import common.*;
 import java.io.*;
 import java.util.ArrayList;
@@ -33,6 +34,8 @@ public class ChatClient extends AbstractClient
 	private String monitor;
 	private Boolean connected;  
 	private Boolean isForwarding;	
+	//Handlers of the commands typed by the user
+	private final CommandRegistry<ChatIF> commands = new CommandRegistry<ChatIF>(true);
 
 	//Constructors ****************************************************
 
@@ -48,6 +51,11 @@ public class ChatClient extends AbstractClient
 		clientUI = UI;
 		connected = false;
 		isForwarding = false;
+		//Reset the output stream regularly so a long session does not keep every line sent
+		setStreamResetBudget(100, 64 * 1024);
+		//Chat messages come as envelopes: prefer their compact frames over Java serialization
+		setCodecs(new ChatMessageCodec(), new Utf8FrameCodec(), new JavaSerializationCodec());
+		registerCommands();
 	}
 
 	public ChatClient(String id, String pw, String host, int port, ChatIF UI) throws IOException {
@@ -56,6 +64,11 @@ public class ChatClient extends AbstractClient
 		password = pw;
 		loginId = id;
 		isForwarding = false;		
+		//Reset the output stream regularly so a long session does not keep every line sent
+		setStreamResetBudget(100, 64 * 1024);
+		//Chat messages come as envelopes: prefer their compact frames over Java serialization
+		setCodecs(new ChatMessageCodec(), new Utf8FrameCodec(), new JavaSerializationCodec());
+		registerCommands();
 
 		openConnection();
 		try {
@@ -75,18 +88,24 @@ public class ChatClient extends AbstractClient
 	 */
 	public void handleMessageFromServer(Object msg) 
 	{
-		String message = msg.toString();
-		if(!message.startsWith("#")){
+		if(msg instanceof ChatMessage){
 			if(!isForwarding)
-				clientUI.display(message);
+				clientUI.display(msg.toString());
 			else {
-				//In meeting so forward msg to monitor
+				//In meeting so forward msg to monitor, the server fills in who forwards it
 				try {
-					sendToServer("#forward_message " + monitor + " " + message);
+					sendToServer(ChatMessage.forward(null, monitor, (ChatMessage) msg));
 				} catch (IOException e) {
 					clientUI.display("Unable to forward message to server.");
 				}
 			}
+			return;
+		}
+
+		String message = msg.toString();
+		if(!message.startsWith("#")){
+			//Notices from the server are not chat messages, they are never forwarded
+			clientUI.display(message);
 		} else { //command
 			int cmdEnd = message.indexOf(' ');
 			if (cmdEnd < 1) 
@@ -152,159 +171,101 @@ public class ChatClient extends AbstractClient
 				clientUI.display("Could not send message to server. Terminating client.");
 				quit();
 			}
-		} else { //command
-			int cmdEnd = message.indexOf(' ');
-			if (cmdEnd < 1) 
-				cmdEnd = message.length();
-			String cmd = message.substring(1, cmdEnd);
-
-			//Switch based on user command
-			switch (cmd.toLowerCase()) {
-			case "quit" :
-				quit();
-				break;
-			case "logoff" :
-				if(!connected)
-					clientUI.display("You are already logged off.");
-				else {
-					try {
-						closeConnection();
-						connected = false;
-						clientUI.display("Connection closed.");
-					} catch (IOException e) {
-						clientUI.display("Unable to logoff.");
-					}
-				}
-				break;
-			case "login" :
-				if(connected)
-					clientUI.display("You are already logged in.");
-				else {
-					try {
-						openConnection();
-						sendToServer("#login " + loginId);
-						connected = true;
-					} catch (IOException e) {
-						clientUI.display("Unable to login.");
-					}
-				}
-				break;
-			case "sethost" :
-				if(connected)
-					clientUI.display("Cannot set host while connected to server.");
-				else {
-					String host = message.substring(cmdEnd +1, message.length());
-					if(host.length() > 0 ) {
-						setHost(host);
-						clientUI.display("Host set to: " + host);
-					} else {
-						clientUI.display("Host could not be set");
-					}
-				}
-				break;
-			case "setport" :
-				if(connected)
-					clientUI.display("Cannot set port while connected to server.");
-				else {
-					try{
-						int port = Integer.parseInt(message.substring(cmdEnd +1, message.length()));
-						setPort(port);
-						clientUI.display("Port set to: " + port);
-					}catch (NumberFormatException e){
-						clientUI.display("Port could not be set");
-					}					
-				}
-				break;
-			case "gethost" :
-				clientUI.display("Current Host: " + getHost());				
-				break;
-			case "getport" :
-				clientUI.display("Current Port: " + getPort());				
-				break;
-			case "block" :
-				try{
-					sendToServer(message);
+		} else if (!commands.dispatch(clientUI, message)) { //command
+			clientUI.display("Command not recognized.");
+		}
+	}
 
-				} catch (IOException e) {
-					clientUI.display("Messages could not be blocked.");
-				}
-				break;
-			case "unblock" :
+	/**
+	 * Registers the handlers of the commands typed by the user
+	 */
+	private void registerCommands() {
+		commands.register("quit", (ui, line) -> quit());
+		commands.register("logoff", (ui, line) -> {
+			if(!connected)
+				ui.display("You are already logged off.");
+			else {
 				try {
-					sendToServer(message);
+					closeConnection();
+					connected = false;
+					ui.display("Connection closed.");
 				} catch (IOException e) {
-					clientUI.display("Messages could not be unblocked.");
+					ui.display("Unable to logoff.");
 				}
-				break;
-			case "whoiblock" :
-				try{
-					sendToServer(message);
-				} catch (IOException e){
-					clientUI.display("Could not get list of blocked users.");
-				}
-				break;
-			case "whoblocksme" :
+			}
+		});
+		commands.register("login", (ui, line) -> {
+			if(connected)
+				ui.display("You are already logged in.");
+			else {
 				try {
-					sendToServer(message);
-				} catch (IOException e) {
-					clientUI.display("Block list could not be retrived.");
-				}
-				break;
-			case "setchannel":
-				try {sendToServer(message);
-				} catch (IOException e) {
-					clientUI.display("Channel could not be set.");
-				}
-				break;
-			case "private":
-				try {sendToServer(message);
-				} catch (IOException e) {
-					clientUI.display("Could not send private message.");
-				}
-				break;
-			case "meeting" :
-				try {sendToServer(message);
+					openConnection();
+					sendToServer("#login " + loginId);
+					connected = true;
 				} catch (IOException e) {
-					clientUI.display("Could not initiate meeting.");
-				}				
-				break;
-			case "endmeeting":
-				isForwarding = false;
-				break;
-			case "status":
-				try {sendToServer(message);
-				} catch (IOException e) {
-					clientUI.display("Status could not be set.");
+					ui.display("Unable to login.");
 				}
-				break;
-			case "available":
-				try {sendToServer(message);
-				} catch (IOException e) {
-					clientUI.display("Could not change status.");
-				}				
-				break;
-			case "notavailable":
-				try {sendToServer(message);
-				} catch (IOException e) {
-					clientUI.display("Could not change status.");
-				}	
-				break;
-			case "forward":
-				try {sendToServer(message);
-				} catch (IOException e) {
-					clientUI.display("Could not forward messages.");
-				}	
-				break;
-			case "endforward":
-				try {sendToServer(message);
-				} catch (IOException e) {
-					clientUI.display("Could not stop forwarding messages.");
+			}
+		});
+		commands.register("sethost", (ui, line) -> {
+			if(connected)
+				ui.display("Cannot set host while connected to server.");
+			else {
+				String host = line.rest(1);
+				if(host.length() > 0 ) {
+					setHost(host);
+					ui.display("Host set to: " + host);
+				} else {
+					ui.display("Host could not be set");
 				}
-				break;
-			default: 
-				clientUI.display("Command not recognized.");
 			}
-		}
+		});
+		commands.register("setport", (ui, line) -> {
+			if(connected)
+				ui.display("Cannot set port while connected to server.");
+			else {
+				try{
+					int port = Integer.parseInt(line.rest(1));
+					setPort(port);
+					ui.display("Port set to: " + port);
+				}catch (NumberFormatException e){
+					ui.display("Port could not be set");
+				}					
+			}
+		});
+		commands.register("gethost", (ui, line) -> ui.display("Current Host: " + getHost()));
+		commands.register("getport", (ui, line) -> ui.display("Current Port: " + getPort()));
+		commands.register("endmeeting", (ui, line) -> isForwarding = false);
+
+		//Commands handled by the server
+		registerServerCommand("block", "Messages could not be blocked.");
+		registerServerCommand("unblock", "Messages could not be unblocked.");
+		registerServerCommand("whoiblock", "Could not get list of blocked users.");
+		registerServerCommand("whoblocksme", "Block list could not be retrived.");
+		registerServerCommand("setchannel", "Channel could not be set.");
+		registerServerCommand("channels", "Channels could not be listed.");
+		registerServerCommand("history", "History could not be retrieved.");
+		registerServerCommand("search", "Messages could not be searched.");
+		registerServerCommand("private", "Could not send private message.");
+		registerServerCommand("meeting", "Could not initiate meeting.");
+		registerServerCommand("status", "Status could not be set.");
+		registerServerCommand("available", "Could not change status.");
+		registerServerCommand("notavailable", "Could not change status.");
+		registerServerCommand("forward", "Could not forward messages.");
+		registerServerCommand("endforward", "Could not stop forwarding messages.");
+	}
+
+	/**
+	 * Registers a command that is sent to the server as typed
+	 */
+	private void registerServerCommand(String name, String error) {
+		commands.register(name, (ui, line) -> {
+			try {
+				sendToServer(line.text());
+			} catch (IOException e) {
+				ui.display(error);
+			}
+		});
 	}
 
 	/**
@@ -0,0 +1,215 @@
+package common;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+
+/**
+ * A chat message as it travels between the server and the clients: what
+ * kind of message it is, who sent it, to whom and in which channel, its
+ * text and when the server made it. Routing reads the fields, so the
+ * text of a message is never parsed to find out where it came from; the
+ * line the user sees, such as <code>bob&gt; (Private) hi</code>, is only
+ * made by <code>toString</code>, when the message is displayed.<p>
+ *
+ * Messages are immutable. They are sent with the <code>ChatMessageCodec</code>,
+ * or with Java serialization.
+ *
+ * @see ChatMessageCodec
+ */
+public final class ChatMessage implements Serializable
+{
+  /**
+   * The kinds of messages.
+   */
+  public enum Type
+  {
+    /** A line sent to a channel, or a notice from one user to another. */
+    CHAT,
+    /** A private message between two users. */
+    PRIVATE,
+    /** A message typed on the server console. */
+    SERVER,
+    /** A message passed on by the user it was sent to. */
+    FORWARD
+  }
+
+  private static final long serialVersionUID = 1L;
+
+  //Instance variables **********************************************
+
+  private final Type type;
+  private final String sender;
+  private final String target;
+  private final String channel;
+  private final String body;
+  private final long timestamp;
+  private final ChatMessage forwarded;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a message from all its fields, as the codec does.
+   *
+   * @param type the kind of message.
+   * @param sender the login id of the sender, null for the server.
+   * @param target the login id of the recipient, null for a channel.
+   * @param channel the channel, null for a message to one user.
+   * @param body the text, null for a forwarded message.
+   * @param timestamp when the message was made, in milliseconds.
+   * @param forwarded the message that is passed on, for a forwarded
+   *   message only.
+   */
+  public ChatMessage(Type type, String sender, String target,
+    String channel, String body, long timestamp, ChatMessage forwarded)
+  {
+    if (type == null)
+      throw new NullPointerException("type");
+    if ((type == Type.FORWARD) != (forwarded != null))
+      throw new IllegalArgumentException("only forwarded messages carry another message");
+    this.type = type;
+    this.sender = sender;
+    this.target = target;
+    this.channel = channel;
+    this.body = body;
+    this.timestamp = timestamp;
+    this.forwarded = forwarded;
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * @return a line sent by a user to a channel.
+   */
+  public static ChatMessage chat(String sender, String channel, String body)
+  {
+    return new ChatMessage(Type.CHAT, sender, null, channel, body,
+      System.currentTimeMillis(), null);
+  }
+
+  /**
+   * @return a notice sent by a user, or on its behalf, to another user.
+   */
+  public static ChatMessage notice(String sender, String target, String body)
+  {
+    return new ChatMessage(Type.CHAT, sender, target, null, body,
+      System.currentTimeMillis(), null);
+  }
+
+  /**
+   * @return a private message between two users.
+   */
+  public static ChatMessage privateMessage(String sender, String target, String body)
+  {
+    return new ChatMessage(Type.PRIVATE, sender, target, null, body,
+      System.currentTimeMillis(), null);
+  }
+
+  /**
+   * @return a message from the server console.
+   */
+  public static ChatMessage server(String body)
+  {
+    return new ChatMessage(Type.SERVER, null, null, null, body,
+      System.currentTimeMillis(), null);
+  }
+
+  /**
+   * Makes a message passing another one on. A client asking the server
+   * to forward a message leaves the sender out, the server fills it in.
+   *
+   * @param sender the user passing the message on.
+   * @param target the user receiving it.
+   * @param original the message passed on.
+   * @return the forwarded message.
+   */
+  public static ChatMessage forward(String sender, String target, ChatMessage original)
+  {
+    return new ChatMessage(Type.FORWARD, sender, target, null, null,
+      System.currentTimeMillis(), original);
+  }
+
+  //Instance methods ************************************************
+
+  public Type getType()
+  {
+    return type;
+  }
+
+  public String getSender()
+  {
+    return sender;
+  }
+
+  public String getTarget()
+  {
+    return target;
+  }
+
+  public String getChannel()
+  {
+    return channel;
+  }
+
+  public String getBody()
+  {
+    return body;
+  }
+
+  public long getTimestamp()
+  {
+    return timestamp;
+  }
+
+  /**
+   * @return the message passed on by a forwarded message, null otherwise.
+   */
+  public ChatMessage getForwarded()
+  {
+    return forwarded;
+  }
+
+  /**
+   * @return the message as the user sees it.
+   */
+  public String toString()
+  {
+    StringBuilder line = new StringBuilder();
+    appendTo(line);
+    return line.toString();
+  }
+
+  /**
+   * Checks what the constructor checks, since Java serialization does
+   * not call it.
+   */
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException
+  {
+    in.defaultReadObject();
+    if (type == null)
+      throw new InvalidObjectException("type");
+    if ((type == Type.FORWARD) != (forwarded != null))
+      throw new InvalidObjectException("only forwarded messages carry another message");
+  }
+
+  private void appendTo(StringBuilder line)
+  {
+    switch (type)
+    {
+      case SERVER:
+        line.append("SERVER MSG> ").append(body);
+        break;
+      case PRIVATE:
+        line.append(sender).append("> (Private) ").append(body);
+        break;
+      case FORWARD:
+        line.append(sender).append("> ");
+        forwarded.appendTo(line);
+        break;
+      default:
+        line.append(sender).append("> ").append(body);
+    }
+  }
+}
@@ -0,0 +1,264 @@
+package common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import com.lloseng.ocsf.io.MessageCodec;
+import com.lloseng.ocsf.io.MessageDecoder;
+import com.lloseng.ocsf.io.MessageEncoder;
+import com.lloseng.ocsf.io.ObjectStreamStatistics;
+
+/**
+ * This codec exchanges the strings and the <code>ChatMessage</code>s of
+ * the chat as length-prefixed frames, like <code>Utf8FrameCodec</code>:
+ * a 4-byte length, or -1 for a null message, followed by a kind byte and
+ * the message. A string is its UTF-8 bytes. A chat message is its type,
+ * its timestamp, its sender, target, channel and body as UTF-8 strings
+ * prefixed with their length, -1 when null, and the message it forwards,
+ * if any, written the same way. Nothing is kept between messages.
+ *
+ * @see ChatMessage
+ */
+public class ChatMessageCodec extends MessageCodec
+{
+  //Class variables *************************************************
+
+  /**
+   * The name of the codec.
+   */
+  public static final String NAME = "chat-message";
+
+  /**
+   * The length of the largest frame accepted, in bytes.
+   */
+  public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+  /**
+   * How many forwarded messages can be nested in one another.
+   */
+  private static final int MAX_DEPTH = 16;
+
+  private static final int HEADER_LENGTH = 4;
+  private static final byte STRING = 'S';
+  private static final byte MESSAGE = 'M';
+  private static final ChatMessage.Type[] TYPES = ChatMessage.Type.values();
+
+  //Instance methods ************************************************
+
+  public String getName()
+  {
+    return NAME;
+  }
+
+  public MessageEncoder createEncoder(OutputStream out)
+  {
+    return new Encoder(out);
+  }
+
+  public MessageDecoder createDecoder(InputStream in)
+  {
+    return new Decoder(in);
+  }
+
+  //Methods used from within this class only ************************
+
+  /**
+   * Returns the whole frame of a message, header included.
+   */
+  private static byte[] encode(Object msg) throws IOException
+  {
+    if (msg == null)
+      return new byte[] {-1, -1, -1, -1};
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0); // the length, set below
+    if (msg instanceof String)
+    {
+      out.writeByte(STRING);
+      out.write(((String)msg).getBytes(StandardCharsets.UTF_8));
+    }
+    else if (msg instanceof ChatMessage)
+    {
+      out.writeByte(MESSAGE);
+      writeMessage(out, (ChatMessage)msg);
+    }
+    else
+      throw new NotSerializableException(msg.getClass().getName()
+        + " (the " + NAME + " codec only sends strings and chat messages)");
+
+    byte[] frame = bytes.toByteArray();
+    int length = frame.length - HEADER_LENGTH;
+    if (length > MAX_FRAME_LENGTH)
+      throw new IOException("message longer than " + MAX_FRAME_LENGTH + " bytes");
+    frame[0] = (byte)(length >>> 24);
+    frame[1] = (byte)(length >>> 16);
+    frame[2] = (byte)(length >>> 8);
+    frame[3] = (byte)length;
+    return frame;
+  }
+
+  private static void writeMessage(DataOutputStream out, ChatMessage msg)
+    throws IOException
+  {
+    out.writeByte(msg.getType().ordinal());
+    out.writeLong(msg.getTimestamp());
+    writeString(out, msg.getSender());
+    writeString(out, msg.getTarget());
+    writeString(out, msg.getChannel());
+    writeString(out, msg.getBody());
+    if (msg.getForwarded() != null)
+      writeMessage(out, msg.getForwarded());
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+    throws IOException
+  {
+    if (s == null)
+    {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] text = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(text.length);
+    out.write(text);
+  }
+
+  private static ChatMessage readMessage(DataInputStream in, int depth)
+    throws IOException
+  {
+    if (depth > MAX_DEPTH)
+      throw new StreamCorruptedException("too many forwarded messages");
+    int type = in.readUnsignedByte();
+    if (type >= TYPES.length)
+      throw new StreamCorruptedException("invalid message type: " + type);
+    long timestamp = in.readLong();
+    String sender = readString(in);
+    String target = readString(in);
+    String channel = readString(in);
+    String body = readString(in);
+    ChatMessage forwarded = TYPES[type] == ChatMessage.Type.FORWARD
+      ? readMessage(in, depth + 1) : null;
+    return new ChatMessage(TYPES[type], sender, target, channel, body,
+      timestamp, forwarded);
+  }
+
+  private static String readString(DataInputStream in) throws IOException
+  {
+    int length = in.readInt();
+    if (length < -1 || length > in.available())
+      throw new StreamCorruptedException("invalid string length: " + length);
+    if (length < 0)
+      return null;
+    byte[] text = new byte[length];
+    in.readFully(text);
+    return new String(text, StandardCharsets.UTF_8);
+  }
+
+  private static int checkLength(int length) throws StreamCorruptedException
+  {
+    if (length < -1 || length == 0 || length > MAX_FRAME_LENGTH)
+      throw new StreamCorruptedException("invalid frame length: " + length);
+    return length;
+  }
+
+  //Inner classes ***************************************************
+
+  /**
+   * Writes the messages as frames.
+   */
+  private static final class Encoder extends MessageEncoder
+  {
+    private final OutputStream out;
+    private long messageCount = 0;
+    private long byteCount = 0;
+
+    Encoder(OutputStream out)
+    {
+      this.out = out;
+    }
+
+    public synchronized void writeMessage(Object msg) throws IOException
+    {
+      byte[] frame = encode(msg);
+      out.write(frame);
+      out.flush();
+      messageCount++;
+      byteCount += frame.length;
+    }
+
+    public synchronized void messageSpliced(int length)
+    {
+      messageCount++;
+      byteCount += length;
+    }
+
+    public synchronized ObjectStreamStatistics getStatistics()
+    {
+      return new ObjectStreamStatistics(messageCount, byteCount, 0, 0, 0);
+    }
+
+    public void close() throws IOException
+    {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads the messages from frames.
+   */
+  private static final class Decoder extends MessageDecoder
+  {
+    private final DataInputStream input;
+
+    Decoder(InputStream in)
+    {
+      input = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    public Object readMessage() throws IOException
+    {
+      int length = checkLength(input.readInt());
+      if (length < 0)
+        return null;
+
+      byte[] frame = new byte[length];
+      input.readFully(frame);
+      if (frame[0] == STRING)
+        return new String(frame, 1, length - 1, StandardCharsets.UTF_8);
+      if (frame[0] != MESSAGE)
+        throw new StreamCorruptedException("invalid message kind: " + frame[0]);
+
+      DataInputStream fields = new DataInputStream(
+        new ByteArrayInputStream(frame, 1, length - 1));
+      try
+      {
+        ChatMessage msg = ChatMessageCodec.readMessage(fields, 0);
+        if (fields.available() > 0)
+          throw new StreamCorruptedException("bytes left after the message");
+        return msg;
+      }
+      catch (EOFException e)
+      {
+        throw new StreamCorruptedException("truncated message");
+      }
+    }
+
+    public int frameLength(byte[] buf, int off, int len) throws IOException
+    {
+      if (len < HEADER_LENGTH)
+        return -1;
+
+      int length = checkLength(((buf[off] & 0xFF) << 24)
+        | ((buf[off + 1] & 0xFF) << 16) | ((buf[off + 2] & 0xFF) << 8)
+        | (buf[off + 3] & 0xFF));
+      int frame = HEADER_LENGTH + Math.max(length, 0);
+      return len < frame ? -1 : frame;
+    }
+
+    public void close() throws IOException
+    {
+      input.close();
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package common;
+
+import java.util.Arrays;
+
+/**
+ * A command such as <code>#private bob see you</code>, split into words
+ * separated by spaces. The words are only kept as offsets into the text:
+ * strings are made when a handler asks for a word. Word 0 is the name of
+ * the command, without the leading '#'.<p>
+ *
+ * Command lines are reused by <code>CommandRegistry</code>, so handlers
+ * must not keep them.
+ *
+ * @see CommandRegistry
+ */
+public final class CommandLine
+{
+  //Instance variables **********************************************
+
+  private String text;
+  private int count;
+  private int[] starts = new int[8];
+  private int[] ends = new int[8];
+
+  //Instance methods ************************************************
+
+  /**
+   * Splits a command into words. The text must start with '#'.
+   */
+  void parse(String text)
+  {
+    this.text = text;
+    int length = text.length();
+
+    // The name follows the '#' directly, it is empty for "# ..."
+    int i = 1;
+    while (i < length && text.charAt(i) != ' ')
+      i++;
+    starts[0] = 1;
+    ends[0] = i;
+    count = 1;
+
+    while (i < length)
+    {
+      while (i < length && text.charAt(i) == ' ')
+        i++;
+      if (i == length)
+        break;
+      if (count == starts.length)
+      {
+        starts = Arrays.copyOf(starts, count * 2);
+        ends = Arrays.copyOf(ends, count * 2);
+      }
+      starts[count] = i;
+      while (i < length && text.charAt(i) != ' ')
+        i++;
+      ends[count++] = i;
+    }
+  }
+
+  /**
+   * @return the whole command, as received.
+   */
+  public String text()
+  {
+    return text;
+  }
+
+  /**
+   * @return the number of words, the name of the command included.
+   */
+  public int wordCount()
+  {
+    return count;
+  }
+
+  /**
+   * @return true if the command has words after its name.
+   */
+  public boolean hasArguments()
+  {
+    return count > 1;
+  }
+
+  /**
+   * Returns a word of the command.
+   *
+   * @param index the position of the word, 0 for the name of the command.
+   * @return the word, or null if there are not that many words.
+   */
+  public String word(int index)
+  {
+    return index < count ? text.substring(starts[index], ends[index]) : null;
+  }
+
+  /**
+   * Returns the text of the command from a word to the end, spaces included.
+   *
+   * @param index the position of the first word.
+   * @return the text, empty if there are not that many words.
+   */
+  public String rest(int index)
+  {
+    return index < count ? text.substring(starts[index]) : "";
+  }
+
+  /**
+   * Returns the position of a word in the text.
+   *
+   * @param index the position of the word.
+   * @return the offset of its first character.
+   */
+  public int start(int index)
+  {
+    return starts[index];
+  }
+
+  /**
+   * Returns the end of a word in the text.
+   *
+   * @param index the position of the word.
+   * @return the offset after its last character.
+   */
+  public int end(int index)
+  {
+    return ends[index];
+  }
+}
@@ -0,0 +1,193 @@
+package common;
+
+/**
+ * This class dispatches commands such as <code>#login bob secret</code>
+ * to the handlers registered for their names. The name is looked up in a
+ * hash table directly from the text of the command, without making a
+ * string of it, and the handler receives the words of the command as a
+ * <code>CommandLine</code>. Adding commands does not make the others any
+ * slower to find.<p>
+ *
+ * Commands are usually registered once, before dispatching starts, but
+ * registering later is safe: dispatching keeps using the previous table
+ * until the new one is complete.
+ *
+ * @param <C> the type of the context given to the handlers, such as the
+ *   connection a command came from.
+ * @see CommandLine
+ */
+public final class CommandRegistry<C>
+{
+  /**
+   * Handles one command.
+   */
+  public interface Handler<C>
+  {
+    /**
+     * Handles the command. The command line must not be kept.
+     *
+     * @param context the context given to the dispatch method.
+     * @param line the words of the command.
+     */
+    void handle(C context, CommandLine line);
+  }
+
+  //Instance variables **********************************************
+
+  /**
+   * Tells if "#Login" is the same command as "#login".
+   */
+  private final boolean ignoreCase;
+
+  /**
+   * The table used by dispatch. Replaced, never modified, by register.
+   */
+  private volatile Table<C> table = new Table<C>(8);
+
+  /**
+   * A command line for each dispatching thread, so that none is
+   * allocated per command.
+   */
+  private final ThreadLocal<CommandLine> lines = new ThreadLocal<CommandLine>()
+  {
+    protected CommandLine initialValue()
+    {
+      return new CommandLine();
+    }
+  };
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs an empty registry.
+   *
+   * @param ignoreCase true if the case of the names does not matter.
+   */
+  public CommandRegistry(boolean ignoreCase)
+  {
+    this.ignoreCase = ignoreCase;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Registers the handler of a command, replacing any previous one.
+   *
+   * @param name the name of the command, without the leading '#'.
+   * @param handler the handler.
+   */
+  public synchronized void register(String name, Handler<C> handler)
+  {
+    Table<C> current = table;
+    int size = current.size + 1;
+    int capacity = current.names.length;
+    while (size * 2 > capacity)
+      capacity *= 2;
+
+    Table<C> updated = new Table<C>(capacity);
+    for (int i = 0; i < current.names.length; i++)
+      if (current.names[i] != null && !sameName(current.names[i], name))
+        updated.put(current.names[i], current.handlers[i], hash(current.names[i], 0, current.names[i].length()));
+    updated.put(name, handler, hash(name, 0, name.length()));
+    table = updated;
+  }
+
+  /**
+   * Tells if a command has a handler.
+   *
+   * @param name the name of the command, without the leading '#'.
+   * @return true if the command is registered.
+   */
+  public boolean isRegistered(String name)
+  {
+    return find(table, "#" + name, 1, name.length() + 1) >= 0;
+  }
+
+  /**
+   * Calls the handler of a command.
+   *
+   * @param context the context given to the handler.
+   * @param text the command, starting with '#'.
+   * @return false if the text is not a command or has no handler.
+   */
+  public boolean dispatch(C context, String text)
+  {
+    if (text.length() == 0 || text.charAt(0) != '#')
+      return false;
+
+    CommandLine line = lines.get();
+    line.parse(text);
+    Table<C> current = table;
+    int slot = find(current, text, line.start(0), line.end(0));
+    if (slot < 0)
+      return false;
+    current.handlers[slot].handle(context, line);
+    return true;
+  }
+
+  //Methods used from within this class only ************************
+
+  /**
+   * Returns the slot of the name found in the text between the offsets,
+   * or -1 if it is not in the table.
+   */
+  private int find(Table<C> current, String text, int start, int end)
+  {
+    int length = end - start;
+    int mask = current.names.length - 1;
+    int slot = hash(text, start, end) & mask;
+    String name;
+    while ((name = current.names[slot]) != null)
+    {
+      if (name.length() == length
+        && text.regionMatches(ignoreCase, start, name, 0, length))
+        return slot;
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  private int hash(String text, int start, int end)
+  {
+    int h = 0;
+    for (int i = start; i < end; i++)
+    {
+      char c = text.charAt(i);
+      h = 31 * h + (ignoreCase ? Character.toLowerCase(c) : c);
+    }
+    return h ^ (h >>> 16);
+  }
+
+  private boolean sameName(String a, String b)
+  {
+    return ignoreCase ? a.equalsIgnoreCase(b) : a.equals(b);
+  }
+
+  /**
+   * Open addressing table of the handlers by name.
+   */
+  private static final class Table<T>
+  {
+    final String[] names;
+    final Handler<T>[] handlers;
+    int size;
+
+    @SuppressWarnings("unchecked")
+    Table(int capacity)
+    {
+      names = new String[capacity];
+      handlers = (Handler<T>[]) new Handler<?>[capacity];
+    }
+
+    void put(String name, Handler<T> handler, int hash)
+    {
+      int mask = names.length - 1;
+      int slot = hash & mask;
+      while (names[slot] != null)
+        slot = (slot + 1) & mask;
+      names[slot] = name;
+      handlers[slot] = handler;
+      size++;
+    }
+  }
+}
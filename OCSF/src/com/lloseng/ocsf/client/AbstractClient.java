@@ -8,6 +8,8 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 
+import com.lloseng.ocsf.io.*;
+
 /**
 * The <code> AbstractClient </code> contains all the
 * methods necessary to set up the client side of a client-server
@@ -70,14 +72,26 @@ public abstract class AbstractClient implements Runnable
   private Socket clientSocket;
 
   /**
-  * The stream to handle data going to the server.
+  * The encoder of the data going to the server.
+  */
+  private MessageEncoder output;
+
+  /**
+  * The decoder of the data from the server.
+  */
+  private MessageDecoder input;
+
+  /**
+  * The codec of the current connection.
   */
-  private ObjectOutputStream output;
+  private MessageCodec codec;
 
   /**
-  * The stream to handle data from the server.
+  * The codecs offered to the server, by order of preference. Empty
+  * by default, meaning that Java serialization is used without
+  * negotiation, as servers of the previous versions expect.
   */
-  private ObjectInputStream input;
+  private MessageCodec[] codecs = new MessageCodec[0];
 
   /**
   * The thread created to read data from the server.
@@ -101,6 +115,17 @@ public abstract class AbstractClient implements Runnable
   */
   private int port;
 
+  /**
+  * The number of messages after which the output stream is reset,
+  * or 0.
+  */
+  private int resetMessageBudget = 0;
+
+  /**
+  * The number of bytes after which the output stream is reset, or 0.
+  */
+  private long resetByteBudget = 0;
+
 // CONSTRUCTORS *****************************************************
 
   /**
@@ -134,8 +159,14 @@ public abstract class AbstractClient implements Runnable
     try
     {
       clientSocket= new Socket(host, port);
-      output = new ObjectOutputStream(clientSocket.getOutputStream());
-      input = new ObjectInputStream(clientSocket.getInputStream());
+      InputStream in = clientSocket.getInputStream();
+      OutputStream out = clientSocket.getOutputStream();
+
+      codec = codecs.length == 0 ? new JavaSerializationCodec()
+        : CodecNegotiation.negotiate(in, out, codecs);
+      output = codec.createEncoder(out);
+      output.setResetBudget(resetMessageBudget, resetByteBudget);
+      input = codec.createDecoder(in);
     }
     catch (IOException ex)
     // All three of the above must be closed when there is a failure
@@ -168,11 +199,12 @@ public abstract class AbstractClient implements Runnable
    */
   public void sendToServer(Object msg) throws IOException
   {
+    MessageEncoder output = this.output;
     if (clientSocket == null || output == null) {
       throw new SocketException("socket does not exist");
     }
 
-    output.writeObject(msg);
+    output.writeMessage(msg);
   }
 
   /**
@@ -237,6 +269,68 @@ public abstract class AbstractClient implements Runnable
     this.host = host;
   }
 
+  /**
+   * Makes the stream sending the messages reset itself once a budget
+   * of messages or bytes has been written since the last reset, so
+   * that neither side keeps every message sent in its handle table.
+   * The budget also applies to the next connections. By default the
+   * stream is never reset. Has no effect with the codecs that keep no
+   * state between messages.
+   *
+   * @param messageBudget the number of messages between two resets,
+   *   or 0 to ignore the number of messages.
+   * @param byteBudget the number of bytes between two resets, or 0 to
+   *   ignore the number of bytes.
+   * @see com.lloseng.ocsf.io.ResettingObjectOutputStream
+   */
+  final public void setStreamResetBudget(int messageBudget, long byteBudget)
+  {
+    MessageEncoder output = this.output;
+    if (output != null)
+      output.setResetBudget(messageBudget, byteBudget);
+
+    resetMessageBudget = messageBudget;
+    resetByteBudget = byteBudget;
+  }
+
+  /**
+   * Returns what the stream sending the messages of the current
+   * connection has written so far.
+   *
+   * @return the statistics of the output stream, or null if the
+   *   client is not connected.
+   */
+  final public ObjectStreamStatistics getOutputStatistics()
+  {
+    MessageEncoder output = this.output;
+    return output == null ? null : output.getStatistics();
+  }
+
+  /**
+   * Sets the codecs offered to the server when the next connection is
+   * opened, by order of preference. The server answers with the one
+   * it prefers; the connection fails if it supports none of them.
+   * Without codecs, Java serialization is used without negotiation,
+   * which is the only choice with servers of the previous versions.
+   *
+   * @param codecs the codecs offered, or none.
+   * @see com.lloseng.ocsf.io.CodecNegotiation
+   */
+  final public void setCodecs(MessageCodec... codecs)
+  {
+    this.codecs = codecs.clone();
+  }
+
+  /**
+   * Returns the codec of the current connection.
+   *
+   * @return the codec, or null if the client has never connected.
+   */
+  final public MessageCodec getCodec()
+  {
+    return codec;
+  }
+
   /**
    * returns the client's description.
    *
@@ -273,7 +367,7 @@ public abstract class AbstractClient implements Runnable
         
         try { // added in version 2.31
         
-          msg = input.readObject();
+          msg = input.readMessage();
 
           // Concrete subclasses do what they want with the
           // msg by implementing the following method
@@ -0,0 +1,263 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.io;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+* The <code> CodecNegotiation </code> class implements the choice of
+* the codec of a connection. A client that wants another codec than
+* Java serialization starts the connection with an offer:
+* <pre>
+*   "OCSF" version(1 byte) count(1 byte) { length(1 byte) name }*
+* </pre>
+* listing the names of its codecs by order of preference. The server
+* answers with the first one it supports:
+* <pre>
+*   "OCSF" length(1 byte) name
+* </pre>
+* or with an empty name if it supports none of them, and both sides
+* then switch to the chosen codec. A client that starts with a Java
+* serialization stream header instead gets the Java serialization
+* codec without any answer, so the clients of the previous versions
+* keep working. Note that servers of the previous versions do not
+* understand offers.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.io.MessageCodec
+*/
+public final class CodecNegotiation
+{
+// CLASS VARIABLES **************************************************
+
+  /**
+   * The bytes that start an offer and an answer.
+   */
+  private static final byte[] MAGIC = { 'O', 'C', 'S', 'F' };
+
+  /**
+   * The version of the offer.
+   */
+  private static final int VERSION = 1;
+
+// CONSTRUCTORS *****************************************************
+
+  private CodecNegotiation() {}
+
+// CLIENT SIDE ------------------------------------------------------
+
+  /**
+   * Offers codecs to the server and waits for its answer.
+   *
+   * @param in the stream from the server.
+   * @param out the stream to the server.
+   * @param offered the codecs of the client, by order of preference.
+   * @return the codec chosen by the server.
+   * @exception IOException if the server does not answer properly or
+   *   supports none of the codecs.
+   */
+  public static MessageCodec negotiate(InputStream in, OutputStream out,
+    MessageCodec[] offered) throws IOException
+  {
+    if (offered.length == 0 || offered.length > 255)
+      throw new IllegalArgumentException("1 to 255 codecs can be offered");
+
+    ByteArrayOutputStream offer = new ByteArrayOutputStream();
+    offer.write(MAGIC);
+    offer.write(VERSION);
+    offer.write(offered.length);
+    for (int i = 0; i < offered.length; i++)
+      writeName(offer, offered[i].getName());
+    out.write(offer.toByteArray());
+    out.flush();
+
+    DataInputStream answer = new DataInputStream(in);
+    readMagic(answer);
+    String name = readName(answer);
+    if (name.length() == 0)
+      throw new IOException("the server supports none of the codecs offered");
+
+    MessageCodec codec = find(offered, name);
+    if (codec == null)
+      throw new StreamCorruptedException("codec not offered: " + name);
+    return codec;
+  }
+
+// SERVER SIDE ------------------------------------------------------
+
+  /**
+   * Reads what the client sends first and answers its offer, if any.
+   * The bytes that follow are left in the input stream.
+   *
+   * @param in the stream from the client. It must be able to push
+   *   back at least 4 bytes.
+   * @param out the stream the answer is written to.
+   * @param supported the codecs of the server.
+   * @return the codec of the connection.
+   * @exception IOException if the client sends neither an offer nor
+   *   a Java serialization stream, or if no codec is supported by both.
+   */
+  public static MessageCodec accept(PushbackInputStream in,
+    OutputStream out, MessageCodec[] supported) throws IOException
+  {
+    DataInputStream input = new DataInputStream(in);
+    byte[] start = new byte[MAGIC.length];
+    input.readFully(start);
+
+    if (isJavaSerialization(start, 0))
+    {
+      in.unread(start);
+      return legacyCodec(supported);
+    }
+
+    for (int i = 0; i < MAGIC.length; i++)
+      if (start[i] != MAGIC[i])
+        throw new StreamCorruptedException("invalid connection preamble");
+    return answer(input, out, supported);
+  }
+
+  /**
+   * Returns the length of what the client sends first, for readers
+   * that cannot block.
+   *
+   * @param buf the bytes received.
+   * @param off the position of the first byte.
+   * @param len the number of bytes available.
+   * @return the length of the offer, 0 if the client starts with a
+   *   Java serialization stream, or -1 if more bytes are needed.
+   * @exception StreamCorruptedException if the bytes are neither an
+   *   offer nor a Java serialization stream.
+   */
+  public static int preambleLength(byte[] buf, int off, int len)
+    throws StreamCorruptedException
+  {
+    if (len < 2)
+      return -1;
+    if (isJavaSerialization(buf, off))
+      return 0;
+
+    int end = off + len;
+    int pos = off;
+    for (int i = 0; i < MAGIC.length; i++, pos++)
+      if (pos < end && buf[pos] != MAGIC[i])
+        throw new StreamCorruptedException("invalid connection preamble");
+
+    pos++; // version
+    if (pos >= end)
+      return -1;
+    int count = buf[pos++] & 0xFF;
+
+    for (int i = 0; i < count; i++)
+    {
+      if (pos >= end)
+        return -1;
+      pos += 1 + (buf[pos] & 0xFF);
+    }
+    return pos > end ? -1 : pos - off;
+  }
+
+  /**
+   * Answers what the client sent first, for readers that cannot block.
+   *
+   * @param buf the bytes received.
+   * @param off the position of the first byte.
+   * @param len the length returned by <code>preambleLength</code>.
+   * @param out the stream the answer is written to.
+   * @param supported the codecs of the server.
+   * @return the codec of the connection.
+   * @exception IOException if no codec is supported by both sides.
+   */
+  public static MessageCodec accept(byte[] buf, int off, int len,
+    OutputStream out, MessageCodec[] supported) throws IOException
+  {
+    if (len == 0)
+      return legacyCodec(supported);
+
+    DataInputStream input = new DataInputStream(
+      new ByteArrayInputStream(buf, off + MAGIC.length, len - MAGIC.length));
+    return answer(input, out, supported);
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Reads an offer, after its magic bytes, and writes the answer.
+   */
+  private static MessageCodec answer(DataInputStream input,
+    OutputStream out, MessageCodec[] supported) throws IOException
+  {
+    input.readUnsignedByte(); // version, all versions are read alike
+    int count = input.readUnsignedByte();
+
+    MessageCodec chosen = null;
+    for (int i = 0; i < count; i++)
+    {
+      String name = readName(input);
+      if (chosen == null)
+        chosen = find(supported, name);
+    }
+
+    out.write(MAGIC);
+    writeName(out, chosen == null ? "" : chosen.getName());
+    out.flush();
+
+    if (chosen == null)
+      throw new IOException("none of the codecs offered is supported");
+    return chosen;
+  }
+
+  /**
+   * Returns the codec used with the clients of the previous versions.
+   */
+  private static MessageCodec legacyCodec(MessageCodec[] supported)
+    throws IOException
+  {
+    MessageCodec codec = find(supported, JavaSerializationCodec.NAME);
+    if (codec == null)
+      throw new IOException("Java serialization is not supported");
+    return codec;
+  }
+
+  private static boolean isJavaSerialization(byte[] buf, int off)
+  {
+    return (((buf[off] & 0xFF) << 8) | (buf[off + 1] & 0xFF))
+      == (ObjectStreamConstants.STREAM_MAGIC & 0xFFFF);
+  }
+
+  private static MessageCodec find(MessageCodec[] codecs, String name)
+  {
+    for (int i = 0; i < codecs.length; i++)
+      if (codecs[i].getName().equals(name))
+        return codecs[i];
+    return null;
+  }
+
+  private static void readMagic(DataInputStream input) throws IOException
+  {
+    for (int i = 0; i < MAGIC.length; i++)
+      if (input.readByte() != MAGIC[i])
+        throw new StreamCorruptedException("invalid negotiation answer");
+  }
+
+  private static String readName(DataInputStream input) throws IOException
+  {
+    byte[] name = new byte[input.readUnsignedByte()];
+    input.readFully(name);
+    return new String(name, StandardCharsets.US_ASCII);
+  }
+
+  private static void writeName(OutputStream out, String name)
+    throws IOException
+  {
+    byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+    if (bytes.length > 255)
+      throw new IllegalArgumentException("codec name too long: " + name);
+    out.write(bytes.length);
+    out.write(bytes);
+  }
+}
+// End of CodecNegotiation class
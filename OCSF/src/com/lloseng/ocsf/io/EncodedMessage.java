@@ -0,0 +1,93 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.io;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+* An <code> EncodedMessage </code> wraps a message sent to many clients
+* so that it is encoded only once for each codec in use, instead of
+* once per client. The bytes are obtained from the
+* <code>encodeIndependent</code> method of the codec the first time
+* they are needed and shared by all the connections using that codec.
+* The message must not be modified once wrapped.<p>
+*
+* Sending an <code> EncodedMessage </code> to a client has the same
+* effect as sending the message it wraps.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.io.MessageCodec#encodeIndependent
+*/
+public final class EncodedMessage
+{
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The message.
+   */
+  private final Object message;
+
+  /**
+   * The bytes of the message for each codec name.
+   * Guarded by this object.
+   */
+  private final Map<String,ByteBuffer> encodings =
+    new HashMap<String,ByteBuffer>(4);
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Wraps a message. Nothing is encoded yet.
+   *
+   * @param message the message.
+   */
+  public EncodedMessage(Object message)
+  {
+    this.message = message;
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return the message.
+   */
+  public Object getMessage()
+  {
+    return message;
+  }
+
+  /**
+   * Returns the bytes of the message for a codec, encoding it if it
+   * is the first time. Each call returns a buffer of its own over the
+   * same bytes, which must not be modified.
+   *
+   * @param codec the codec.
+   * @return the encoded message.
+   * @exception IOException if the message cannot be encoded.
+   */
+  public synchronized ByteBuffer getBytes(MessageCodec codec)
+    throws IOException
+  {
+    ByteBuffer bytes = encodings.get(codec.getName());
+    if (bytes == null)
+    {
+      bytes = ByteBuffer.wrap(codec.encodeIndependent(message));
+      encodings.put(codec.getName(), bytes);
+    }
+    return bytes.duplicate();
+  }
+
+  /**
+   * @return the string representation of the message.
+   */
+  public String toString()
+  {
+    return String.valueOf(message);
+  }
+}
+// End of EncodedMessage class
@@ -0,0 +1,192 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.io;
+
+import java.io.*;
+
+/**
+* The <code> JavaSerializationCodec </code> exchanges messages as a
+* Java serialization stream, which is what the clients and servers of
+* the previous versions do. Any <code> Serializable </code> object can
+* be sent. The stream keeps state between messages; it is written by a
+* <code> ResettingObjectOutputStream </code> so that this state can be
+* bounded with a reset budget.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.io.ResettingObjectOutputStream
+*/
+public class JavaSerializationCodec extends MessageCodec
+{
+// CLASS VARIABLES **************************************************
+
+  /**
+   * The name of the codec.
+   */
+  public static final String NAME = "java";
+
+  /**
+   * The length of the stream header.
+   */
+  private static final int HEADER_LENGTH = 4;
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return the name of the codec.
+   */
+  public String getName()
+  {
+    return NAME;
+  }
+
+  /**
+   * Creates an encoder and writes the stream header.
+   *
+   * @param out the stream to write the messages to.
+   * @return the encoder.
+   * @exception IOException if the header cannot be written.
+   */
+  public MessageEncoder createEncoder(OutputStream out) throws IOException
+  {
+    ResettingObjectOutputStream output = new ResettingObjectOutputStream(out);
+    output.flush();
+    return new Encoder(output);
+  }
+
+  /**
+   * Creates a decoder. The stream header is read with the first
+   * message.
+   *
+   * @param in the stream to read the messages from.
+   * @return the decoder.
+   */
+  public MessageDecoder createDecoder(InputStream in)
+  {
+    return new Decoder(in);
+  }
+
+  /**
+   * Encodes a message as a reset followed by the object, without the
+   * stream header. The reset makes the receiver forget the objects
+   * previously sent on the connection, so the object is written as if
+   * it were the first one; the encoder of the connection resets itself
+   * again before its next message.
+   *
+   * @param msg the message.
+   * @return the encoded message.
+   * @exception IOException if the message cannot be serialized.
+   */
+  public byte[] encodeIndependent(Object msg) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ObjectOutputStream output = new ObjectOutputStream(out);
+    out.reset(); // the header is already written
+
+    output.reset();
+    output.writeObject(msg);
+    output.flush();
+    return out.toByteArray();
+  }
+
+// INNER CLASSES ****************************************************
+
+  /**
+   * Writes the messages with an object stream.
+   */
+  private static final class Encoder extends MessageEncoder
+  {
+    private final ResettingObjectOutputStream output;
+
+    Encoder(ResettingObjectOutputStream output)
+    {
+      this.output = output;
+    }
+
+    public void writeMessage(Object msg) throws IOException
+    {
+      output.writeMessage(msg);
+    }
+
+    public void reset() throws IOException
+    {
+      output.reset();
+    }
+
+    public void setResetBudget(int messageBudget, long byteBudget)
+    {
+      output.setResetBudget(messageBudget, byteBudget);
+    }
+
+    public void messageSpliced(int length)
+    {
+      output.spliced(length);
+    }
+
+    public ObjectStreamStatistics getStatistics()
+    {
+      return output.getStatistics();
+    }
+
+    public void close() throws IOException
+    {
+      output.close();
+    }
+  }
+
+  /**
+   * Reads the messages with an object stream.
+   */
+  private static final class Decoder extends MessageDecoder
+  {
+    private final InputStream in;
+    private ObjectInputStream input = null;
+    private final ObjectStreamFramer framer = new ObjectStreamFramer();
+    private boolean headerFramed = false;
+
+    Decoder(InputStream in)
+    {
+      this.in = in;
+    }
+
+    public Object readMessage() throws IOException, ClassNotFoundException
+    {
+      if (input == null)
+        input = new ObjectInputStream(in);
+      return input.readObject();
+    }
+
+    public int frameLength(byte[] buf, int off, int len) throws IOException
+    {
+      int header = 0;
+      if (!headerFramed)
+      {
+        // The stream header comes with the first object
+        if (len < HEADER_LENGTH)
+          return -1;
+        if ((((buf[off] & 0xFF) << 8) | (buf[off + 1] & 0xFF))
+          != (ObjectStreamConstants.STREAM_MAGIC & 0xFFFF))
+          throw new StreamCorruptedException("invalid stream header");
+        header = HEADER_LENGTH;
+      }
+
+      int length = framer.scan(buf, off + header, len - header);
+      if (length < 0)
+        return -1;
+
+      headerFramed = true;
+      return header + length;
+    }
+
+    public void close() throws IOException
+    {
+      if (input != null)
+        input.close();
+      else
+        in.close();
+    }
+  }
+}
+// End of JavaSerializationCodec class
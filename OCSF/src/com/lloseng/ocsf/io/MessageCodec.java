@@ -0,0 +1,86 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.io;
+
+import java.io.*;
+
+/**
+* A <code> MessageCodec </code> defines how the messages exchanged by a
+* client and a server are turned into bytes. Each connection gets its
+* own encoder and decoder from the codec, since a codec may keep state
+* between the messages of a connection.<p>
+*
+* The codec of a connection is chosen when it is opened: the client
+* offers the codecs it knows, by name, and the server picks the first
+* one it also supports. A client that sends a Java serialization stream
+* right away, as the clients of the previous versions do, gets the
+* <code> JavaSerializationCodec </code>.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.io.CodecNegotiation
+*/
+public abstract class MessageCodec
+{
+// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
+
+  /**
+   * Returns the name that identifies the codec during the negotiation.
+   * It must be made of at most 255 ASCII characters.
+   *
+   * @return the name of the codec.
+   */
+  public abstract String getName();
+
+  /**
+   * Creates the encoder of a connection. Anything that must precede
+   * the first message is written right away.
+   *
+   * @param out the stream to write the messages to.
+   * @return the encoder.
+   * @exception IOException if the stream cannot be written.
+   */
+  public abstract MessageEncoder createEncoder(OutputStream out)
+    throws IOException;
+
+  /**
+   * Creates the decoder of a connection. Nothing is read until the
+   * first message is.
+   *
+   * @param in the stream to read the messages from.
+   * @return the decoder.
+   */
+  public abstract MessageDecoder createDecoder(InputStream in);
+
+  /**
+   * Encodes a message into bytes that can be sent on any connection
+   * using the codec, whatever was sent on it before, in place of a
+   * message written by its encoder. This is how a message sent to many
+   * clients is encoded only once. The default implementation writes
+   * the message with a new encoder, which suits the codecs that write
+   * nothing before the first message and keep no state between
+   * messages; other codecs must override it.
+   *
+   * @param msg the message.
+   * @return the encoded message.
+   * @exception IOException if the message cannot be encoded.
+   * @see com.lloseng.ocsf.io.EncodedMessage
+   */
+  public byte[] encodeIndependent(Object msg) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    createEncoder(out).writeMessage(msg);
+    return out.toByteArray();
+  }
+
+  /**
+   * @return the name of the codec.
+   */
+  public String toString()
+  {
+    return getName();
+  }
+}
+// End of MessageCodec class
@@ -0,0 +1,61 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.io;
+
+import java.io.*;
+
+/**
+* A <code> MessageDecoder </code> reads the messages received on one
+* connection, as defined by its <code> MessageCodec </code>.<p>
+*
+* A decoder can be used in two ways. A thread dedicated to the
+* connection simply calls <code>readMessage</code>, which blocks until
+* a message arrives. A non-blocking reader first calls
+* <code>frameLength</code> on the bytes it has received; once it
+* returns the length of a complete message, exactly those bytes are
+* made available to the stream of the decoder and
+* <code>readMessage</code> is called once.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.io.MessageCodec#createDecoder
+*/
+public abstract class MessageDecoder
+{
+// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
+
+  /**
+   * Reads the next message.
+   *
+   * @return the message.
+   * @exception IOException if the stream cannot be read or is corrupted.
+   * @exception ClassNotFoundException if the message is an object of an
+   *   unknown class. The next message can still be read.
+   */
+  public abstract Object readMessage()
+    throws IOException, ClassNotFoundException;
+
+  /**
+   * Looks for the next complete message in received bytes, including
+   * whatever must be read before the first message.
+   *
+   * @param buf the bytes received.
+   * @param off the position of the next message.
+   * @param len the number of bytes available.
+   * @return the number of bytes of the next message, or -1 if more
+   *   bytes are needed.
+   * @exception IOException if the bytes cannot be a message.
+   */
+  public abstract int frameLength(byte[] buf, int off, int len)
+    throws IOException;
+
+  /**
+   * Closes the stream.
+   *
+   * @exception IOException if the stream cannot be closed.
+   */
+  public abstract void close() throws IOException;
+}
+// End of MessageDecoder class
@@ -0,0 +1,74 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.io;
+
+import java.io.*;
+
+/**
+* A <code> MessageEncoder </code> writes the messages sent on one
+* connection, as defined by its <code> MessageCodec </code>. If writing
+* a message fails, the encoder must not be used anymore.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.io.MessageCodec#createEncoder
+*/
+public abstract class MessageEncoder
+{
+// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
+
+  /**
+   * Writes a message and flushes it to the stream.
+   *
+   * @param msg the message.
+   * @exception IOException if the message cannot be written.
+   */
+  public abstract void writeMessage(Object msg) throws IOException;
+
+  /**
+   * Makes the next message decodable without the previous ones. The
+   * default implementation does nothing, which suits the codecs that
+   * keep no state between messages.
+   *
+   * @exception IOException if the stream cannot be written.
+   */
+  public void reset() throws IOException {}
+
+  /**
+   * Sets how often a codec that keeps state between messages resets
+   * it. The default implementation does nothing.
+   *
+   * @param messageBudget the number of messages between two resets,
+   *   or 0 to ignore the number of messages.
+   * @param byteBudget the number of bytes between two resets, or 0 to
+   *   ignore the number of bytes.
+   */
+  public void setResetBudget(int messageBudget, long byteBudget) {}
+
+  /**
+   * Tells the encoder that bytes obtained from the
+   * <code>encodeIndependent</code> method of its codec have been sent
+   * after the ones it wrote. The default implementation does nothing.
+   *
+   * @param length the number of bytes sent.
+   * @see com.lloseng.ocsf.io.MessageCodec#encodeIndependent
+   */
+  public void messageSpliced(int length) {}
+
+  /**
+   * Returns what the encoder has written so far.
+   *
+   * @return the statistics of the encoder.
+   */
+  public abstract ObjectStreamStatistics getStatistics();
+
+  /**
+   * Closes the stream.
+   *
+   * @exception IOException if the stream cannot be closed.
+   */
+  public abstract void close() throws IOException;
+}
+// End of MessageEncoder class
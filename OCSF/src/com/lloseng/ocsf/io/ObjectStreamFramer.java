@@ -0,0 +1,445 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.io;
+
+import java.io.*;
+import java.util.*;
+
+/**
+* An <code> ObjectStreamFramer </code> finds the boundaries of the
+* objects contained in a Java serialization stream without deserializing
+* them. It is used by the Java serialization codec to know when the
+* bytes received by a non-blocking connection contain a complete
+* object, so that the <code> ObjectInputStream </code> of the
+* connection never has to wait for data in the middle of a
+* <code> readObject </code> call.<p>
+*
+* The framer follows the grammar of the Java Object Serialization
+* Specification. It keeps its own model of the handle table so that
+* class descriptors referenced by handle can be interpreted; the stream
+* header must have been consumed before the first call to
+* <code>scan</code>. Externalizable objects written with the
+* protocol version 1 cannot be framed since their length is only known
+* to their class.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.io.JavaSerializationCodec
+*/
+final class ObjectStreamFramer implements ObjectStreamConstants
+{
+// CLASS VARIABLES **************************************************
+
+  /**
+   * Thrown internally when the bytes end before the current object.
+   */
+  private static final Underflow UNDERFLOW = new Underflow();
+
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The model of the handle table of the stream. Class descriptors are
+   * stored as <code>ClassDesc</code> instances, other handles as null.
+   */
+  private ArrayList<ClassDesc> handles = new ArrayList<ClassDesc>();
+
+  /**
+   * The handle table used by the scan in progress.
+   */
+  private ArrayList<ClassDesc> table;
+
+  /**
+   * The bytes being scanned.
+   */
+  private byte[] buf;
+
+  /**
+   * The current position in the bytes being scanned.
+   */
+  private int pos;
+
+  /**
+   * The end of the bytes being scanned.
+   */
+  private int limit;
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Looks for the next complete object in the given bytes. Reset
+   * markers preceding the object are considered to be part of it.
+   *
+   * @param buf the bytes received.
+   * @param off the position of the next object.
+   * @param len the number of bytes available.
+   * @return the number of bytes of the next object, or -1 if more
+   *   bytes are needed.
+   * @exception StreamCorruptedException if the bytes do not contain
+   *   a serialized object.
+   */
+  int scan(byte[] buf, int off, int len) throws StreamCorruptedException
+  {
+    this.buf = buf;
+    this.pos = off;
+    this.limit = off + len;
+    this.table = handles;
+    int mark = handles.size();
+
+    try
+    {
+      while (peekByte() == TC_RESET)
+      {
+        pos++;
+        table = new ArrayList<ClassDesc>();
+      }
+      readContent();
+      handles = table;
+      return pos - off;
+    }
+    catch (Underflow ex)
+    {
+      // The handles assigned by the incomplete object are forgotten
+      if (table == handles)
+        handles.subList(mark, handles.size()).clear();
+      return -1;
+    }
+    finally
+    {
+      this.buf = null;
+      this.table = null;
+    }
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Skips an object, as written by <code>writeObject</code>.
+   */
+  private void readContent() throws StreamCorruptedException, Underflow
+  {
+    byte tc = readByte();
+    ClassDesc desc;
+
+    switch (tc)
+    {
+      case TC_NULL:
+        return;
+
+      case TC_REFERENCE:
+        skip(4);
+        return;
+
+      case TC_STRING:
+        skip(readUnsignedShort());
+        table.add(null);
+        return;
+
+      case TC_LONGSTRING:
+        skip(readLong());
+        table.add(null);
+        return;
+
+      case TC_CLASSDESC:
+      case TC_PROXYCLASSDESC:
+        pos--;
+        readClassDesc();
+        return;
+
+      case TC_CLASS:
+        readClassDesc();
+        table.add(null);
+        return;
+
+      case TC_ENUM:
+        readClassDesc();
+        table.add(null);
+        readContent(); // the name of the constant
+        return;
+
+      case TC_ARRAY:
+        desc = readClassDesc();
+        if (desc == null)
+          throw new StreamCorruptedException("array without class");
+        int length = readInt();
+        if (length < 0)
+          throw new StreamCorruptedException("negative array length");
+        table.add(null);
+        readArrayValues(desc, length);
+        return;
+
+      case TC_OBJECT:
+        desc = readClassDesc();
+        if (desc == null)
+          throw new StreamCorruptedException("object without class");
+        table.add(null);
+        readClassData(desc);
+        return;
+
+      default:
+        throw new StreamCorruptedException(
+          String.format("invalid type code: %02X", tc));
+    }
+  }
+
+  /**
+   * Reads a class descriptor.
+   *
+   * @return the descriptor, or null for a null descriptor.
+   */
+  private ClassDesc readClassDesc()
+    throws StreamCorruptedException, Underflow
+  {
+    byte tc = readByte();
+    ClassDesc desc;
+
+    switch (tc)
+    {
+      case TC_NULL:
+        return null;
+
+      case TC_REFERENCE:
+        int handle = readInt() - baseWireHandle;
+        if (handle < 0 || handle >= table.size() || table.get(handle) == null)
+          throw new StreamCorruptedException("invalid class handle");
+        return table.get(handle);
+
+      case TC_PROXYCLASSDESC:
+        desc = new ClassDesc(SC_SERIALIZABLE, (byte)0);
+        table.add(desc);
+        for (int i = readInt(); i > 0; i--)
+          skip(readUnsignedShort()); // interface names
+        readAnnotation();
+        desc.superDesc = readClassDesc();
+        return desc;
+
+      case TC_CLASSDESC:
+        int descHandle = table.size();
+        table.add(null);
+        int nameLength = readUnsignedShort();
+        byte elementType = 0;
+        if (nameLength > 1)
+        {
+          need(2);
+          if (buf[pos] == '[')
+            elementType = buf[pos + 1];
+        }
+        skip(nameLength);
+        skip(8); // serialVersionUID
+        desc = new ClassDesc(readByte(), elementType);
+        table.set(descHandle, desc);
+
+        int fieldCount = readUnsignedShort();
+        desc.fieldTypes = new byte[fieldCount];
+        for (int i = 0; i < fieldCount; i++)
+        {
+          byte type = readByte();
+          skip(readUnsignedShort()); // field name
+          if (type == '[' || type == 'L')
+            readContent(); // field class name
+          desc.fieldTypes[i] = type;
+        }
+        readAnnotation();
+        desc.superDesc = readClassDesc();
+        return desc;
+
+      default:
+        throw new StreamCorruptedException(
+          String.format("invalid class descriptor code: %02X", tc));
+    }
+  }
+
+  /**
+   * Skips the data written for an object of the given class.
+   */
+  private void readClassData(ClassDesc desc)
+    throws StreamCorruptedException, Underflow
+  {
+    if ((desc.flags & SC_EXTERNALIZABLE) != 0)
+    {
+      if ((desc.flags & SC_BLOCK_DATA) == 0)
+        throw new StreamCorruptedException(
+          "externalizable data of protocol version 1 cannot be framed");
+      readAnnotation();
+      return;
+    }
+
+    // The data of the superclasses comes first
+    ArrayList<ClassDesc> hierarchy = new ArrayList<ClassDesc>(4);
+    for (ClassDesc d = desc; d != null; d = d.superDesc)
+      hierarchy.add(d);
+
+    for (int i = hierarchy.size() - 1; i >= 0; i--)
+    {
+      ClassDesc d = hierarchy.get(i);
+      if ((d.flags & SC_SERIALIZABLE) == 0)
+        continue;
+
+      // Primitive fields are sorted before the object fields
+      for (int j = 0; j < d.fieldTypes.length; j++)
+      {
+        int size = primitiveSize(d.fieldTypes[j]);
+        if (size > 0)
+          skip(size);
+        else
+          readContent();
+      }
+
+      // A writeObject method writes the fields first, then its own data
+      if ((d.flags & SC_WRITE_METHOD) != 0)
+        readAnnotation();
+    }
+  }
+
+  /**
+   * Skips the elements of an array.
+   */
+  private void readArrayValues(ClassDesc desc, int length)
+    throws StreamCorruptedException, Underflow
+  {
+    int size = primitiveSize(desc.elementType);
+    if (size > 0)
+    {
+      skip((long)size * length);
+    }
+    else
+    {
+      for (int i = 0; i < length; i++)
+        readContent();
+    }
+  }
+
+  /**
+   * Skips block data and objects up to the end block data marker.
+   */
+  private void readAnnotation() throws StreamCorruptedException, Underflow
+  {
+    while (true)
+    {
+      switch (peekByte())
+      {
+        case TC_ENDBLOCKDATA:
+          pos++;
+          return;
+
+        case TC_BLOCKDATA:
+          pos++;
+          skip(readByte() & 0xFF);
+          break;
+
+        case TC_BLOCKDATALONG:
+          pos++;
+          skip(readInt());
+          break;
+
+        default:
+          readContent();
+      }
+    }
+  }
+
+  /**
+   * Returns the size in bytes of a primitive type, 0 for object types.
+   */
+  private static int primitiveSize(byte type) throws StreamCorruptedException
+  {
+    switch (type)
+    {
+      case 'B': case 'Z':
+        return 1;
+      case 'C': case 'S':
+        return 2;
+      case 'I': case 'F':
+        return 4;
+      case 'J': case 'D':
+        return 8;
+      case 'L': case '[':
+        return 0;
+      default:
+        throw new StreamCorruptedException("invalid field type: " + type);
+    }
+  }
+
+  private void need(long n) throws Underflow
+  {
+    if (n > limit - pos)
+      throw UNDERFLOW;
+  }
+
+  private void skip(long n) throws StreamCorruptedException, Underflow
+  {
+    if (n < 0)
+      throw new StreamCorruptedException("negative length");
+    need(n);
+    pos += (int)n;
+  }
+
+  private byte peekByte() throws Underflow
+  {
+    need(1);
+    return buf[pos];
+  }
+
+  private byte readByte() throws Underflow
+  {
+    need(1);
+    return buf[pos++];
+  }
+
+  private int readUnsignedShort() throws Underflow
+  {
+    need(2);
+    int v = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+    pos += 2;
+    return v;
+  }
+
+  private int readInt() throws Underflow
+  {
+    need(4);
+    int v = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16)
+      | ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+    pos += 4;
+    return v;
+  }
+
+  private long readLong() throws Underflow
+  {
+    long high = readInt() & 0xFFFFFFFFL;
+    return (high << 32) | (readInt() & 0xFFFFFFFFL);
+  }
+
+// INNER CLASSES ****************************************************
+
+  /**
+   * What the framer needs to know about a class descriptor.
+   */
+  private static final class ClassDesc
+  {
+    final byte flags;
+    final byte elementType;
+    byte[] fieldTypes = new byte[0];
+    ClassDesc superDesc;
+
+    ClassDesc(byte flags, byte elementType)
+    {
+      this.flags = flags;
+      this.elementType = elementType;
+    }
+  }
+
+  /**
+   * Signals that more bytes are needed.
+   */
+  private static final class Underflow extends Exception
+  {
+    private static final long serialVersionUID = 1L;
+
+    Underflow()
+    {
+      super(null, null, false, false);
+    }
+  }
+}
+// End of ObjectStreamFramer class
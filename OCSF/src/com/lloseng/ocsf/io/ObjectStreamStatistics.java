@@ -0,0 +1,121 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.io;
+
+/**
+* An <code> ObjectStreamStatistics </code> is a snapshot of what a
+* <code> ResettingObjectOutputStream </code> has written. The handle
+* count is the number of objects and class descriptors remembered by
+* the stream, and by the stream reading it on the other side of the
+* connection; it is set back to 0 by each reset.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.io.ResettingObjectOutputStream#getStatistics
+*/
+public final class ObjectStreamStatistics
+{
+// INSTANCE VARIABLES ***********************************************
+
+  private final long messageCount;
+  private final long byteCount;
+  private final long resetCount;
+  private final long handleCount;
+  private final long peakHandleCount;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs a snapshot.
+   *
+   * @param messageCount the number of messages written.
+   * @param byteCount the number of bytes written.
+   * @param resetCount the number of resets.
+   * @param handleCount the current size of the handle table.
+   * @param peakHandleCount the largest size of the handle table.
+   */
+  public ObjectStreamStatistics(long messageCount, long byteCount,
+    long resetCount, long handleCount, long peakHandleCount)
+  {
+    this.messageCount = messageCount;
+    this.byteCount = byteCount;
+    this.resetCount = resetCount;
+    this.handleCount = handleCount;
+    this.peakHandleCount = peakHandleCount;
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the number of messages written.
+   */
+  public long getMessageCount()
+  {
+    return messageCount;
+  }
+
+  /**
+   * @return the number of bytes written, including the stream header
+   *   and the resets.
+   */
+  public long getByteCount()
+  {
+    return byteCount;
+  }
+
+  /**
+   * @return the number of resets.
+   */
+  public long getResetCount()
+  {
+    return resetCount;
+  }
+
+  /**
+   * @return the number of objects and class descriptors currently in
+   *   the handle table.
+   */
+  public long getHandleCount()
+  {
+    return handleCount;
+  }
+
+  /**
+   * @return the largest number of entries the handle table has had.
+   */
+  public long getPeakHandleCount()
+  {
+    return peakHandleCount;
+  }
+
+  /**
+   * Returns the sum of two snapshots, to aggregate several streams.
+   * The peak is the largest of the two peaks.
+   *
+   * @param other the other snapshot.
+   * @return the combined statistics.
+   */
+  public ObjectStreamStatistics add(ObjectStreamStatistics other)
+  {
+    return new ObjectStreamStatistics(
+      messageCount + other.messageCount,
+      byteCount + other.byteCount,
+      resetCount + other.resetCount,
+      handleCount + other.handleCount,
+      Math.max(peakHandleCount, other.peakHandleCount));
+  }
+
+  /**
+   * @return a description of the statistics.
+   */
+  public String toString()
+  {
+    return messageCount + " messages, " + byteCount + " bytes ("
+      + (messageCount == 0 ? 0 : byteCount / messageCount)
+      + " per message), " + resetCount + " resets, "
+      + handleCount + " handles (peak " + peakHandleCount + ")";
+  }
+}
+// End of ObjectStreamStatistics class
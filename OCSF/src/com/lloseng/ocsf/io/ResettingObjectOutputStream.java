@@ -0,0 +1,279 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.io;
+
+import java.io.*;
+
+/**
+* A <code> ResettingObjectOutputStream </code> is the object stream used
+* by the clients and the servers to send their messages. An
+* <code> ObjectOutputStream </code> remembers every object it has
+* written so that it can send a reference when the same object is
+* written again. For a connection that lasts, this handle table keeps
+* every message ever sent in memory, on both sides of the connection.<p>
+*
+* This stream resets itself, which clears the handle tables of both
+* sides, once a budget of messages or of bytes has been written since
+* the last reset. A small budget bounds the memory used by the
+* connection but makes the stream resend the class descriptors of the
+* objects after each reset; a budget of 0 never resets, which was the
+* behaviour of the previous versions. The statistics of the stream tell
+* how much each choice costs.<p>
+*
+* Messages must be written with <code>writeMessage</code> for the
+* budget to be applied.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.io.ObjectStreamStatistics
+*/
+public class ResettingObjectOutputStream extends ObjectOutputStream
+{
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+   * Counts the bytes written to the underlying stream.
+   */
+  private final CountingOutputStream counter;
+
+  /**
+   * The number of messages after which the stream is reset, or 0.
+   */
+  private volatile int messageBudget = 0;
+
+  /**
+   * The number of bytes after which the stream is reset, or 0.
+   */
+  private volatile long byteBudget = 0;
+
+  /**
+   * The number of messages written.
+   */
+  private long messageCount = 0;
+
+  /**
+   * The number of resets.
+   */
+  private long resetCount = 0;
+
+  /**
+   * The number of objects and classes in the handle table.
+   */
+  private long handleCount = 0;
+
+  /**
+   * The largest number of handles reached.
+   */
+  private long peakHandleCount = 0;
+
+  /**
+   * The number of messages written since the last reset.
+   */
+  private int messagesSinceReset = 0;
+
+  /**
+   * The number of bytes written at the last reset.
+   */
+  private long bytesAtReset = 0;
+
+  /**
+   * Indicates if the stream must be reset before the next message
+   * whatever the budget.
+   */
+  private boolean resetPending = false;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs a stream that never resets itself and writes its
+   * header to the given stream.
+   *
+   * @param out the stream to write to.
+   * @exception IOException if the header cannot be written.
+   */
+  public ResettingObjectOutputStream(OutputStream out) throws IOException
+  {
+    this(new CountingOutputStream(out));
+  }
+
+  private ResettingObjectOutputStream(CountingOutputStream counter)
+    throws IOException
+  {
+    super(counter);
+    this.counter = counter;
+    enableReplaceObject(true); // to count the objects given a handle
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * Sets the budget after which the stream resets itself. The stream
+   * is reset before a message once either budget is reached.
+   *
+   * @param messageBudget the number of messages between two resets,
+   *   or 0 to ignore the number of messages.
+   * @param byteBudget the number of bytes between two resets, or 0 to
+   *   ignore the number of bytes.
+   */
+  public void setResetBudget(int messageBudget, long byteBudget)
+  {
+    if (messageBudget < 0 || byteBudget < 0)
+      throw new IllegalArgumentException("negative budget");
+    this.messageBudget = messageBudget;
+    this.byteBudget = byteBudget;
+  }
+
+  /**
+   * @return the number of messages between two resets, or 0.
+   */
+  public int getMessageBudget()
+  {
+    return messageBudget;
+  }
+
+  /**
+   * @return the number of bytes between two resets, or 0.
+   */
+  public long getByteBudget()
+  {
+    return byteBudget;
+  }
+
+  /**
+   * Returns what the stream has written so far.
+   *
+   * @return the statistics of the stream.
+   */
+  public synchronized ObjectStreamStatistics getStatistics()
+  {
+    return new ObjectStreamStatistics(messageCount, counter.count,
+      resetCount, handleCount, peakHandleCount);
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Writes a message, after resetting the stream if the budget has
+   * been used up, and flushes the stream.
+   *
+   * @param msg the message to write.
+   * @exception IOException if the message cannot be written.
+   */
+  public synchronized void writeMessage(Object msg) throws IOException
+  {
+    int messageBudget = this.messageBudget;
+    long byteBudget = this.byteBudget;
+
+    if (resetPending
+      || (messageBudget > 0 && messagesSinceReset >= messageBudget)
+      || (byteBudget > 0 && counter.count - bytesAtReset >= byteBudget))
+    {
+      reset();
+    }
+
+    writeObject(msg);
+    flush();
+    messageCount++;
+    messagesSinceReset++;
+  }
+
+  /**
+   * Resets the stream, clearing the handle tables of both sides.
+   *
+   * @exception IOException if the reset cannot be written.
+   */
+  public synchronized void reset() throws IOException
+  {
+    super.reset();
+    resetCount++;
+    resetPending = false;
+    handleCount = 0;
+    messagesSinceReset = 0;
+    bytesAtReset = counter.count;
+  }
+
+// METHODS TO BE USED FROM WITHIN THE PACKAGE ONLY ------------------
+
+  /**
+   * Records that a message encoded elsewhere, starting with a reset,
+   * has been sent after the bytes of this stream. The receiver then
+   * knows the objects of that message instead of the ones of this
+   * stream, so the stream is reset before its next message.
+   *
+   * @param length the number of bytes of the message.
+   */
+  synchronized void spliced(int length)
+  {
+    resetPending = true;
+    messageCount++;
+    counter.count += length;
+  }
+
+// METHODS OVERRIDDEN FROM OBJECTOUTPUTSTREAM -----------------------
+
+  /**
+   * Called once for each object that is not written as a reference to
+   * a previous one, that is for each object added to the handle table.
+   */
+  protected Object replaceObject(Object obj)
+  {
+    countHandle();
+    return obj;
+  }
+
+  /**
+   * Called once for each class descriptor added to the handle table.
+   */
+  protected void annotateClass(Class<?> cl)
+  {
+    countHandle();
+  }
+
+  /**
+   * Called once for each proxy class descriptor added to the handle
+   * table.
+   */
+  protected void annotateProxyClass(Class<?> cl)
+  {
+    countHandle();
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  private void countHandle()
+  {
+    handleCount++;
+    if (handleCount > peakHandleCount)
+      peakHandleCount = handleCount;
+  }
+
+// INNER CLASSES ****************************************************
+
+  /**
+   * Counts the bytes going through it.
+   */
+  private static final class CountingOutputStream extends FilterOutputStream
+  {
+    long count = 0;
+
+    CountingOutputStream(OutputStream out)
+    {
+      super(out);
+    }
+
+    public void write(int b) throws IOException
+    {
+      out.write(b);
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
+// End of ResettingObjectOutputStream class
@@ -0,0 +1,181 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.io;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+* The <code> Utf8FrameCodec </code> exchanges <code> String </code>
+* messages as length-prefixed UTF-8 frames: a 4-byte big-endian length
+* followed by that many bytes, or a length of -1 for a null message.
+* Each frame stands on its own, so the codec keeps no state between
+* messages and costs no more than the text itself. Sending any other
+* kind of object fails with a <code> NotSerializableException </code>.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.io.CodecNegotiation
+*/
+public class Utf8FrameCodec extends MessageCodec
+{
+// CLASS VARIABLES **************************************************
+
+  /**
+   * The name of the codec.
+   */
+  public static final String NAME = "utf8-frame";
+
+  /**
+   * The length of the frame header.
+   */
+  private static final int HEADER_LENGTH = 4;
+
+  /**
+   * The length of the largest message accepted, in bytes. Protects the
+   * receiver from allocating huge buffers for corrupted lengths.
+   */
+  public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * @return the name of the codec.
+   */
+  public String getName()
+  {
+    return NAME;
+  }
+
+  /**
+   * Creates an encoder. Nothing precedes the first frame.
+   *
+   * @param out the stream to write the messages to.
+   * @return the encoder.
+   */
+  public MessageEncoder createEncoder(OutputStream out)
+  {
+    return new Encoder(out);
+  }
+
+  /**
+   * Creates a decoder.
+   *
+   * @param in the stream to read the messages from.
+   * @return the decoder.
+   */
+  public MessageDecoder createDecoder(InputStream in)
+  {
+    return new Decoder(in);
+  }
+
+// INNER CLASSES ****************************************************
+
+  /**
+   * Writes the messages as frames.
+   */
+  private static final class Encoder extends MessageEncoder
+  {
+    private final OutputStream out;
+    private long messageCount = 0;
+    private long byteCount = 0;
+
+    Encoder(OutputStream out)
+    {
+      this.out = out;
+    }
+
+    public synchronized void writeMessage(Object msg) throws IOException
+    {
+      if (msg != null && !(msg instanceof String))
+        throw new NotSerializableException(msg.getClass().getName()
+          + " (the " + NAME + " codec only sends strings)");
+
+      byte[] text = msg == null ? new byte[0]
+        : ((String)msg).getBytes(StandardCharsets.UTF_8);
+      if (text.length > MAX_FRAME_LENGTH)
+        throw new IOException("message longer than " + MAX_FRAME_LENGTH + " bytes");
+
+      // The header and the text go in a single write
+      int length = msg == null ? -1 : text.length;
+      byte[] frame = new byte[HEADER_LENGTH + text.length];
+      frame[0] = (byte)(length >>> 24);
+      frame[1] = (byte)(length >>> 16);
+      frame[2] = (byte)(length >>> 8);
+      frame[3] = (byte)length;
+      System.arraycopy(text, 0, frame, HEADER_LENGTH, text.length);
+
+      out.write(frame);
+      out.flush();
+      messageCount++;
+      byteCount += frame.length;
+    }
+
+    public synchronized void messageSpliced(int length)
+    {
+      messageCount++;
+      byteCount += length;
+    }
+
+    public synchronized ObjectStreamStatistics getStatistics()
+    {
+      return new ObjectStreamStatistics(messageCount, byteCount, 0, 0, 0);
+    }
+
+    public void close() throws IOException
+    {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads the messages from frames.
+   */
+  private static final class Decoder extends MessageDecoder
+  {
+    private final DataInputStream input;
+
+    Decoder(InputStream in)
+    {
+      input = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    public Object readMessage() throws IOException
+    {
+      int length = checkLength(input.readInt());
+      if (length < 0)
+        return null;
+
+      byte[] text = new byte[length];
+      input.readFully(text);
+      return new String(text, StandardCharsets.UTF_8);
+    }
+
+    public int frameLength(byte[] buf, int off, int len) throws IOException
+    {
+      if (len < HEADER_LENGTH)
+        return -1;
+
+      int length = checkLength(((buf[off] & 0xFF) << 24)
+        | ((buf[off + 1] & 0xFF) << 16) | ((buf[off + 2] & 0xFF) << 8)
+        | (buf[off + 3] & 0xFF));
+      int frame = HEADER_LENGTH + Math.max(length, 0);
+      return len < frame ? -1 : frame;
+    }
+
+    public void close() throws IOException
+    {
+      input.close();
+    }
+
+    private static int checkLength(int length) throws StreamCorruptedException
+    {
+      if (length < -1 || length > MAX_FRAME_LENGTH)
+        throw new StreamCorruptedException("invalid frame length: " + length);
+      return length;
+    }
+  }
+}
+// End of Utf8FrameCodec class
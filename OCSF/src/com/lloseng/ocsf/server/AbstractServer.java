@@ -6,8 +6,11 @@ package com.lloseng.ocsf.server;
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
+import com.lloseng.ocsf.io.*;
+
 /**
 * The <code> AbstractServer </code> class maintains a thread that waits
 * for connection attempts from clients. When a connection attempt occurs
@@ -121,6 +124,33 @@ public abstract class AbstractServer implements Runnable
    * instances will be created. Added in version 2.3
    */
   private AbstractConnectionFactory connectionFactory = null;
+
+  /**
+   * The engine that accepts the connections and handles their data
+   * instead of the connection listener thread. Is null by default,
+   * meaning that one thread is created per client.
+   */
+  private AbstractServerEngine serverEngine = null;
+
+  /**
+   * The dispatcher of the messages received from the clients. Is null
+   * by default, meaning that messages are handled one at a time under
+   * the lock of the server.
+   */
+  private volatile MessageDispatcher messageDispatcher = null;
+
+  /**
+   * The open connections, whatever the thread running them.
+   */
+  private final ConnectionRegistry connections = new ConnectionRegistry();
+
+  /**
+   * The codecs the clients can choose from when they connect. Java
+   * serialization, the only codec of the clients of the previous
+   * versions, is supported by default.
+   */
+  private volatile MessageCodec[] codecs =
+    { new JavaSerializationCodec(), new Utf8FrameCodec() };
   
 // CONSTRUCTOR ******************************************************
 
@@ -159,6 +189,12 @@ public abstract class AbstractServer implements Runnable
    */
   final public void listen() throws IOException
   {
+    if (serverEngine != null)
+    {
+      serverEngine.listen(this);
+      return;
+    }
+
     if (!isListening())
     {
       if (serverSocket == null)
@@ -178,7 +214,10 @@ public abstract class AbstractServer implements Runnable
    */
   final public void stopListening()
   {
-    readyToStop = true;
+    if (serverEngine != null)
+      serverEngine.stopListening();
+    else
+      readyToStop = true;
   }
 
   /**
@@ -195,6 +234,12 @@ public abstract class AbstractServer implements Runnable
    */
   final public void close() throws IOException
   {
+    if (serverEngine != null)
+    {
+      closeEngine();
+      return;
+    }
+
     if (serverSocket == null)
       return;
     stopListening();
@@ -240,6 +285,8 @@ public abstract class AbstractServer implements Runnable
    * the general function of sending to all clients, perhaps after some kind
    * of filtering is done. Any exception thrown while
    * sending the message to a particular client is ignored.
+   * The message is encoded once for each codec in use rather than
+   * once for each client.
    *
    * @param msg   Object The message to be sent
    */
@@ -247,6 +294,10 @@ public abstract class AbstractServer implements Runnable
   {
     Thread[] clientThreadList = getClientConnections();
 
+    // Encoded once for all the clients using the same codec
+    if (!(msg instanceof EncodedMessage))
+      msg = new EncodedMessage(msg);
+
     for (int i=0; i<clientThreadList.length; i++)
     {
       try
@@ -267,6 +318,9 @@ public abstract class AbstractServer implements Runnable
    */
   final public boolean isListening()
   {
+    if (serverEngine != null)
+      return serverEngine.isListening();
+
     return connectionListener!=null && connectionListener.isAlive(); // modified in version 2.31
   }
 
@@ -278,6 +332,9 @@ public abstract class AbstractServer implements Runnable
    */
   final public boolean isClosed()
   {
+    if (serverEngine != null)
+      return serverEngine.isClosed();
+
     return (serverSocket == null);
   }
 
@@ -292,15 +349,24 @@ public abstract class AbstractServer implements Runnable
    *
    * @return an array of <code>Thread</code> containing
    * <code>ConnectionToClient</code> instances.
+   * @see #getConnections
    */
-  synchronized final public Thread[] getClientConnections()
+  final public Thread[] getClientConnections()
   {
-    Thread[] clientThreadList = new
-      Thread[clientThreadGroup.activeCount()];
-
-    clientThreadGroup.enumerate(clientThreadList);
+    ConnectionToClient[] current = connections.array();
+    return Arrays.copyOf(current, current.length, Thread[].class);
+  }
 
-    return clientThreadList;
+  /**
+   * Returns the registry of the existing client connections. Unlike
+   * <code>getClientConnections</code>, it gives access to the
+   * connections without locking the server or copying them.
+   *
+   * @return the connection registry of the server.
+   */
+  final public ConnectionRegistry getConnections()
+  {
+    return connections;
   }
 
   /**
@@ -310,7 +376,7 @@ public abstract class AbstractServer implements Runnable
    */
   final public int getNumberOfClients()
   {
-    return clientThreadGroup.activeCount();
+    return connections.size();
   }
 
   /**
@@ -340,7 +406,8 @@ public abstract class AbstractServer implements Runnable
    * The default is half a second. This means that stopping the
    * server may take up to timeout duration to actually stop.
    * The server must be stopped and restarted for the timeout
-   * change to be effective.
+   * change to be effective. Server engines do not use it; the
+   * <code>AcceptorServerEngine</code> stops at once without polling.
    *
    * @param timeout the timeout time in ms.
    */
@@ -377,6 +444,95 @@ public abstract class AbstractServer implements Runnable
     this.connectionFactory = factory;
   }
 
+  /**
+   * Sets the dispatcher of the messages received from the clients.
+   * Once set, the messages of different clients are handled
+   * concurrently by its workers and the
+   * <code>handleMessageFromClient</code> method is no longer called
+   * with the lock of the server held. A null dispatcher restores the
+   * default behaviour. The dispatcher previously set is not shut down.
+   *
+   * @param dispatcher the message dispatcher, or null.
+   */
+  final public void setMessageDispatcher(MessageDispatcher dispatcher)
+  {
+    this.messageDispatcher = dispatcher;
+  }
+
+  /**
+   * Returns the dispatcher set with <code>setMessageDispatcher</code>.
+   *
+   * @return the message dispatcher, or null if the messages are
+   *   handled under the lock of the server.
+   */
+  final public MessageDispatcher getMessageDispatcher()
+  {
+    return messageDispatcher;
+  }
+
+  /**
+   * Returns the connection factory set with
+   * <code>setConnectionFactory</code>.
+   *
+   * @return the connection factory, or null if regular
+   *   <code>ConnectionToClient</code> instances are created.
+   */
+  final public AbstractConnectionFactory getConnectionFactory()
+  {
+    return connectionFactory;
+  }
+
+  /**
+   * Sets the engine used to accept the connections and to handle
+   * their data. A null engine restores the default behaviour, where a
+   * thread is created for each client. The server must be closed when
+   * the engine is changed.
+   *
+   * @param engine the server engine, or null.
+   * @exception IllegalStateException if the server is not closed.
+   */
+  final public void setServerEngine(AbstractServerEngine engine)
+  {
+    if (!isClosed())
+      throw new IllegalStateException("server must be closed");
+
+    this.serverEngine = engine;
+  }
+
+  /**
+   * Sets the codecs the clients can choose from when they connect.
+   * A client that does not negotiate uses Java serialization, which
+   * is refused if it is not in the list. Applies to the connections
+   * made afterwards.
+   *
+   * @param codecs the supported codecs.
+   * @see com.lloseng.ocsf.io.CodecNegotiation
+   */
+  final public void setCodecs(MessageCodec... codecs)
+  {
+    this.codecs = codecs.clone();
+  }
+
+  /**
+   * Returns the codecs set with <code>setCodecs</code>.
+   *
+   * @return the supported codecs.
+   */
+  final public MessageCodec[] getCodecs()
+  {
+    return codecs.clone();
+  }
+
+  /**
+   * Returns the engine set with <code>setServerEngine</code>.
+   *
+   * @return the server engine, or null if the default one is used.
+   */
+  final public AbstractServerEngine getServerEngine()
+  {
+    return serverEngine;
+  }
+
 // RUN METHOD -------------------------------------------------------
 
   /**
@@ -458,6 +614,22 @@ public abstract class AbstractServer implements Runnable
    */
   protected void clientConnected(ConnectionToClient client) {}
 
+  /**
+   * Hook method called to create the session of each new client
+   * connection, before the connection is used. The default
+   * implementation creates a <code>ClientSession</code>; servers
+   * keeping typed information about their clients return a subclass.
+   * The connection is not fully constructed yet and must only be kept
+   * for later use.
+   *
+   * @param client the connection being created.
+   * @return the session of the client.
+   */
+  protected ClientSession createSession(ConnectionToClient client)
+  {
+    return new ClientSession();
+  }
+
   /**
    * Hook method called each time a client disconnects.
    * The client is garantee to be disconnected but the thread
@@ -523,7 +695,9 @@ public abstract class AbstractServer implements Runnable
    * This MUST be implemented by subclasses, who should respond to
    * messages.
    * This method is called by a synchronized method so it is also
-   * implcitly synchronized.
+   * implcitly synchronized, unless a message dispatcher has been set.
+   * In that case it is called concurrently for different clients, but
+   * never concurrently for the same client.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
@@ -535,22 +709,121 @@ public abstract class AbstractServer implements Runnable
 
 // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+  /**
+   * Returns the maximum number of waiting connections.
+   */
+  final int getBacklog()
+  {
+    return backlog;
+  }
+
+  /**
+   * Returns the thread group associated with client threads.
+   */
+  final ThreadGroup getClientThreadGroup()
+  {
+    return clientThreadGroup;
+  }
+
+  /**
+   * Records a new connection. Called before the
+   * <code>clientConnected</code> hook.
+   *
+   * @param client the new connection.
+   */
+  final void addConnection(ConnectionToClient client)
+  {
+    connections.add(client);
+  }
+
+  /**
+   * Forgets a connection recorded by <code>addConnection</code>.
+   * Called before the <code>clientDisconnected</code> hook.
+   *
+   * @param client the closed connection.
+   */
+  final void removeConnection(ConnectionToClient client)
+  {
+    connections.remove(client);
+  }
+
+  /**
+   * Closes the connections with all clients, then the engine.
+   */
+  private void closeEngine() throws IOException
+  {
+    if (serverEngine.isClosed())
+      return;
+
+    // No client must connect once the others are being closed
+    serverEngine.stopListening();
+    try
+    {
+      Thread[] clientThreadList = getClientConnections();
+      for (int i=0; i<clientThreadList.length; i++)
+      {
+        try
+        {
+          ((ConnectionToClient)clientThreadList[i]).close();
+        }
+        // Ignore all exceptions when closing clients.
+        catch(Exception ex) {}
+      }
+    }
+    finally
+    {
+      serverEngine.close();
+      serverClosed();
+    }
+  }
+
   /**
    * Receives a command sent from the client to the server.
    * Called by the run method of <code>ConnectionToClient</code>
    * instances that are watching for messages coming from the server
-   * This method is synchronized to ensure that whatever effects it has
+   * Unless a message dispatcher has been set, the message is handled
+   * under the lock of the server to ensure that whatever effects it has
    * do not conflict with work being done by other threads. The method
-   * simply calls the <code>handleMessageFromClient</code> slot method.
+   * simply calls the <code>handleMessageFromClient</code> slot method,
+   * or queues the message to the dispatcher.
    *
    * @param msg   the message sent.
    * @param client the connection connected to the client that
    *  sent the message.
    */
-  final synchronized void receiveMessageFromClient(
+  final void receiveMessageFromClient(
     Object msg, ConnectionToClient client)
   {
-    this.handleMessageFromClient(msg, client);
+    MessageDispatcher dispatcher = messageDispatcher;
+
+    if (dispatcher == null)
+    {
+      synchronized (this)
+      {
+        this.handleMessageFromClient(msg, client);
+      }
+    }
+    else
+    {
+      dispatcher.dispatch(this, msg, client);
+    }
+  }
+
+  /**
+   * Notifies that the connection with a client is closed. The
+   * <code>clientDisconnected</code> hook is called directly, or after
+   * the messages of the client queued to the message dispatcher.
+   *
+   * @param client the closed connection.
+   */
+  final void connectionClosed(ConnectionToClient client)
+  {
+    MessageDispatcher dispatcher = messageDispatcher;
+
+    if (dispatcher == null)
+      clientDisconnected(client);
+    else
+      dispatcher.dispatchDisconnection(this, client);
   }
 }
 // End of AbstractServer Class
@@ -0,0 +1,72 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.server;
+
+import java.io.*;
+
+/**
+* The <code> AbstractServerEngine </code> class is the base class
+* of the engines that can replace the connection listener thread of
+* <code> AbstractServer </code>. An engine is responsible for accepting
+* the connections and for moving the data between the clients and the
+* server; the hook methods of <code> AbstractServer </code> are called
+* exactly as they are with the default engine, so a concrete server does
+* not need to know which engine is in use.<p>
+*
+* The use of an engine is optional. When none is set, the server
+* creates one <code> ConnectionToClient </code> thread per client as in
+* the previous versions.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.server.AbstractServer
+* @see com.lloseng.ocsf.server.NioServerEngine
+*/
+public abstract class AbstractServerEngine
+{
+// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
+
+  /**
+   * Starts accepting connections for the given server, opening the
+   * listening socket if it is not already open. Must call the
+   * <code>serverStarted</code> hook of the server.
+   *
+   * @param server the server that uses this engine.
+   * @exception IOException if an I/O error occurs when opening the
+   *   listening socket.
+   */
+  protected abstract void listen(AbstractServer server) throws IOException;
+
+  /**
+   * Stops accepting new connections. The listening socket and the
+   * connected clients are kept. Must call the <code>serverStopped</code>
+   * hook of the server if the engine was listening.
+   */
+  protected abstract void stopListening();
+
+  /**
+   * Stops accepting connections and releases the listening socket and
+   * every resource used by the engine. The connections to the clients
+   * have already been closed by the server when this method is called.
+   *
+   * @exception IOException if an I/O error occurs when closing the
+   *   listening socket.
+   */
+  protected abstract void close() throws IOException;
+
+  /**
+   * Returns true if the engine is accepting new connections.
+   *
+   * @return true if the engine is listening.
+   */
+  protected abstract boolean isListening();
+
+  /**
+   * Returns true if the listening socket of the engine is closed.
+   *
+   * @return true if the engine is closed.
+   */
+  protected abstract boolean isClosed();
+}
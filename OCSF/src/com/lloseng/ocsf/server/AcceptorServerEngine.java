@@ -0,0 +1,301 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.server;
+
+import java.io.*;
+import java.net.*;
+
+/**
+* The <code> AcceptorServerEngine </code> class accepts the connections
+* with threads that block in <code>accept</code> until a client
+* connects, instead of waking up at every timeout of the listening
+* socket to check whether the server is stopping as the default engine
+* does. The engine is stopped by closing the listening socket, which
+* wakes the acceptors at once.<p>
+*
+* Several acceptor threads can share the listening socket, and the
+* socket is opened with a backlog large enough for the bursts of
+* connections that follow a restart. An acceptor only creates the
+* connection: the codec is negotiated by the thread of the connection,
+* so a client slow to send its first bytes does not delay the others. The clients are then handled as
+* with the default engine: by a <code> ConnectionToClient </code>
+* thread, or by whatever the connection factory of the server
+* creates.<p>
+*
+* Since closing the socket is the only way to wake the acceptors,
+* <code>stopListening</code> closes it and <code>listen</code> opens a
+* new one: clients that try to connect in between are refused instead
+* of waiting in the backlog.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.server.AbstractServer#setServerEngine
+*/
+public class AcceptorServerEngine extends AbstractServerEngine
+{
+// CLASS VARIABLES **************************************************
+
+  /**
+   * The default maximum number of connections waiting to be accepted.
+   * The operating system may use a lower limit.
+   */
+  public static final int DEFAULT_BACKLOG = 1024;
+
+  /**
+   * The maximum time, in milliseconds, that stopping waits for an
+   * acceptor busy opening a connection.
+   */
+  private static final long STOP_TIMEOUT = 1000;
+
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The number of acceptor threads.
+   */
+  private final int acceptorCount;
+
+  /**
+   * The maximum number of connections waiting to be accepted.
+   */
+  private final int backlog;
+
+  /**
+   * The server using this engine, set when listening starts.
+   */
+  private AbstractServer server = null;
+
+  /**
+   * The listening socket, while listening.
+   */
+  private ServerSocket serverSocket = null;
+
+  /**
+   * The acceptor threads, while listening.
+   */
+  private Thread[] acceptors = null;
+
+  /**
+   * Indicates if connections are being accepted.
+   */
+  private volatile boolean listening = false;
+
+  /**
+   * Indicates if the engine is closed.
+   */
+  private volatile boolean closed = true;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs an engine with one acceptor and the default backlog.
+   */
+  public AcceptorServerEngine()
+  {
+    this(1, DEFAULT_BACKLOG);
+  }
+
+  /**
+   * Constructs an engine with the given number of acceptors and
+   * backlog. The backlog of the server is not used.
+   *
+   * @param acceptorCount the number of acceptor threads.
+   * @param backlog the maximum number of connections waiting to be
+   *   accepted.
+   */
+  public AcceptorServerEngine(int acceptorCount, int backlog)
+  {
+    if (acceptorCount < 1)
+      throw new IllegalArgumentException("at least one acceptor is needed");
+    if (backlog < 1)
+      throw new IllegalArgumentException("the backlog must be positive");
+    this.acceptorCount = acceptorCount;
+    this.backlog = backlog;
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * @return the number of acceptor threads.
+   */
+  final public int getAcceptorCount()
+  {
+    return acceptorCount;
+  }
+
+  /**
+   * @return the maximum number of connections waiting to be accepted.
+   */
+  final public int getBacklog()
+  {
+    return backlog;
+  }
+
+// METHODS CALLED BY THE SERVER -------------------------------------
+
+  /**
+   * Opens the listening socket and starts the acceptors.
+   *
+   * @param server the server that uses this engine.
+   * @exception IOException if the listening socket cannot be opened.
+   */
+  protected synchronized void listen(AbstractServer server) throws IOException
+  {
+    if (listening)
+      return;
+    this.server = server;
+
+    final ServerSocket socket = new ServerSocket(server.getPort(), backlog);
+    serverSocket = socket;
+    acceptors = new Thread[acceptorCount];
+    listening = true;
+    closed = false;
+
+    for (int i = 0; i < acceptorCount; i++)
+    {
+      acceptors[i] = new Thread(new Runnable()
+      {
+        public void run()
+        {
+          acceptConnections(socket);
+        }
+      }, "Acceptor-" + i);
+      acceptors[i].start();
+    }
+    server.serverStarted();
+  }
+
+  /**
+   * Stops accepting connections by closing the listening socket, and
+   * waits for the acceptors to end. The connected clients are kept.
+   */
+  protected void stopListening()
+  {
+    Thread[] oldAcceptors;
+    synchronized (this)
+    {
+      if (!listening)
+        return;
+      listening = false;
+
+      try
+      {
+        serverSocket.close(); // wakes the acceptors
+      }
+      catch (IOException ex) {}
+      serverSocket = null;
+      oldAcceptors = acceptors;
+      acceptors = null;
+    }
+
+    // Once the acceptors are done, no more clients can connect
+    long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+    for (int i = 0; i < oldAcceptors.length; i++)
+    {
+      if (oldAcceptors[i] == Thread.currentThread())
+        continue;
+      try
+      {
+        oldAcceptors[i].join(
+          Math.max(1, deadline - System.currentTimeMillis()));
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    server.serverStopped();
+  }
+
+  /**
+   * Stops accepting connections.
+   */
+  protected void close()
+  {
+    stopListening();
+    closed = true;
+  }
+
+  /**
+   * Returns true if connections are being accepted.
+   *
+   * @return true if listening.
+   */
+  protected boolean isListening()
+  {
+    return listening;
+  }
+
+  /**
+   * Returns true if the engine has not listened since it was created
+   * or last closed.
+   *
+   * @return true if closed.
+   */
+  protected boolean isClosed()
+  {
+    return closed;
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Accepts connections until the listening socket is closed. Run by
+   * each acceptor.
+   */
+  private void acceptConnections(ServerSocket socket)
+  {
+    while (true)
+    {
+      Socket clientSocket;
+      try
+      {
+        clientSocket = socket.accept();
+      }
+      catch (IOException ex)
+      {
+        // Closing the socket is how the acceptors are stopped
+        if (!socket.isClosed())
+        {
+          server.listeningException(ex);
+          stopListening();
+        }
+        return;
+      }
+
+      ConnectionToClient client;
+      try
+      {
+        AbstractConnectionFactory factory = server.getConnectionFactory();
+        if (factory == null)
+          client = new ConnectionToClient(
+            server.getClientThreadGroup(), clientSocket, server);
+        else
+          client = factory.createConnection(
+            server.getClientThreadGroup(), clientSocket, server);
+      }
+      catch (IOException ex)
+      {
+        try
+        {
+          clientSocket.close();
+        }
+        catch (IOException e) {}
+        continue;
+      }
+
+      // The server may have stopped while the connection was opened
+      if (!listening && client != null)
+      {
+        try
+        {
+          client.close();
+        }
+        catch (IOException ex) {}
+      }
+    }
+  }
+}
+// End of AcceptorServerEngine class
@@ -0,0 +1,70 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+* A <code> ClientSession </code> holds what a server knows about one of
+* its clients. Each connection has its own session, created by the
+* <code>createSession</code> method of the server when the connection
+* is made.<p>
+*
+* This class only keeps untyped information, saved and read by name
+* through <code>setInfo</code> and <code>getInfo</code>. Concrete servers
+* can extend it with typed fields for the information they use, and
+* override these two methods so that code written against the names
+* keeps working. Sessions are used by the threads handling the messages
+* of the client as well as by those handling other clients, so the
+* fields must be thread-safe.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.server.AbstractServer#createSession
+* @see com.lloseng.ocsf.server.ConnectionToClient#getSession
+*/
+public class ClientSession
+{
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+   * Map to save information about the client by name. The initial size
+   * of the map is small since it is not expected that concrete servers
+   * will want to store many different types of information about each
+   * client.
+   */
+  private final Map<String,Object> savedInfo =
+    new ConcurrentHashMap<String,Object>(10);
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Saves arbitrary information about the client. A null value removes
+   * the information.
+   *
+   * @param infoType identifies the type of information.
+   * @param info the information itself.
+   */
+  public void setInfo(String infoType, Object info)
+  {
+    if (info == null)
+      savedInfo.remove(infoType); // the map cannot hold null values
+    else
+      savedInfo.put(infoType, info);
+  }
+
+  /**
+   * Returns information about the client saved using setInfo.
+   *
+   * @param infoType identifies the type of information.
+   * @return the information, or null if there is none.
+   */
+  public Object getInfo(String infoType)
+  {
+    return savedInfo.get(infoType);
+  }
+}
+// End of ClientSession class
@@ -0,0 +1,167 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+* A <code> ConnectionRegistry </code> holds the connections of a server
+* that are currently open, whatever the thread running them. The
+* connections are kept in a concurrent set, so that adding, removing
+* and looking up a connection take constant time. Readers walk an
+* array that is never modified once published: it is made from the
+* set the first time it is needed after a change, and shared by all
+* the readers until the next one. Reading thus takes no lock and, while
+* no client comes or goes, copies nothing.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.server.AbstractServer#getConnections
+*/
+public final class ConnectionRegistry
+{
+// CLASS VARIABLES **************************************************
+
+  /**
+   * The array of an empty registry.
+   */
+  private static final ConnectionToClient[] EMPTY = new ConnectionToClient[0];
+
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The current connections.
+   */
+  private final Set<ConnectionToClient> connections =
+    ConcurrentHashMap.newKeySet();
+
+  /**
+   * The connections as an array, or null if it must be made again
+   * because the set has changed since.
+   */
+  private volatile ConnectionToClient[] snapshot = EMPTY;
+
+  /**
+   * The number of changes made to the set.
+   */
+  private final AtomicLong changes = new AtomicLong();
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs an empty registry. Only servers create registries.
+   */
+  ConnectionRegistry() {}
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Returns the connections open at the time of the call. The list
+   * does not change when clients connect or disconnect afterwards.
+   *
+   * @return an unmodifiable list of the connections.
+   */
+  public List<ConnectionToClient> snapshot()
+  {
+    return Collections.unmodifiableList(Arrays.asList(array()));
+  }
+
+  /**
+   * Performs an action for each connection open at the time of the
+   * call, without copying them.
+   *
+   * @param action the action.
+   */
+  public void forEach(Consumer<? super ConnectionToClient> action)
+  {
+    ConnectionToClient[] current = array();
+    for (int i = 0; i < current.length; i++)
+      action.accept(current[i]);
+  }
+
+  /**
+   * @return the number of connections.
+   */
+  public int size()
+  {
+    return connections.size();
+  }
+
+  /**
+   * Tells if a connection is open.
+   *
+   * @param client the connection.
+   * @return true if the connection is in the registry.
+   */
+  public boolean contains(ConnectionToClient client)
+  {
+    return connections.contains(client);
+  }
+
+// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  /**
+   * Returns the current array. Must not be modified.
+   */
+  ConnectionToClient[] array()
+  {
+    ConnectionToClient[] current = snapshot;
+    if (current != null)
+      return current;
+
+    synchronized (this)
+    {
+      // Another reader may have made it while this one waited.
+      current = snapshot;
+      if (current == null)
+      {
+        // An array missing a change made while it was being made is
+        // returned, but not kept.
+        long seen = changes.get();
+        current = connections.toArray(EMPTY);
+        if (changes.get() == seen)
+          snapshot = current;
+      }
+      return current;
+    }
+  }
+
+  /**
+   * Adds a connection, unless it is already there.
+   *
+   * @param client the new connection.
+   */
+  void add(ConnectionToClient client)
+  {
+    if (connections.add(client))
+      changed();
+  }
+
+  /**
+   * Removes a connection, if it is there.
+   *
+   * @param client the closed connection.
+   */
+  void remove(ConnectionToClient client)
+  {
+    if (connections.remove(client))
+      changed();
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Drops the array after the set has changed.
+   */
+  private void changed()
+  {
+    changes.incrementAndGet();
+    snapshot = null;
+  }
+}
+// End of ConnectionRegistry class
@@ -6,7 +6,12 @@ package com.lloseng.ocsf.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.lloseng.ocsf.io.*;
 
 /**
 * An instance of this class is created by the server when a client
@@ -58,6 +63,36 @@ import java.util.*;
 */
 public class ConnectionToClient extends Thread
 {
+// CLASS VARIABLES **************************************************
+
+  /**
+   * The default maximum number of messages waiting to be written to
+   * the client.
+   */
+  public static final int DEFAULT_OUTBOUND_CAPACITY = 1024;
+
+  /**
+   * The maximum time, in milliseconds, given to the writer to write the
+   * queued messages of a connection being closed.
+   */
+  private static final long CLOSE_TIMEOUT = 1000;
+
+  /**
+   * Closes the sockets of the clients that do not read the last
+   * messages queued for them in time. Its thread is only created when
+   * first needed.
+   */
+  private static final ScheduledExecutorService CLOSE_TIMER =
+    Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+      public Thread newThread(Runnable task)
+      {
+        Thread thread = new Thread(task, "ConnectionToClient close timer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
 // INSTANCE VARIABLES ***********************************************
 
   /**
@@ -73,29 +108,98 @@ public class ConnectionToClient extends Thread
   private Socket clientSocket;
 
   /**
-  * Stream used to read from the client.
+  * The codec negotiated with the client.
+  */
+  private MessageCodec codec;
+
+  /**
+  * Decodes the messages read from the client. Null for connections
+  * multiplexed by a <code>NioServerEngine</code>, which decode the
+  * messages themselves.
+  */
+  private MessageDecoder input;
+
+  /**
+  * Encodes the messages sent to the client. The bytes are collected
+  * by <code>encoded</code> and then queued.
+  */
+  private MessageEncoder output;
+
+  /**
+  * Collects the bytes written by the encoder.
+  */
+  private final MessageBuffer encoded = new MessageBuffer();
+
+  /**
+  * Stream used by the writer thread to write to the socket.
+  */
+  private OutputStream socketOutput;
+
+  /**
+   * The thread writing the queued messages to the socket, started once
+   * the codec is negotiated. Null for connections multiplexed by a
+   * <code>NioServerEngine</code>.
+   */
+  private final Thread writerThread;
+
+  /**
+  * The encoded messages waiting to be written to the client.
+  */
+  final OutboundQueue outbound = new OutboundQueue(DEFAULT_OUTBOUND_CAPACITY);
+
+  /**
+  * What to do when the client falls behind, or null to only enforce
+  * the outbound capacity.
+  */
+  private volatile SlowConsumerPolicy slowConsumerPolicy = null;
+
+  /**
+  * Indicates if the client is behind according to the policy.
+  * Guarded by the output stream.
   */
-  private ObjectInputStream input;
+  private boolean behind = false;
 
   /**
-  * Stream used to write to the client.
+  * The time at which the client fell behind.
+  * Guarded by the output stream.
   */
-  private ObjectOutputStream output;
+  private long behindSince;
+
+  /**
+  * The number of messages discarded by the slow consumer policy.
+  */
+  private final AtomicLong droppedMessages = new AtomicLong();
 
   /**
   * Indicates if the thread is ready to stop. Set to true when closing
   * of the connection is initiated.
   */
-  private boolean readyToStop;
+  private volatile boolean readyToStop;
+
+  /**
+   * What the server knows about the client, such as its login ID.
+   * Created by the server along with the connection.
+   */
+  private final ClientSession session;
 
   /**
-   * Map to save information about the client such as its login ID.
-   * The initial size of the map is small since it is not expected
-   * that concrete servers will want to store many different types of
-   * information about each client. Used by the setInfo and getInfo
-   * methods.
+   * The channel used when the connection is multiplexed by a
+   * <code>NioServerEngine</code>. Null for connections that run
+   * their own thread.
    */
-  private HashMap savedInfo = new HashMap(10);
+  private NioConnection nioConnection = null;
+
+  /**
+   * Messages waiting to be handled by the message dispatcher of the
+   * server, if it has one.
+   */
+  final Queue<Object> dispatchQueue = new ConcurrentLinkedQueue<Object>();
+
+  /**
+   * Indicates if a worker of the message dispatcher is in charge of
+   * the dispatch queue.
+   */
+  final AtomicBoolean dispatchScheduled = new AtomicBoolean(false);
 
 
 // CONSTRUCTORS *****************************************************
@@ -117,28 +221,81 @@ public class ConnectionToClient extends Thread
     // Initialize variables
     this.clientSocket = clientSocket;
     this.server = server;
+    this.session = server.createSession(this);
 
     clientSocket.setSoTimeout(0); // make sure timeout is infinite
 
-    //Initialize the objects streams
-    try
-    {
-      input = new ObjectInputStream(clientSocket.getInputStream());
-      output = new ObjectOutputStream(clientSocket.getOutputStream());
-    }
-    catch (IOException ex)
+    readyToStop = false;
+    this.writerThread = new Thread(writer(), getName() + " writer");
+    start(); // The thread negotiates the codec, then waits for data
+  }
+
+  /**
+   * Constructs a new connection to a client whose messages are read by
+   * a thread obtained from the given factory, such as a virtual thread,
+   * instead of by the connection itself. Such a connection is not an
+   * active thread of the thread group; the server keeps track of it
+   * until its reader ends.
+   *
+   * @param group the thread group that contains the connections.
+   * @param clientSocket contains the client's socket.
+   * @param server a reference to the server that created
+   *        this instance
+   * @param readerFactory the factory of the thread that reads the
+   *        messages of the client.
+   * @exception IOException if an I/O error occur when creating
+   *        the connection.
+   */
+  protected ConnectionToClient(ThreadGroup group, Socket clientSocket,
+    AbstractServer server, ThreadFactory readerFactory) throws IOException
+  {
+    super(group,(Runnable)null);
+    // Initialize variables
+    this.clientSocket = clientSocket;
+    this.server = server;
+    this.session = server.createSession(this);
+
+    clientSocket.setSoTimeout(0); // make sure timeout is infinite
+
+    readyToStop = false;
+    this.writerThread = readerFactory.newThread(writer());
+
+    Thread reader = readerFactory.newThread(this);
+    reader.setUncaughtExceptionHandler(new UncaughtExceptionHandler()
     {
-      try
+      // Same as the thread group does for connection threads
+      public void uncaughtException(Thread thread, Throwable exception)
       {
-        closeAll();
+        ConnectionToClient.this.server.clientException(
+          ConnectionToClient.this, exception);
       }
-      catch (Exception exc) { }
+    });
 
-      throw ex;  // Rethrow the exception.
-    }
+    reader.start(); // The reader runs the run method of this connection
+  }
 
+  /**
+   * Constructs a connection to a client whose data is handled by the
+   * event loops of a <code>NioServerEngine</code>. No thread is
+   * started for such a connection.
+   *
+   * @param group the thread group that contains the connections.
+   * @param connection the channel to the client.
+   * @param server a reference to the server that created
+   *        this instance
+   */
+  ConnectionToClient(ThreadGroup group, NioConnection connection,
+    AbstractServer server)
+  {
+    super(group,(Runnable)null);
+    this.clientSocket = connection.getSocket();
+    this.server = server;
+    this.session = server.createSession(this);
+    this.nioConnection = connection;
+    this.writerThread = null;
+
+    // The codec is started by the event loop once negotiated
     readyToStop = false;
-    start(); // Start the thread waits for data from the socket
   }
 
 // INSTANCE METHODS *************************************************
@@ -148,24 +305,127 @@ public class ConnectionToClient extends Thread
    * This method can be overriden, but if so it should still perform
    * the general function of sending to client, by calling the
    * <code>super.sendToClient()</code> method
-   * perhaps after some kind of filtering is done.
+   * perhaps after some kind of filtering is done.<p>
+   *
+   * The object is encoded in the caller's thread and queued; it is
+   * written to the socket by the writer of the connection, so a client
+   * that reads slowly does not delay the caller. If the client lets
+   * more than <code>getOutboundCapacity()</code> messages pile up, the
+   * connection is closed. Before that, the slow consumer policy of the
+   * connection, if any, may discard messages or close the connection.<p>
+   *
+   * An <code>EncodedMessage</code> is sent as the message it wraps,
+   * with the bytes it shares with the other connections using the same
+   * codec.
    *
    * @param msg the message to be sent.
-   * @exception IOException if an I/O error occur when sending the
-   *    message.
+   * @exception IOException if the connection is closed, if the
+   *    message cannot be encoded by the codec of the connection, if the outbound queue is full or
+   *    if the slow consumer policy disconnects the client.
    */
   public void sendToClient(Object msg) throws IOException
   {
+    MessageEncoder output = this.output;
     if (clientSocket == null || output == null)
       throw new SocketException("socket does not exist");
 
-    output.writeObject(msg);
+    // A shared message is encoded outside of the lock and its failure
+    // leaves the stream usable
+    ByteBuffer shared = null;
+    if (msg instanceof EncodedMessage)
+    {
+      shared = ((EncodedMessage)msg).getBytes(codec);
+      msg = ((EncodedMessage)msg).getMessage();
+    }
+
+    // Several threads may send to the same client: the messages must
+    // be queued in the order they are encoded
+    synchronized (output)
+    {
+      SlowConsumerPolicy policy = slowConsumerPolicy;
+      boolean droppable = false;
+      boolean independent = false;
+
+      if (policy != null)
+      {
+        droppable = policy.isDroppable(msg);
+        if (isBehind(policy))
+        {
+          switch (policy.getAction())
+          {
+            case DROP_NEW:
+              if (droppable)
+              {
+                droppedMessages.incrementAndGet();
+                return;
+              }
+              break;
+
+            case DROP_OLDEST:
+              droppedMessages.addAndGet(outbound.dropOldest(policy));
+              break;
+
+            case DISCONNECT:
+              if (System.currentTimeMillis() - behindSince
+                >= policy.getDisconnectDelay())
+              {
+                abort();
+                throw new IOException("the client does not read its messages");
+              }
+              break;
+          }
+        }
+
+        // A queued message can only be discarded if the ones after it
+        // do not refer to the objects it contains
+        independent =
+          policy.getAction() == SlowConsumerPolicy.Action.DROP_OLDEST;
+        droppable = droppable && independent;
+      }
+
+      ByteBuffer frame = shared;
+      if (frame != null)
+      {
+        // Starts with a reset, so it is independent already
+        output.messageSpliced(frame.remaining());
+      }
+      else
+      {
+        try
+        {
+          if (independent)
+            output.reset();
+          output.writeMessage(msg);
+        }
+        catch (IOException ex)
+        {
+          // The stream is unusable after a failed write
+          encoded.reset();
+          abort();
+          throw ex;
+        }
+        frame = encoded.take();
+      }
+
+      if (!outbound.offer(frame, droppable))
+      {
+        abort();
+        throw new IOException("the outbound queue of the client is full");
+      }
+    }
+
+    if (nioConnection != null)
+      nioConnection.outputReady();
   }
 
   /**
    * Closes the client.
    * If the connection is already closed, this
-   * call has no effect.
+   * call has no effect.<p>
+   *
+   * The call does not wait for the messages already queued: the writer
+   * of the connection writes them, then closes the socket. A client
+   * that has not read them after a second is closed anyway.
    *
    * @exception IOException if an error occurs when closing the socket.
    */
@@ -173,7 +433,33 @@ public class ConnectionToClient extends Thread
   {
   
     readyToStop = true; // Set the flag that tells the thread to stop
-    closeAll();
+    outbound.close();
+
+    if (nioConnection != null)
+    {
+      // The event loop closes the channel and notifies the server
+      nioConnection.close();
+      return;
+    }
+
+    // Without a writer, or with nothing left to write, close at once
+    if (!writerThread.isAlive() || outbound.size() == 0)
+    {
+      closeAll();
+      return;
+    }
+
+    CLOSE_TIMER.schedule(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          closeAll();
+        }
+        catch (Exception ex) { }
+      }
+    }, CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
   }
 
 // ACCESSING METHODS ------------------------------------------------
@@ -200,38 +486,173 @@ public class ConnectionToClient extends Thread
         +" (" + clientSocket.getInetAddress().getHostAddress() + ")";
   }
 
+  /**
+   * Returns the codec negotiated with the client.
+   *
+   * @return the codec, or null if it is not known yet.
+   */
+  final public MessageCodec getCodec()
+  {
+    return codec;
+  }
+
+  /**
+   * Returns the maximum number of messages that can wait to be
+   * written to the client.
+   *
+   * @return the capacity of the outbound queue.
+   */
+  final public int getOutboundCapacity()
+  {
+    return outbound.getCapacity();
+  }
+
+  /**
+   * Sets the maximum number of messages that can wait to be written
+   * to the client. The default is <code>DEFAULT_OUTBOUND_CAPACITY</code>.
+   *
+   * @param capacity the capacity of the outbound queue.
+   */
+  final public void setOutboundCapacity(int capacity)
+  {
+    outbound.setCapacity(capacity);
+  }
+
+  /**
+   * Returns the number of messages sent to the client that have not
+   * been completely written to the socket yet.
+   *
+   * @return the number of queued messages.
+   */
+  final public int getOutboundQueueSize()
+  {
+    return outbound.size();
+  }
+
+  /**
+   * Returns the number of bytes of the messages sent to the client
+   * that have not been completely written to the socket yet.
+   *
+   * @return the number of queued bytes.
+   */
+  final public long getOutboundQueueBytes()
+  {
+    return outbound.getByteCount();
+  }
+
+  /**
+   * Makes the stream sending the messages reset itself once a budget
+   * of messages or bytes has been written since the last reset, so
+   * that neither side keeps every message sent in its handle table.
+   * By default the stream is never reset. Has no effect with the
+   * codecs that keep no state between messages.
+   *
+   * @param messageBudget the number of messages between two resets,
+   *   or 0 to ignore the number of messages.
+   * @param byteBudget the number of bytes between two resets, or 0 to
+   *   ignore the number of bytes.
+   * @see com.lloseng.ocsf.io.ResettingObjectOutputStream
+   */
+  final public void setStreamResetBudget(int messageBudget, long byteBudget)
+  {
+    MessageEncoder output = this.output;
+    if (output != null)
+      output.setResetBudget(messageBudget, byteBudget);
+  }
+
+  /**
+   * Returns what the stream sending the messages has written so far.
+   *
+   * @return the statistics of the output stream, or null if the
+   *   connection is closed.
+   */
+  final public ObjectStreamStatistics getOutputStatistics()
+  {
+    MessageEncoder output = this.output;
+    return output == null ? null : output.getStatistics();
+  }
+
+  /**
+   * Returns the slow consumer policy of the connection.
+   *
+   * @return the policy, or null if there is none.
+   */
+  final public SlowConsumerPolicy getSlowConsumerPolicy()
+  {
+    return slowConsumerPolicy;
+  }
+
+  /**
+   * Sets what to do when the client falls behind. By default there is
+   * no policy and the connection is only closed when its outbound
+   * capacity is reached.
+   *
+   * @param policy the policy, or null to remove it.
+   */
+  final public void setSlowConsumerPolicy(SlowConsumerPolicy policy)
+  {
+    slowConsumerPolicy = policy;
+  }
+
+  /**
+   * Returns the number of messages sent to the client that were
+   * discarded by the slow consumer policy.
+   *
+   * @return the number of dropped messages.
+   */
+  final public long getDroppedMessageCount()
+  {
+    return droppedMessages.get();
+  }
+
+  /**
+   * Returns the session of the client, of the class created by the
+   * <code>createSession</code> method of the server.
+   *
+   * @return the session.
+   */
+  final public ClientSession getSession()
+  {
+    return session;
+  }
+
   /**
    * Saves arbitrary information about this client. Designed to be
-   * used by concrete subclasses of AbstractServer. Based on a hash map.
+   * used by concrete subclasses of AbstractServer. Saved in the
+   * session of the client.
    *
    * @param infoType   identifies the type of information
    * @param info       the information itself.
    */
   public void setInfo(String infoType, Object info)
   {
-    savedInfo.put(infoType, info);
+    session.setInfo(infoType, info);
   }
 
   /**
    * Returns information about the client saved using setInfo.
-   * Based on a hash map.
+   * Read from the session of the client.
    *
    * @param infoType   identifies the type of information
    */
   public Object getInfo(String infoType)
   {
-    return savedInfo.get(infoType);
+    return session.getInfo(infoType);
   }
 
 // RUN METHOD -------------------------------------------------------
 
   /**
-   * Constantly reads the client's input stream.
+   * Negotiates the codec with the client, then constantly reads the
+   * client's input stream.
    * Sends all objects that are read to the server.
    * Not to be called.
    */
   final public void run()
   {
+    if (!openConnection())
+      return;
+
     server.clientConnected(this);
 
     // This loop reads the input stream and responds to messages
@@ -249,18 +670,14 @@ public class ConnectionToClient extends Thread
         try { // Added in version 2.31
         
           // wait to receive an object
-          msg = input.readObject();
-                  
-          if (!readyToStop && handleMessageFromClient(msg)) // Added in version 2.2
-          {
-            server.receiveMessageFromClient(msg, this);
-          }
+          msg = input.readMessage();
+          receiveMessage(msg);
           
         } catch(ClassNotFoundException ex) { // when an unknown class is received
         
           server.clientException(this, ex);
           
-        } catch (RuntimeException ex) { // thrown by handleMessageFromClient or receiveMessageFromClient
+        } catch (RuntimeException ex) { // thrown while deserializing the message
         
           server.clientException(this, ex);
         }
@@ -280,7 +697,9 @@ public class ConnectionToClient extends Thread
       }
     } finally {
     
-        server.clientDisconnected(this);   // moved here in version 2.31
+        outbound.close(); // the writer ends once the queue is written
+        server.removeConnection(this);
+        server.connectionClosed(this);   // moved here in version 2.31
     }
   }
 
@@ -302,6 +721,256 @@ public class ConnectionToClient extends Thread
 
 // METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
 
+  /**
+   * Passes a message read from the client to the server, unless the
+   * connection is being closed. Called by the run method, or by the
+   * event loop of a <code>NioServerEngine</code>.
+   *
+   * @param msg the message read.
+   */
+  final void receiveMessage(Object msg)
+  {
+    try
+    {
+      if (!readyToStop && handleMessageFromClient(msg)) // Added in version 2.2
+      {
+        server.receiveMessageFromClient(msg, this);
+      }
+    }
+    catch (RuntimeException ex) // thrown by handleMessageFromClient or receiveMessageFromClient
+    {
+      server.clientException(this, ex);
+    }
+  }
+
+  /**
+   * Called by the event loop of a <code>NioServerEngine</code> once the
+   * channel to the client is closed. Does what the end of the run
+   * method does for connections that run their own thread.
+   *
+   * @param exception the exception that ended the connection, or
+   *   null if it was closed normally.
+   */
+  final void channelClosed(Exception exception)
+  {
+    outbound.close();
+    outbound.clear();
+
+    try
+    {
+      closeAll();
+    }
+    catch (Exception ex) { }
+
+    if (exception != null && !readyToStop)
+      server.clientException(this, exception);
+
+    server.connectionClosed(this);
+  }
+
+  /**
+   * Starts encoding the messages with the codec negotiated by the
+   * event loop of a <code>NioServerEngine</code>. The answer to the
+   * negotiation, if any, must already be queued.
+   *
+   * @param codec the codec of the connection.
+   * @exception IOException if the encoder cannot be created.
+   */
+  final void startCodec(MessageCodec codec) throws IOException
+  {
+    openOutput(codec);
+  }
+
+  /**
+   * Returns true once the closing of the connection has been initiated.
+   */
+  final boolean isClosing()
+  {
+    return readyToStop;
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Updates and returns whether the client is behind according to the
+   * watermarks of the policy. Called with the output stream locked.
+   */
+  private boolean isBehind(SlowConsumerPolicy policy)
+  {
+    int messages = outbound.size();
+    long bytes = outbound.getByteCount();
+
+    if (!behind && policy.isAboveHighWater(messages, bytes))
+    {
+      behind = true;
+      behindSince = System.currentTimeMillis();
+    }
+    else if (behind && policy.isBelowLowWater(messages, bytes))
+    {
+      behind = false;
+    }
+    return behind;
+  }
+
+  /**
+   * Negotiates the codec, starts the writer and records the connection
+   * with the server. Done by the thread reading the client rather than
+   * by the one that accepted it, so that a client slow to send its
+   * first bytes only holds up its own thread. If the negotiation fails,
+   * the socket is closed and the server never hears of the client.
+   *
+   * @return true if the connection is open.
+   */
+  private boolean openConnection()
+  {
+    try
+    {
+      openStreams();
+    }
+    catch (Exception ex)
+    {
+      try
+      {
+        closeAll();
+      }
+      catch (Exception exc) { }
+
+      return false;
+    }
+
+    startWriter(writerThread);
+    server.addConnection(this);
+
+    // The server may have closed its connections during the negotiation
+    if (server.isClosed())
+    {
+      try
+      {
+        close();
+      }
+      catch (Exception ex) { }
+    }
+    return true;
+  }
+
+  /**
+   * Negotiates the codec with the client over the socket, then creates
+   * the decoder and the encoder.
+   */
+  private void openStreams() throws IOException
+  {
+    PushbackInputStream in =
+      new PushbackInputStream(clientSocket.getInputStream(), 4);
+    socketOutput = clientSocket.getOutputStream();
+
+    // The writer is not started yet: the answer can be written directly
+    MessageCodec codec =
+      CodecNegotiation.accept(in, socketOutput, server.getCodecs());
+    input = codec.createDecoder(in);
+    openOutput(codec);
+  }
+
+  /**
+   * Creates the encoder and queues what it writes first, which must
+   * follow the answer to the negotiation.
+   */
+  private void openOutput(MessageCodec codec) throws IOException
+  {
+    this.codec = codec;
+    output = codec.createEncoder(encoded);
+
+    ByteBuffer header = encoded.take();
+    if (header.hasRemaining())
+      outbound.offer(header, false);
+  }
+
+  /**
+   * Returns the task of the thread that writes the queued messages to
+   * the socket of a connection that runs its own threads.
+   */
+  private Runnable writer()
+  {
+    return new Runnable()
+    {
+      public void run()
+      {
+        writeQueuedMessages();
+      }
+    };
+  }
+
+  /**
+   * Starts the writer thread.
+   */
+  private void startWriter(Thread writer)
+  {
+    writer.setUncaughtExceptionHandler(new UncaughtExceptionHandler()
+    {
+      public void uncaughtException(Thread thread, Throwable exception)
+      {
+        server.clientException(ConnectionToClient.this, exception);
+      }
+    });
+    writer.start();
+  }
+
+  /**
+   * Writes the queued messages until the connection is closed. If the
+   * socket fails, it is closed and the reader ends the connection.
+   */
+  private void writeQueuedMessages()
+  {
+    try
+    {
+      ByteBuffer frame;
+      while ((frame = outbound.awaitFirst()) != null)
+      {
+        OutputStream socketOutput = this.socketOutput;
+        if (socketOutput == null)
+          throw new SocketException("socket does not exist");
+
+        socketOutput.write(frame.array(), frame.arrayOffset(), frame.limit());
+        outbound.remove();
+      }
+
+      // The queue was closed by close(), whose messages are now written
+      if (readyToStop)
+        closeAll();
+    }
+    catch (Exception ex)
+    {
+      outbound.close();
+      outbound.clear();
+      try
+      {
+        closeAll();
+      }
+      catch (Exception exc) { }
+    }
+  }
+
+  /**
+   * Drops the queued messages and closes the connection at once.
+   * The server is notified of the disconnection as usual.
+   */
+  private void abort()
+  {
+    readyToStop = true;
+    outbound.close();
+    outbound.clear();
+
+    if (nioConnection != null)
+    {
+      nioConnection.close();
+      return;
+    }
+    try
+    {
+      closeAll();
+    }
+    catch (Exception ex) { }
+  }
+
   /**
    * Closes all connection to the server.
    *
@@ -312,6 +981,12 @@ public class ConnectionToClient extends Thread
   {
     // This method is final since version 2.2
 
+    // The writer, the close timer and the reader may close the
+    // connection at the same time
+    Socket clientSocket = this.clientSocket;
+    MessageEncoder output = this.output;
+    MessageDecoder input = this.input;
+
     try
     {
       // Close the socket
@@ -332,9 +1007,10 @@ public class ConnectionToClient extends Thread
       // Doing so allows, but does not require, any finalizers
       // of these objects to reclaim system resources if and
       // when they are garbage collected.
-      output = null;
-      input = null;
-      clientSocket = null;
+      this.output = null;
+      this.socketOutput = null;
+      this.input = null;
+      this.clientSocket = null;
     }
   }
 
@@ -349,5 +1025,20 @@ public class ConnectionToClient extends Thread
     }
     catch(IOException e) {}
   }
+
+// INNER CLASSES ****************************************************
+
+  /**
+   * A byte array output stream whose content can be taken as a buffer.
+   */
+  private static final class MessageBuffer extends ByteArrayOutputStream
+  {
+    ByteBuffer take()
+    {
+      ByteBuffer bytes = ByteBuffer.wrap(toByteArray());
+      reset();
+      return bytes;
+    }
+  }
 }
 // End of ConnectionToClient class
@@ -0,0 +1,226 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.server;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* A <code> MessageDispatcher </code> lets a server handle the messages
+* of different clients in parallel. By default, every message is handled
+* under the lock of the server, one at a time. Once a dispatcher is set
+* with <code>AbstractServer.setMessageDispatcher</code>, the messages of
+* each client are queued on the connection and handled, in the order
+* they were received, by a pool of worker threads; messages of different
+* clients are handled concurrently and no lock is held by the framework.<p>
+*
+* The <code>clientDisconnected</code> hook goes through the same queue,
+* so it is called after the last message of the client has been handled.
+* Messages still queued when a connection is closed by the server are
+* discarded, as they would not have been handled by the default
+* dispatching either.<p>
+*
+* A server using a dispatcher must make the state shared between its
+* clients thread-safe.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.server.AbstractServer#setMessageDispatcher
+*/
+public class MessageDispatcher
+{
+// CLASS VARIABLES **************************************************
+
+  /**
+   * Queued in place of a null message, since the queues cannot hold null.
+   */
+  private static final Object NULL_MESSAGE = new Object();
+
+  /**
+   * Queued to call the <code>clientDisconnected</code> hook.
+   */
+  private static final Object DISCONNECTED = new Object();
+
+  /**
+   * The maximum number of messages of a client handled in a row before
+   * the worker moves on to another client.
+   */
+  private static final int BATCH_SIZE = 64;
+
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The number of worker threads.
+   */
+  private final int threadCount;
+
+  /**
+   * The worker threads.
+   */
+  private final ExecutorService workers;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs a dispatcher with one worker per available processor.
+   */
+  public MessageDispatcher()
+  {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Constructs a dispatcher with the given number of workers.
+   *
+   * @param threadCount the number of worker threads.
+   */
+  public MessageDispatcher(int threadCount)
+  {
+    if (threadCount < 1)
+      throw new IllegalArgumentException("at least one worker is needed");
+    this.threadCount = threadCount;
+
+    // Workers are started lazily, possibly by a connection thread, and
+    // must not join the thread group of the connections
+    final ThreadGroup group = Thread.currentThread().getThreadGroup();
+
+    workers = Executors.newFixedThreadPool(threadCount, new ThreadFactory()
+    {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable worker)
+      {
+        Thread thread = new Thread(group, worker,
+          "MessageDispatcher-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * Returns the number of worker threads.
+   *
+   * @return the number of workers.
+   */
+  final public int getThreadCount()
+  {
+    return threadCount;
+  }
+
+  /**
+   * Stops the workers once the queued messages have been handled.
+   * The dispatcher cannot be used afterwards.
+   */
+  public void shutdown()
+  {
+    workers.shutdown();
+  }
+
+// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  /**
+   * Queues a message received from a client.
+   *
+   * @param server the server that will handle the message.
+   * @param msg the message.
+   * @param client the connection that received it.
+   */
+  final void dispatch(AbstractServer server, Object msg,
+    ConnectionToClient client)
+  {
+    enqueue(server, msg == null ? NULL_MESSAGE : msg, client);
+  }
+
+  /**
+   * Queues the disconnection of a client, after its messages.
+   *
+   * @param server the server to notify.
+   * @param client the closed connection.
+   */
+  final void dispatchDisconnection(AbstractServer server,
+    ConnectionToClient client)
+  {
+    enqueue(server, DISCONNECTED, client);
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Adds an event to the queue of a client.
+   */
+  private void enqueue(AbstractServer server, Object event,
+    ConnectionToClient client)
+  {
+    client.dispatchQueue.add(event);
+    schedule(server, client);
+  }
+
+  /**
+   * Makes sure a worker will drain the queue of a client, unless one
+   * is already doing it.
+   */
+  private void schedule(final AbstractServer server,
+    final ConnectionToClient client)
+  {
+    if (!client.dispatchScheduled.compareAndSet(false, true))
+      return;
+
+    try
+    {
+      workers.execute(new Runnable()
+      {
+        public void run()
+        {
+          drain(server, client);
+        }
+      });
+    }
+    catch (RejectedExecutionException ex)
+    {
+      // The dispatcher has been shut down: drain in this thread
+      drain(server, client);
+    }
+  }
+
+  /**
+   * Handles the queued events of a client. Only one worker at a time
+   * drains the queue of a given client.
+   */
+  private void drain(AbstractServer server, ConnectionToClient client)
+  {
+    Queue<Object> queue = client.dispatchQueue;
+
+    for (int handled = 0; handled < BATCH_SIZE; handled++)
+    {
+      Object event = queue.poll();
+      if (event == null)
+        break;
+
+      try
+      {
+        if (event == DISCONNECTED)
+          server.clientDisconnected(client);
+        else if (!client.isClosing())
+          server.handleMessageFromClient(
+            event == NULL_MESSAGE ? null : event, client);
+      }
+      catch (RuntimeException ex)
+      {
+        server.clientException(client, ex);
+      }
+    }
+
+    client.dispatchScheduled.set(false);
+
+    // Events added after the last poll, or left after a full batch
+    if (!queue.isEmpty())
+      schedule(server, client);
+  }
+}
+// End of MessageDispatcher class
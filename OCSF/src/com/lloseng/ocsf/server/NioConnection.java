@@ -0,0 +1,474 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import com.lloseng.ocsf.io.*;
+
+/**
+* A <code> NioConnection </code> moves the data of one
+* <code> ConnectionToClient </code> over a non-blocking socket channel
+* on behalf of a <code> NioServerEngine </code>. The codec is negotiated
+* as with the threaded connections, so the same clients can connect.<p>
+*
+* Bytes are read by the event loop and handed to the decoder of the
+* codec only once it has found a complete message in them. The server
+* is notified of the connection once the codec is known. Objects sent
+* to the client are encoded and queued by the
+* <code> ConnectionToClient </code>; the queued bytes are written
+* immediately if the socket can take them, and by the event loop when
+* the socket becomes writable otherwise.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.server.NioServerEngine
+*/
+final class NioConnection
+{
+// CLASS VARIABLES **************************************************
+
+  /**
+   * The initial size of the read buffer.
+   */
+  private static final int INITIAL_BUFFER_SIZE = 8192;
+
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The non-blocking channel to the client.
+   */
+  private final SocketChannel channel;
+
+  /**
+   * The event loop the channel is registered with.
+   */
+  private final NioEventLoop loop;
+
+  /**
+   * The server the client is connected to.
+   */
+  private final AbstractServer server;
+
+  /**
+   * The connection seen by the server.
+   */
+  private ConnectionToClient client;
+
+  /**
+   * The key of the channel, set once registered.
+   */
+  private SelectionKey key;
+
+  /**
+   * Bytes received and not yet deserialized.
+   */
+  private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+  /**
+   * The bytes of the message being decoded.
+   */
+  private final InputWindow window = new InputWindow();
+
+  /**
+   * Decodes the messages of the client, created once the codec has
+   * been negotiated.
+   */
+  private MessageDecoder decoder;
+
+  /**
+   * Indicates if the server has been notified of the connection.
+   * Only used by the loop thread.
+   */
+  private boolean connected = false;
+
+  /**
+   * Indicates if the loop is watching for writability.
+   * Guarded by this object.
+   */
+  private boolean writeInterest = false;
+
+  /**
+   * Indicates if the connection is closed or closing.
+   * Guarded by this object.
+   */
+  private boolean closed = false;
+
+  /**
+   * Indicates if the disconnection has been handled.
+   * Only used by the loop thread.
+   */
+  private boolean finished = false;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs the connection for a newly accepted channel.
+   *
+   * @param channel the accepted channel.
+   * @param loop the loop that will handle the channel.
+   * @param server the server the client is connected to.
+   * @exception IOException if the channel cannot be configured.
+   */
+  NioConnection(SocketChannel channel, NioEventLoop loop,
+    AbstractServer server) throws IOException
+  {
+    this.channel = channel;
+    this.loop = loop;
+    this.server = server;
+
+    channel.configureBlocking(false);
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Returns the socket of the channel.
+   */
+  Socket getSocket()
+  {
+    return channel.socket();
+  }
+
+  /**
+   * Registers the channel with the selector of the loop. The server
+   * is notified once the codec has been negotiated. Must be called
+   * from the loop thread.
+   *
+   * @param client the connection seen by the server.
+   */
+  void register(ConnectionToClient client)
+  {
+    this.client = client;
+
+    try
+    {
+      synchronized (this)
+      {
+        key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+      }
+    }
+    catch (IOException ex)
+    {
+      finish(ex);
+    }
+  }
+
+  /**
+   * Called once messages have been queued by the connection. They are
+   * written from the caller's thread if the event loop is not already
+   * waiting to write. Can be called from any thread.
+   */
+  synchronized void outputReady()
+  {
+    if (!writeInterest)
+      flushPendingWrites();
+  }
+
+  /**
+   * Closes the connection. The bytes already queued are written if
+   * the socket can take them, then the channel is closed and the
+   * server notified by the loop.
+   */
+  synchronized void close()
+  {
+    if (closed)
+      return;
+    closed = true;
+
+    loop.execute(new Runnable()
+    {
+      public void run()
+      {
+        flushPendingWrites();
+        finish(null);
+      }
+    });
+  }
+
+  /**
+   * Handles the readiness of the channel. Called by the loop.
+   *
+   * @param key the key of the channel.
+   */
+  void handleReady(SelectionKey key)
+  {
+    try
+    {
+      if (key.isReadable())
+        read();
+
+      if (key.isValid() && key.isWritable())
+        flushPendingWrites();
+    }
+    catch (CancelledKeyException ex)
+    {
+      finish(null);
+    }
+  }
+
+  /**
+   * Closes the channel and notifies the server, once.
+   * Must be called from the loop thread.
+   *
+   * @param exception the exception that ended the connection, or
+   *   null if it was closed normally.
+   */
+  void finish(Exception exception)
+  {
+    if (finished)
+      return;
+    finished = true;
+
+    synchronized (this)
+    {
+      closed = true;
+    }
+
+    if (key != null)
+      key.cancel();
+    try
+    {
+      channel.close();
+    }
+    catch (IOException ex) {}
+
+    if (connected)
+    {
+      server.removeConnection(client);
+      client.channelClosed(exception);
+    }
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Reads the available bytes and delivers the complete messages.
+   */
+  private void read()
+  {
+    int count;
+    try
+    {
+      if (!readBuffer.hasRemaining())
+        readBuffer = grow(readBuffer);
+
+      count = channel.read(readBuffer);
+    }
+    catch (IOException ex)
+    {
+      finish(ex);
+      return;
+    }
+
+    if (count < 0)
+    {
+      finish(new EOFException());
+      return;
+    }
+
+    readBuffer.flip();
+    try
+    {
+      deliverMessages();
+    }
+    catch (IOException ex)
+    {
+      finish(ex);
+      return;
+    }
+    readBuffer.compact();
+  }
+
+  /**
+   * Decodes the complete messages found in the read buffer and hands
+   * them to the connection.
+   */
+  private void deliverMessages() throws IOException
+  {
+    byte[] bytes = readBuffer.array();
+
+    if (decoder == null)
+    {
+      int length = CodecNegotiation.preambleLength(
+        bytes, readBuffer.position(), readBuffer.remaining());
+      if (length < 0)
+        return;
+
+      negotiate(bytes, readBuffer.position(), length);
+      readBuffer.position(readBuffer.position() + length);
+    }
+
+    while (!finished && readBuffer.hasRemaining())
+    {
+      int start = readBuffer.position();
+      int length = decoder.frameLength(bytes, start, readBuffer.remaining());
+      if (length < 0)
+        return;
+
+      window.set(bytes, start, length);
+      readBuffer.position(start + length);
+
+      Object msg;
+      try
+      {
+        msg = decoder.readMessage();
+      }
+      catch (ClassNotFoundException | RuntimeException ex)
+      {
+        // The stream can still be read, as with threaded connections
+        server.clientException(client, ex);
+        continue;
+      }
+
+      if (window.remaining() != 0)
+        throw new StreamCorruptedException("message length mismatch");
+
+      client.receiveMessage(msg);
+    }
+  }
+
+  /**
+   * Answers the codec offer of the client, starts the codec and
+   * notifies the server of the connection.
+   */
+  private void negotiate(byte[] bytes, int off, int len) throws IOException
+  {
+    ByteArrayOutputStream answer = new ByteArrayOutputStream();
+    MessageCodec codec;
+    try
+    {
+      codec = CodecNegotiation.accept(bytes, off, len, answer,
+        server.getCodecs());
+    }
+    finally
+    {
+      // A refusal is sent too, before the channel is closed
+      if (answer.size() > 0)
+      {
+        client.outbound.offer(ByteBuffer.wrap(answer.toByteArray()), false);
+        flushPendingWrites();
+      }
+    }
+
+    client.startCodec(codec);
+    decoder = codec.createDecoder(window);
+
+    connected = true;
+    server.addConnection(client);
+    server.clientConnected(client);
+    flushPendingWrites();
+  }
+
+  /**
+   * Writes as many queued bytes as the channel takes, and watches for
+   * writability if some remain.
+   */
+  private synchronized void flushPendingWrites()
+  {
+    if (key == null || !key.isValid())
+      return;
+
+    OutboundQueue outbound = client.outbound;
+    try
+    {
+      ByteBuffer bytes;
+      while ((bytes = outbound.peek()) != null)
+      {
+        channel.write(bytes);
+        if (bytes.hasRemaining())
+        {
+          if (!writeInterest)
+          {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            writeInterest = true;
+            if (!loop.inLoop())
+              loop.selector().wakeup(); // to select with the new interest
+          }
+          return;
+        }
+        outbound.remove();
+      }
+    }
+    catch (IOException ex)
+    {
+      outbound.close();
+      outbound.clear();
+      close();
+      return;
+    }
+    catch (CancelledKeyException ex)
+    {
+      return; // closed by the loop in the meantime
+    }
+
+    if (writeInterest)
+    {
+      key.interestOps(SelectionKey.OP_READ);
+      writeInterest = false;
+    }
+  }
+
+  /**
+   * Returns a buffer twice as large holding the same bytes.
+   */
+  private static ByteBuffer grow(ByteBuffer buffer)
+  {
+    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+    buffer.flip();
+    larger.put(buffer);
+    return larger;
+  }
+
+// INNER CLASSES ****************************************************
+
+  /**
+   * An input stream over a region of the read buffer.
+   */
+  private static final class InputWindow extends InputStream
+  {
+    private byte[] buf;
+    private int pos;
+    private int end;
+
+    void set(byte[] buf, int off, int len)
+    {
+      this.buf = buf;
+      this.pos = off;
+      this.end = off + len;
+    }
+
+    int remaining()
+    {
+      return end - pos;
+    }
+
+    public int read()
+    {
+      return pos < end ? buf[pos++] & 0xFF : -1;
+    }
+
+    public int read(byte[] b, int off, int len)
+    {
+      if (len == 0)
+        return 0;
+      if (pos >= end)
+        return -1;
+      int n = Math.min(len, end - pos);
+      System.arraycopy(buf, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    public int available()
+    {
+      return end - pos;
+    }
+  }
+}
+// End of NioConnection class
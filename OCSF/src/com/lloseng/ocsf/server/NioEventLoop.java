@@ -0,0 +1,197 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.server;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+* An <code> NioEventLoop </code> is one of the threads of a
+* <code> NioServerEngine </code>. It owns a selector on which a share of
+* the client channels are registered and handles their read and write
+* readiness. Work that must touch the selector from another thread is
+* submitted with <code>execute</code>.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.server.NioServerEngine
+*/
+final class NioEventLoop implements Runnable
+{
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The engine that owns this loop.
+   */
+  private final NioServerEngine engine;
+
+  /**
+   * The selector of this loop.
+   */
+  private final Selector selector;
+
+  /**
+   * The tasks submitted by other threads.
+   */
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+  /**
+   * The thread running this loop.
+   */
+  private final Thread thread;
+
+  /**
+   * Indicates if the loop is ready to stop.
+   */
+  private volatile boolean readyToStop = false;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs and starts a new event loop.
+   *
+   * @param engine the engine that owns the loop.
+   * @param name the name of the loop thread.
+   * @exception IOException if the selector cannot be opened.
+   */
+  NioEventLoop(NioServerEngine engine, String name) throws IOException
+  {
+    this.engine = engine;
+    this.selector = Selector.open();
+    this.thread = new Thread(this, name);
+    thread.start();
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Runs a task on the loop thread.
+   *
+   * @param task the task to run.
+   */
+  void execute(Runnable task)
+  {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+   * Returns true if called from the loop thread.
+   */
+  boolean inLoop()
+  {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Returns the selector of this loop.
+   */
+  Selector selector()
+  {
+    return selector;
+  }
+
+  /**
+   * Asks the loop to stop and waits for it, unless called from
+   * the loop thread itself. The connections still registered are
+   * closed by the loop before it ends.
+   */
+  void shutdown()
+  {
+    readyToStop = true;
+    selector.wakeup();
+
+    if (!inLoop())
+    {
+      try
+      {
+        thread.join();
+      }
+      catch (InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+// RUN METHOD -------------------------------------------------------
+
+  /**
+   * Waits for channels to be ready and handles them.
+   * Not to be called.
+   */
+  public void run()
+  {
+    try
+    {
+      while (!readyToStop)
+      {
+        selector.select();
+        runTasks();
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext())
+        {
+          SelectionKey key = keys.next();
+          keys.remove();
+
+          if (!key.isValid())
+            continue;
+
+          Object attachment = key.attachment();
+          if (attachment instanceof NioConnection)
+            ((NioConnection)attachment).handleReady(key);
+          else if (key.isAcceptable())
+            engine.acceptConnections();
+        }
+      }
+    }
+    catch (IOException exception)
+    {
+      engine.loopException(exception);
+    }
+    finally
+    {
+      runTasks();
+
+      // Close the connections that are still registered
+      for (SelectionKey key : selector.keys())
+      {
+        if (key.attachment() instanceof NioConnection)
+          ((NioConnection)key.attachment()).finish(null);
+      }
+
+      try
+      {
+        selector.close();
+      }
+      catch (IOException ex) {}
+    }
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Runs the tasks submitted since the last call.
+   */
+  private void runTasks()
+  {
+    Runnable task;
+    while ((task = tasks.poll()) != null)
+    {
+      try
+      {
+        task.run();
+      }
+      catch (RuntimeException ex)
+      {
+        engine.loopException(ex);
+      }
+    }
+  }
+}
+// End of NioEventLoop class
@@ -0,0 +1,326 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.server;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+/**
+* The <code> NioServerEngine </code> class is a server engine built on
+* non-blocking socket channels. Instead of one thread per client, a small
+* fixed number of event loop threads, each owning a selector, read the
+* data of all the clients. This lets a server hold many more connections
+* than the default engine.<p>
+*
+* The clients are still represented by <code> ConnectionToClient </code>
+* instances and the hook methods of <code> AbstractServer </code> are
+* called as usual, from the event loop threads. The wire format is
+* unchanged, so existing clients can connect to a server using this
+* engine. Note that no thread is started for these connections and that
+* the connection factory of the server is not used.<p>
+*
+* Since a message handler runs on an event loop thread, a handler that
+* blocks delays the other clients of the same loop.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.server.AbstractServer#setServerEngine
+*/
+public class NioServerEngine extends AbstractServerEngine
+{
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The number of event loops.
+   */
+  private final int loopCount;
+
+  /**
+   * The server using this engine, set when listening starts.
+   */
+  private AbstractServer server = null;
+
+  /**
+   * The listening channel.
+   */
+  private volatile ServerSocketChannel serverChannel = null;
+
+  /**
+   * The key of the listening channel in the first event loop.
+   */
+  private SelectionKey acceptKey = null;
+
+  /**
+   * The event loops. The first one also accepts the connections.
+   */
+  private volatile NioEventLoop[] loops = null;
+
+  /**
+   * The index of the loop that will handle the next connection.
+   * Only used by the first loop.
+   */
+  private int nextLoop = 0;
+
+  /**
+   * Indicates if connections are being accepted.
+   */
+  private volatile boolean listening = false;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs an engine with one event loop per available processor.
+   */
+  public NioServerEngine()
+  {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Constructs an engine with the given number of event loops.
+   *
+   * @param loopCount the number of event loop threads.
+   */
+  public NioServerEngine(int loopCount)
+  {
+    if (loopCount < 1)
+      throw new IllegalArgumentException("at least one event loop is needed");
+    this.loopCount = loopCount;
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * Returns the number of event loop threads.
+   *
+   * @return the number of event loops.
+   */
+  final public int getLoopCount()
+  {
+    return loopCount;
+  }
+
+// METHODS CALLED BY THE SERVER -------------------------------------
+
+  /**
+   * Opens the listening channel and the event loops if needed, then
+   * starts accepting connections.
+   *
+   * @param server the server that uses this engine.
+   * @exception IOException if the channel or a selector cannot be opened.
+   */
+  protected synchronized void listen(AbstractServer server) throws IOException
+  {
+    if (listening)
+      return;
+    this.server = server;
+
+    if (serverChannel == null)
+    {
+      ServerSocketChannel channel = ServerSocketChannel.open();
+      NioEventLoop[] newLoops = new NioEventLoop[loopCount];
+      try
+      {
+        channel.bind(new InetSocketAddress(server.getPort()),
+          server.getBacklog());
+        channel.configureBlocking(false);
+
+        for (int i = 0; i < loopCount; i++)
+          newLoops[i] = new NioEventLoop(this, "NioEventLoop-" + i);
+      }
+      catch (IOException ex)
+      {
+        for (int i = 0; i < loopCount; i++)
+          if (newLoops[i] != null)
+            newLoops[i].shutdown();
+        channel.close();
+        throw ex;
+      }
+      serverChannel = channel;
+      loops = newLoops;
+    }
+
+    final ServerSocketChannel channel = serverChannel;
+    final NioEventLoop acceptLoop = loops[0];
+    acceptLoop.execute(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          if (acceptKey == null)
+            acceptKey = channel.register(acceptLoop.selector(),
+              SelectionKey.OP_ACCEPT);
+          else
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException ex)
+        {
+          stopAccepting(ex);
+        }
+      }
+    });
+
+    listening = true;
+    server.serverStarted();
+  }
+
+  /**
+   * Stops accepting connections. The listening channel stays open so
+   * that listening can be resumed.
+   */
+  protected synchronized void stopListening()
+  {
+    if (!listening)
+      return;
+    listening = false;
+
+    loops[0].execute(new Runnable()
+    {
+      public void run()
+      {
+        if (acceptKey != null && acceptKey.isValid())
+          acceptKey.interestOps(0);
+      }
+    });
+    server.serverStopped();
+  }
+
+  /**
+   * Closes the listening channel and stops the event loops.
+   *
+   * @exception IOException if the listening channel cannot be closed.
+   */
+  protected void close() throws IOException
+  {
+    NioEventLoop[] oldLoops;
+    ServerSocketChannel oldChannel;
+
+    synchronized (this)
+    {
+      if (serverChannel == null)
+        return;
+      stopListening();
+
+      oldLoops = loops;
+      oldChannel = serverChannel;
+      loops = null;
+      serverChannel = null;
+      acceptKey = null;
+    }
+
+    try
+    {
+      oldChannel.close();
+    }
+    finally
+    {
+      for (int i = 0; i < oldLoops.length; i++)
+        oldLoops[i].shutdown();
+    }
+  }
+
+  /**
+   * Returns true if connections are being accepted.
+   *
+   * @return true if listening.
+   */
+  protected boolean isListening()
+  {
+    return listening;
+  }
+
+  /**
+   * Returns true if the listening channel is closed.
+   *
+   * @return true if closed.
+   */
+  protected synchronized boolean isClosed()
+  {
+    return serverChannel == null;
+  }
+
+// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  /**
+   * Accepts the pending connections and hands each of them to an
+   * event loop. Called by the first event loop.
+   */
+  void acceptConnections()
+  {
+    ServerSocketChannel serverChannel = this.serverChannel;
+    NioEventLoop[] loops = this.loops;
+    if (serverChannel == null || loops == null)
+      return;
+
+    while (listening)
+    {
+      SocketChannel channel;
+      try
+      {
+        channel = serverChannel.accept();
+      }
+      catch (IOException ex)
+      {
+        stopAccepting(ex);
+        return;
+      }
+      if (channel == null)
+        return;
+
+      NioEventLoop loop = loops[nextLoop];
+      nextLoop = (nextLoop + 1) % loops.length;
+
+      final NioConnection connection;
+      final ConnectionToClient client;
+      try
+      {
+        connection = new NioConnection(channel, loop, server);
+        client = new ConnectionToClient(
+          server.getClientThreadGroup(), connection, server);
+      }
+      catch (IOException ex)
+      {
+        try
+        {
+          channel.close();
+        }
+        catch (IOException e) {}
+        continue;
+      }
+
+      loop.execute(new Runnable()
+      {
+        public void run()
+        {
+          connection.register(client);
+        }
+      });
+    }
+  }
+
+  /**
+   * Called when an event loop fails. The engine stops accepting
+   * connections and the server is notified.
+   *
+   * @param exception the exception raised.
+   */
+  void loopException(Throwable exception)
+  {
+    if (listening)
+      stopAccepting(exception);
+  }
+
+  /**
+   * Stops accepting connections because of an exception.
+   */
+  private void stopAccepting(Throwable exception)
+  {
+    server.listeningException(exception);
+    stopListening();
+  }
+}
+// End of NioServerEngine class
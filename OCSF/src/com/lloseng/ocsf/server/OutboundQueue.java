@@ -0,0 +1,221 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.server;
+
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+* An <code> OutboundQueue </code> holds the encoded messages of a
+* <code> ConnectionToClient </code> that have not been written to the
+* client yet. Senders only add bytes to the queue; the writer of the
+* connection, a thread or an event loop, removes them once they have
+* been written. The queue is bounded, so that a client that does not
+* read its messages cannot make the server run out of memory.<p>
+*
+* A message stays in the queue until it is completely written, so the
+* number of queued messages and bytes includes the one being written.
+* Messages marked as droppable can be discarded, except the one being
+* written, to apply a <code> SlowConsumerPolicy </code>.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.server.ConnectionToClient#getOutboundQueueSize
+*/
+final class OutboundQueue
+{
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The encoded messages, oldest first.
+   */
+  private final ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+
+  /**
+   * The maximum number of queued messages.
+   */
+  private int capacity;
+
+  /**
+   * The number of bytes of the queued messages.
+   */
+  private long byteCount = 0;
+
+  /**
+   * Indicates if the queue accepts no more messages.
+   */
+  private boolean closed = false;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs an empty queue.
+   *
+   * @param capacity the maximum number of queued messages.
+   */
+  OutboundQueue(int capacity)
+  {
+    setCapacity(capacity);
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  synchronized void setCapacity(int capacity)
+  {
+    if (capacity < 1)
+      throw new IllegalArgumentException("the capacity must be positive");
+    this.capacity = capacity;
+  }
+
+  synchronized int getCapacity()
+  {
+    return capacity;
+  }
+
+  synchronized int size()
+  {
+    return frames.size();
+  }
+
+  synchronized long getByteCount()
+  {
+    return byteCount;
+  }
+
+  synchronized boolean isClosed()
+  {
+    return closed;
+  }
+
+// INSTANCE METHODS *************************************************
+
+  /**
+   * Adds an encoded message at the end of the queue. The position of
+   * the buffer must be 0.
+   *
+   * @param bytes the bytes of the message.
+   * @param droppable true if the message can be discarded, in which
+   *   case it must not depend on the messages before it.
+   * @return false if the queue is full.
+   * @exception SocketException if the queue is closed.
+   */
+  synchronized boolean offer(ByteBuffer bytes, boolean droppable)
+    throws SocketException
+  {
+    if (closed)
+      throw new SocketException("socket does not exist");
+    if (frames.size() >= capacity)
+      return false;
+
+    frames.add(new Frame(bytes, droppable));
+    byteCount += bytes.limit();
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Returns the oldest message, leaving it in the queue.
+   *
+   * @return the bytes of the message, or null if the queue is empty.
+   */
+  synchronized ByteBuffer peek()
+  {
+    Frame frame = frames.peek();
+    return frame == null ? null : frame.bytes;
+  }
+
+  /**
+   * Waits for a message and returns it, leaving it in the queue.
+   *
+   * @return the bytes of the oldest message, or null once the queue
+   *   is closed and empty.
+   * @exception InterruptedException if the thread is interrupted.
+   */
+  synchronized ByteBuffer awaitFirst() throws InterruptedException
+  {
+    while (frames.isEmpty() && !closed)
+      wait();
+    return peek();
+  }
+
+  /**
+   * Removes the oldest message, once it has been written.
+   */
+  synchronized void remove()
+  {
+    Frame frame = frames.poll();
+    if (frame != null)
+      byteCount -= frame.bytes.limit();
+    if (frames.isEmpty())
+      notifyAll();
+  }
+
+  /**
+   * Discards the oldest droppable messages until the queue is under
+   * the low watermarks of the policy. The message being written is
+   * kept.
+   *
+   * @param policy the policy giving the low watermarks.
+   * @return the number of messages discarded.
+   */
+  synchronized int dropOldest(SlowConsumerPolicy policy)
+  {
+    int dropped = 0;
+    Iterator<Frame> iterator = frames.iterator();
+    if (iterator.hasNext())
+      iterator.next(); // may be partly written
+
+    while (iterator.hasNext()
+      && !policy.isBelowLowWater(frames.size(), byteCount))
+    {
+      Frame frame = iterator.next();
+      if (frame.droppable)
+      {
+        iterator.remove();
+        byteCount -= frame.bytes.limit();
+        dropped++;
+      }
+    }
+    return dropped;
+  }
+
+  /**
+   * Refuses any new message. The queued messages can still be written.
+   */
+  synchronized void close()
+  {
+    closed = true;
+    notifyAll();
+  }
+
+  /**
+   * Discards the queued messages.
+   */
+  synchronized void clear()
+  {
+    frames.clear();
+    byteCount = 0;
+    notifyAll();
+  }
+
+// INNER CLASSES ****************************************************
+
+  /**
+   * A queued message.
+   */
+  private static final class Frame
+  {
+    final ByteBuffer bytes;
+    final boolean droppable;
+
+    Frame(ByteBuffer bytes, boolean droppable)
+    {
+      this.bytes = bytes;
+      this.droppable = droppable;
+    }
+  }
+}
+// End of OutboundQueue class
@@ -0,0 +1,218 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.server;
+
+/**
+* A <code> SlowConsumerPolicy </code> tells a
+* <code> ConnectionToClient </code> what to do when its client falls
+* behind, that is when the messages waiting to be written to it exceed
+* a high watermark. The client is considered to have caught up once
+* they are back under the low watermark. Watermarks can be given in
+* messages, in bytes, or both; a watermark of 0 is not checked.<p>
+*
+* The possible actions are:
+* <ul>
+* <li> <code>DROP_OLDEST</code>: the oldest queued messages that can be
+* dropped are discarded until the queue is back under the low
+* watermark.
+* <li> <code>DROP_NEW</code>: while the client is behind, new messages
+* that can be dropped are discarded instead of being queued.
+* <li> <code>DISCONNECT</code>: the client is disconnected when it has
+* been behind for longer than the disconnect delay.
+* </ul>
+* Whether a message can be dropped is decided by
+* <code>isDroppable</code>, which concrete servers can override to
+* protect the messages that their clients must receive. In all cases,
+* the connection is still closed if its outbound capacity is reached.<p>
+*
+* A policy can be shared by many connections. It should not be changed
+* once it is in use.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.server.ConnectionToClient#setSlowConsumerPolicy
+*/
+public class SlowConsumerPolicy
+{
+// CLASS VARIABLES **************************************************
+
+  /**
+   * The actions that can be taken when a client falls behind.
+   */
+  public enum Action { DROP_OLDEST, DROP_NEW, DISCONNECT }
+
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The action taken when the client falls behind.
+   */
+  private final Action action;
+
+  /**
+   * The number of queued messages above which the client is behind.
+   */
+  private final int highWaterMessages;
+
+  /**
+   * The number of queued messages under which the client has caught up.
+   */
+  private final int lowWaterMessages;
+
+  /**
+   * The number of queued bytes above which the client is behind.
+   */
+  private long highWaterBytes = 0;
+
+  /**
+   * The number of queued bytes under which the client has caught up.
+   */
+  private long lowWaterBytes = 0;
+
+  /**
+   * How long, in milliseconds, a client can be behind before being
+   * disconnected by the <code>DISCONNECT</code> action.
+   */
+  private long disconnectDelay = 0;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs a policy with watermarks given in messages.
+   *
+   * @param action the action taken when the client falls behind.
+   * @param highWaterMessages the number of queued messages above which
+   *   the client is behind, or 0.
+   * @param lowWaterMessages the number of queued messages under which
+   *   the client has caught up.
+   */
+  public SlowConsumerPolicy(Action action, int highWaterMessages,
+    int lowWaterMessages)
+  {
+    if (action == null)
+      throw new IllegalArgumentException("an action is needed");
+    checkWatermarks(highWaterMessages, lowWaterMessages);
+
+    this.action = action;
+    this.highWaterMessages = highWaterMessages;
+    this.lowWaterMessages = lowWaterMessages;
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * Returns the action taken when the client falls behind.
+   *
+   * @return the action.
+   */
+  final public Action getAction()
+  {
+    return action;
+  }
+
+  final public int getHighWaterMessages()
+  {
+    return highWaterMessages;
+  }
+
+  final public int getLowWaterMessages()
+  {
+    return lowWaterMessages;
+  }
+
+  final public long getHighWaterBytes()
+  {
+    return highWaterBytes;
+  }
+
+  final public long getLowWaterBytes()
+  {
+    return lowWaterBytes;
+  }
+
+  /**
+   * Sets the watermarks given in bytes. They are checked in addition
+   * to the ones given in messages.
+   *
+   * @param highWaterBytes the number of queued bytes above which the
+   *   client is behind, or 0.
+   * @param lowWaterBytes the number of queued bytes under which the
+   *   client has caught up.
+   */
+  final public void setByteWatermarks(long highWaterBytes, long lowWaterBytes)
+  {
+    checkWatermarks(highWaterBytes, lowWaterBytes);
+    this.highWaterBytes = highWaterBytes;
+    this.lowWaterBytes = lowWaterBytes;
+  }
+
+  /**
+   * Returns how long a client can be behind before being disconnected
+   * by the <code>DISCONNECT</code> action.
+   *
+   * @return the delay in milliseconds.
+   */
+  final public long getDisconnectDelay()
+  {
+    return disconnectDelay;
+  }
+
+  /**
+   * Sets how long a client can be behind before being disconnected by
+   * the <code>DISCONNECT</code> action. The default is 0: the client is
+   * disconnected as soon as the high watermark is exceeded.
+   *
+   * @param disconnectDelay the delay in milliseconds.
+   */
+  final public void setDisconnectDelay(long disconnectDelay)
+  {
+    if (disconnectDelay < 0)
+      throw new IllegalArgumentException("negative delay");
+    this.disconnectDelay = disconnectDelay;
+  }
+
+// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
+
+  /**
+   * Hook method called to know if a message sent to a client that is
+   * behind can be discarded. The default implementation returns true.
+   *
+   * @param msg the message sent.
+   * @return true if the message can be dropped.
+   */
+  protected boolean isDroppable(Object msg)
+  {
+    return true;
+  }
+
+// METHODS TO BE USED FROM WITHIN THE FRAMEWORK ONLY ----------------
+
+  /**
+   * Returns true if the queue exceeds one of the high watermarks.
+   */
+  final boolean isAboveHighWater(int messages, long bytes)
+  {
+    return (highWaterMessages > 0 && messages > highWaterMessages)
+      || (highWaterBytes > 0 && bytes > highWaterBytes);
+  }
+
+  /**
+   * Returns true if the queue is under all the low watermarks.
+   */
+  final boolean isBelowLowWater(int messages, long bytes)
+  {
+    return (highWaterMessages == 0 || messages <= lowWaterMessages)
+      && (highWaterBytes == 0 || bytes <= lowWaterBytes);
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  private static void checkWatermarks(long high, long low)
+  {
+    if (high < 0 || low < 0 || (high > 0 && low > high))
+      throw new IllegalArgumentException(
+        "the watermarks must satisfy 0 <= low <= high");
+  }
+}
+// End of SlowConsumerPolicy class
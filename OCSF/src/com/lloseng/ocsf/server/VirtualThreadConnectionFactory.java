@@ -0,0 +1,146 @@
+// This file contains material supporting the textbook:
+// "Object Oriented Software Engineering" and is issued under the open-source
+// license found at www.lloseng.com
+
+package com.lloseng.ocsf.server;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+* The <code> VirtualThreadConnectionFactory </code> creates regular
+* <code> ConnectionToClient </code> instances whose messages are read
+* by a virtual thread instead of a platform thread. The blocking
+* read loop of the connections is unchanged, but an idle client only
+* costs a few kilobytes of heap instead of a thread stack, so a server
+* can hold many more mostly idle connections.<p>
+*
+* Virtual threads are available from Java 21. On an older virtual
+* machine the factory falls back to platform threads with a small
+* stack; <code>isVirtual</code> tells which kind is used.<p>
+*
+* The factory is installed with
+* <code>AbstractServer.setConnectionFactory</code>. A subclass can
+* override <code>createConnection</code> to create a subclass of
+* <code> ConnectionToClient </code>, passing <code>getReaderFactory()</code>
+* to its constructor.<p>
+*
+* Project Name: OCSF (Object Client-Server Framework)<p>
+*
+* @see com.lloseng.ocsf.server.AbstractServer#setConnectionFactory
+*/
+public class VirtualThreadConnectionFactory extends AbstractConnectionFactory
+{
+// CLASS VARIABLES **************************************************
+
+  /**
+   * The stack size of the platform threads used when virtual threads
+   * are not available.
+   */
+  private static final long FALLBACK_STACK_SIZE = 256 * 1024;
+
+  /**
+   * The factory of virtual threads, or null if the virtual machine
+   * does not support them.
+   */
+  private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+// INSTANCE VARIABLES ***********************************************
+
+  /**
+   * The factory of the reader threads.
+   */
+  private final ThreadFactory readerFactory;
+
+// CONSTRUCTORS *****************************************************
+
+  /**
+   * Constructs a factory of connections read by virtual threads.
+   */
+  public VirtualThreadConnectionFactory()
+  {
+    if (VIRTUAL_THREADS != null)
+    {
+      readerFactory = VIRTUAL_THREADS;
+    }
+    else
+    {
+      readerFactory = new ThreadFactory()
+      {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable reader)
+        {
+          return new Thread(null, reader,
+            "ConnectionToClient-" + count.incrementAndGet(),
+            FALLBACK_STACK_SIZE);
+        }
+      };
+    }
+  }
+
+// ACCESSING METHODS ------------------------------------------------
+
+  /**
+   * Returns true if the connections are read by virtual threads,
+   * false if the factory fell back to platform threads.
+   *
+   * @return true if virtual threads are used.
+   */
+  public static boolean isVirtual()
+  {
+    return VIRTUAL_THREADS != null;
+  }
+
+  /**
+   * Returns the factory of the threads that read the connections.
+   *
+   * @return the reader thread factory.
+   */
+  final public ThreadFactory getReaderFactory()
+  {
+    return readerFactory;
+  }
+
+// METHODS DESIGNED TO BE OVERRIDDEN BY CONCRETE SUBCLASSES ---------
+
+  /**
+   * Creates a connection read by a thread of the reader factory.
+   *
+   * @param group the thread group that contains the connections.
+   * @param clientSocket contains the client's socket.
+   * @param server a reference to the server that created this instance.
+   * @exception IOException if an I/O error occur when creating the connection.
+   */
+  protected ConnectionToClient createConnection(ThreadGroup group,
+    Socket clientSocket, AbstractServer server) throws IOException
+  {
+    return new ConnectionToClient(group, clientSocket, server, readerFactory);
+  }
+
+// METHODS TO BE USED FROM WITHIN THIS CLASS ONLY -------------------
+
+  /**
+   * Returns <code>Thread.ofVirtual().name("ConnectionToClient-", 1).factory()</code>,
+   * looked up by reflection so that the framework still runs on
+   * virtual machines older than Java 21.
+   */
+  private static ThreadFactory virtualThreadFactory()
+  {
+    try
+    {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class)
+        .invoke(builder, "ConnectionToClient-", 1L);
+      return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+    }
+    catch (Exception ex)
+    {
+      return null;
+    }
+  }
+}
+// End of VirtualThreadConnectionFactory class